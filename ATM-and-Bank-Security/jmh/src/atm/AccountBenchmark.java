@@ -0,0 +1,70 @@
+package atm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Withdrawals from and balance reads of one account shared by four threads, against one account per thread,
+ * and balance reads alongside a thread that keeps withdrawing. Four threads are enough for the account's lock
+ * to be fought over even on a small machine; -t changes it.
+ */
+@Threads(4)
+public class AccountBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Shared {
+        final BankAccount account = new BankAccount("Alice", Integer.MAX_VALUE, "1234", "card");
+        final AccountStore store = DispatchBenchmark.newStore();
+    }
+
+    @State(Scope.Thread)
+    public static class Own {
+        final BankAccount account = new BankAccount("Alice", Integer.MAX_VALUE, "1234", "card");
+    }
+
+    @Benchmark
+    public boolean withdrawContended(Shared shared) {
+        return withdraw(shared.account);
+    }
+
+    @Benchmark
+    public boolean withdrawUncontended(Own own) {
+        return withdraw(own.account);
+    }
+
+    @Benchmark
+    public int balanceShared(Shared shared) {
+        return shared.account.getBalance();
+    }
+
+    @Benchmark
+    @Group("balanceWithWriter")
+    @GroupThreads(3)
+    public int balanceWithWriterRead(Shared shared) {
+        return shared.account.getBalance();
+    }
+
+    @Benchmark
+    @Group("balanceWithWriter")
+    @GroupThreads(1)
+    public boolean balanceWithWriterWithdraw(Shared shared) {
+        return withdraw(shared.account);
+    }
+
+    @Benchmark
+    public int storeBalanceShared(Shared shared) {
+        return shared.store.getBalance("Alice");
+    }
+
+    /* Takes a dollar, topping the account back up when it runs dry. */
+    private static boolean withdraw(BankAccount account) {
+        if (account.withdraw(1))
+            return true;
+        account.deposit(Integer.MAX_VALUE);
+        return false;
+    }
+}
@@ -0,0 +1,45 @@
+package atm;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.infra.ThreadParams;
+
+/**
+ * Audit events published from four threads to a log in a temporary file: with DROP, how cheap handing one
+ * over is; with BLOCK, how many the writer keeps up with.
+ */
+@State(Scope.Benchmark)
+@Threads(4)
+public class AuditBenchmark {
+
+    @Param({"DROP", "BLOCK"})
+    public AuditLog.Overflow overflow;
+
+    private Path file;
+    private AuditLog log;
+
+    @Setup
+    public void setUp() throws Exception {
+        file = Files.createTempFile("bench", ".audit.csv");
+        log = new AuditLog(file, 65536, overflow, Long.MAX_VALUE, 0, new Metrics("Bench"));
+    }
+
+    @Benchmark
+    public boolean publish(ThreadParams thread) {
+        return log.publish(thread.getThreadIndex(), CryptoBenchmark.MESSAGE, "WITHDRAW:Alice:SUCCEED", 1000, null);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        log.close();
+        Files.delete(file);
+    }
+}
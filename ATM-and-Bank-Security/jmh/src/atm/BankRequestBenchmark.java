@@ -0,0 +1,75 @@
+package atm;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiConsumer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Balance requests from an AtmClient to a Bank session over loopback, with up to WINDOW in flight the way a
+ * busy terminal keeps them. An operation is one request sent; the window makes sending wait for replies.
+ */
+@State(Scope.Benchmark)
+public class BankRequestBenchmark {
+
+    /* Requests in flight at once on a socket. */
+    static final int WINDOW = 64;
+
+    @Param({"false", "true"})
+    public boolean binary;
+
+    @Param({"false", "true"})
+    public boolean gcm;
+
+    private final Semaphore window = new Semaphore(WINDOW);
+    private final BiConsumer<String, Throwable> release = new BiConsumer<String, Throwable>() {
+        public void accept(String reply, Throwable failure) {
+            window.release();
+        }
+    };
+    private ServerSocket server;
+    private AtmClient atm;
+
+    @Setup
+    public void setUp() throws Exception {
+        server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        Thread bank = new Thread("bench-bank") {
+            public void run() {
+                try {
+                    Socket socket = server.accept();
+                    socket.setTcpNoDelay(true);
+                    new BankProtocol(socket.getInputStream(), socket.getOutputStream(), DispatchBenchmark.newStore()).processRemoteCommands();
+                } catch (Exception e) {
+                    // The benchmark closes the connection when it is done
+                }
+            }
+        };
+        bank.setDaemon(true);
+        bank.start();
+
+        atm = AtmClient.connect(InetAddress.getLoopbackAddress().getHostAddress(), server.getLocalPort());
+        if ((binary && !atm.useBinaryFrames().join()) || (gcm && !atm.useAuthenticatedEncryption().join()))
+            throw new IllegalStateException("The Bank would not switch modes.");
+    }
+
+    @Benchmark
+    public void request() throws InterruptedException {
+        window.acquire();
+        atm.request("BALANCE:Alice").whenComplete(release);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        window.acquire(WINDOW);
+        atm.close();
+        server.close();
+    }
+}
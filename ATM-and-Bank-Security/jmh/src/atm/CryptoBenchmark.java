@@ -0,0 +1,53 @@
+package atm;
+
+import java.nio.ByteBuffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Securing and revealing one message in each mode, as a text bundle and as a binary frame.
+ */
+@State(Scope.Benchmark)
+public class CryptoBenchmark {
+
+    static final String MESSAGE = "WITHDRAW:Alice:20";
+    static final byte[] AES_KEY = new byte[16], MAC_KEY = new byte[64];
+
+    @Param({"CBC_HMAC", "GCM"})
+    public EncryptionHelper.Mode mode;
+
+    private EncryptionHelper helper;
+    private String secured;
+    private ByteBuffer frame;
+
+    @Setup
+    public void setUp() throws Exception {
+        helper = new EncryptionHelper(AES_KEY, MAC_KEY);
+        secured = helper.secureMessage(mode, 1, MESSAGE);
+        frame = helper.secureFrame(mode, 1, 0, MESSAGE);
+    }
+
+    @Benchmark
+    public String secureMessage() throws Exception {
+        return helper.secureMessage(mode, 1, MESSAGE);
+    }
+
+    @Benchmark
+    public EncryptionHelper.Revealed revealMessage() throws Exception {
+        return helper.revealMessage(secured);
+    }
+
+    @Benchmark
+    public ByteBuffer secureFrame() throws Exception {
+        return helper.secureFrame(mode, 1, 0, MESSAGE);
+    }
+
+    @Benchmark
+    public EncryptionHelper.Revealed revealFrame() throws Exception {
+        return helper.revealFrame(frame.duplicate());
+    }
+}
@@ -0,0 +1,39 @@
+package atm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The Bank's handling of one clear command against an in-memory account store, with no crypto or socket
+ * around it.
+ */
+@State(Scope.Benchmark)
+public class DispatchBenchmark {
+
+    @Param({"BALANCE:Alice", "WITHDRAW:Alice:1", "AUTH:Alice:1234:card", "BATCH:BALANCE:Alice;BALANCE:Bob;BALANCE:Carol;WITHDRAW:Bob:1"})
+    public String command;
+
+    private BankProtocol dispatch;
+
+    @Setup
+    public void setUp() {
+        dispatch = new BankProtocol(newStore());
+    }
+
+    @Benchmark
+    public String dispatch() {
+        return dispatch.processRemoteCommand(command);
+    }
+
+    /* Three accounts with enough money never to run out. */
+    static AccountStore newStore() {
+        AccountStore accounts = new PrimitiveAccountStore();
+        accounts.add("Alice", Integer.MAX_VALUE, "1234", "card");
+        accounts.add("Bob", Integer.MAX_VALUE, "5678", "card");
+        accounts.add("Carol", Integer.MAX_VALUE, "9012", "card");
+        return accounts;
+    }
+}
@@ -0,0 +1,36 @@
+package atm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The hex helpers on 64 bytes, allocating their result and writing into one that is reused.
+ */
+@State(Scope.Thread)
+public class HexBenchmark {
+
+    private final byte[] bytes = new byte[64];
+    private final String hex = Hex.encode(bytes);
+    private final char[] chars = new char[Hex.encodedLength(bytes.length)];
+
+    @Benchmark
+    public String encode() {
+        return Hex.encode(bytes);
+    }
+
+    @Benchmark
+    public int encodeInto() {
+        return Hex.encode(bytes, 0, bytes.length, chars, 0);
+    }
+
+    @Benchmark
+    public byte[] decode() {
+        return Hex.decode(hex);
+    }
+
+    @Benchmark
+    public int decodeInto() {
+        return Hex.decode(hex, 0, hex.length(), bytes, 0);
+    }
+}
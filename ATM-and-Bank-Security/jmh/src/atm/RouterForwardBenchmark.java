@@ -0,0 +1,118 @@
+package atm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.Semaphore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Secured messages from a terminal through a Router to a Bank that sends every message straight back, so
+ * only the Router's share of the work is measured. Messages go out WINDOW at a time. The Router has no way to
+ * be stopped, so its threads are left to end with the forked JVM.
+ */
+@State(Scope.Benchmark)
+public class RouterForwardBenchmark {
+
+    @Param({"false", "true"})
+    public boolean binary;
+
+    private final Semaphore window = new Semaphore(BankRequestBenchmark.WINDOW);
+    private ServerSocket echo;
+    private Socket client;
+    private WritableByteChannel out;
+    private ByteBuffer message;
+
+    @Setup
+    public void setUp() throws Exception {
+        EncryptionHelper helper = new EncryptionHelper(CryptoBenchmark.AES_KEY, CryptoBenchmark.MAC_KEY);
+        message = binary
+                ? helper.secureFrame(1, 0, CryptoBenchmark.MESSAGE)
+                : ByteBuffer.wrap((helper.secureMessage(1, CryptoBenchmark.MESSAGE) + "\n").getBytes());
+
+        echo = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread bank = new Thread("bench-bank") {
+            public void run() {
+                try {
+                    Socket socket = echo.accept();
+                    socket.setTcpNoDelay(true);
+                    InputStream in = socket.getInputStream();
+                    OutputStream out = socket.getOutputStream();
+                    byte[] buffer = new byte[Router.OUT_LENGTH];
+                    int n;
+                    while ((n = in.read(buffer)) > 0)
+                        out.write(buffer, 0, n);
+                } catch (IOException e) {
+                    // The benchmark closes the connection when it is done
+                }
+            }
+        };
+        bank.setDaemon(true);
+        bank.start();
+
+        int atmPort = freePort();
+        final Router router = new Router();
+        router.bind("localhost:" + echo.getLocalPort(), atmPort, 1);
+        Thread loop = new Thread("bench-router") {
+            public void run() {
+                router.start();
+            }
+        };
+        loop.setDaemon(true);
+        loop.start();
+
+        client = new Socket(InetAddress.getLoopbackAddress(), atmPort);
+        client.setTcpNoDelay(true);
+        out = Channels.newChannel(client.getOutputStream());
+        final FrameReader replies = new FrameReader(client.getInputStream(), Router.OUT_LENGTH);
+        Thread reader = new Thread("bench-replies") {
+            public void run() {
+                try {
+                    while (replies.next())
+                        window.release();
+                } catch (IOException e) {
+                    // The benchmark closes the connection when it is done
+                }
+            }
+        };
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    @Benchmark
+    public void forward() throws Exception {
+        window.acquire();
+        ByteBuffer next = message.duplicate();
+        while (next.hasRemaining())
+            out.write(next);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        window.acquire(BankRequestBenchmark.WINDOW);
+        client.close();
+        echo.close();
+    }
+
+    /* A free port on this machine, to point the Router at. */
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+}
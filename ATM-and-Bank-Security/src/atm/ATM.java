@@ -0,0 +1,102 @@
+package atm;
+
+import java.io.*;
+
+/**
+ * The main class for the ATM.
+ *
+ * The shell's requests to the Bank, and any command that fails, go to an audit
+ * log (see AuditLog) in the file named by the system property atm.audit,
+ * "atm.audit.csv" by default, or nowhere if it is set to nothing.
+ * atm.audit.capacity, .overflow, .rollBytes and .keep tune it.
+ */
+
+public class ATM {
+
+    private static final String prompt = "ATM: ";
+
+    public static void main(String[] args) {
+
+        boolean binary = false, gcm = false, usage = args.length < 1;
+        for(int i = 1; i < args.length; i++) {
+            if(args[i].equals("binary"))
+                binary = true;
+            else if(args[i].equals("gcm"))
+                gcm = true;
+            else
+                usage = true;
+        }
+        if(usage) {
+            System.out.println("Usage: java [-Datm.audit=<file>] atm.ATM <ATM-port> [binary] [gcm]");
+            System.exit(1);
+        }
+
+        int atmPort = Integer.parseInt(args[0]);
+
+        AuditLog audit;
+        try {
+            audit = AuditLog.open("atm.audit", "atm.audit.csv", new Metrics("ATM"));
+        } catch (IOException e) {
+            System.out.println("Failed to open the audit log: " + e.getMessage());
+            System.exit(1);
+            return;
+        } catch (IllegalArgumentException e) {
+            System.out.println("atm.audit.overflow must be drop or block.");
+            System.exit(1);
+            return;
+        }
+
+        try {
+            /* Connect to port */
+            AtmClient client = AtmClient.connect("localhost", atmPort);
+            ATMProtocol atmProtocol = new ATMProtocol(client, audit);
+
+            /* Switch to binary frames if asked to and the Bank agrees */
+            if(binary) {
+                try {
+                    if(!client.useBinaryFrames().join())
+                        System.out.println("The Bank does not support binary frames, using text.");
+                } catch (Exception e) {
+                    System.out.println("Could not negotiate binary frames, using text.");
+                }
+            }
+
+            /* Seal messages with AES-GCM if asked to and the Bank supports it */
+            if(gcm) {
+                try {
+                    if(!client.useAuthenticatedEncryption().join())
+                        System.out.println("The Bank does not support GCM, using CBC and HMAC.");
+                } catch (Exception e) {
+                    System.out.println("Could not negotiate GCM, using CBC and HMAC.");
+                }
+            }
+
+            /* Handle command-line input */
+            System.out.print(prompt);
+            BufferedReader stdIn = new BufferedReader(new InputStreamReader(System.in));
+
+            try {
+                atmProtocol.processLocalCommands(stdIn, prompt);
+            } catch (IOException e) {
+                System.out.println("Failed to process local input.");
+                System.exit(0);
+            }
+
+            /* Clean up */
+            try {
+                atmProtocol.close();
+                if(audit != null)
+                    audit.close();
+            } catch (IOException e) {
+                System.out.println("Could not close socket.");
+                System.exit(0);
+            }
+
+        } catch (IOException e) {
+            System.out.println("Could not connect to ATM on port " + atmPort + ". Please try a different port.");
+            System.exit(0);
+        }
+    }
+
+}
+
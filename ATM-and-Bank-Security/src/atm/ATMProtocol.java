@@ -0,0 +1,206 @@
+package atm;
+
+import java.io.*;
+import java.util.concurrent.CompletionException;
+
+/**
+ * An ATMProtocol processes local commands sent to the ATM and turns them into
+ * requests to the Bank, which an AtmClient sends through the router. The
+ * client never blocks; the shell waits on each reply itself, since a person at
+ * the keyboard can only do one thing at a time. The wait is bounded: a reply
+ * that never comes times the request out (see AtmClient), and the shell treats
+ * it as refused.
+ *
+ * Every request to the Bank, and every command that fails outright, is
+ * published to the ATM's audit log (see AuditLog) rather than printed, so the
+ * shell's own output stays what the user should see.
+ */
+
+public class ATMProtocol implements Protocol {
+
+    private final AtmClient client;
+    // Where requests and failures are reported, or null to report nothing
+    private final AuditLog audit;
+    
+    // Used to keep track of the user's session
+    private String loggedInUser = null;
+
+    public ATMProtocol(AtmClient client, AuditLog audit) {
+        this.client = client;
+        this.audit = audit;
+    }
+
+    /* Continue to read input until terminated. */
+    public void processLocalCommands(BufferedReader stdIn, String prompt) throws IOException {
+        String userInput;
+
+        while((userInput = stdIn.readLine()) != null) {
+            long started = System.nanoTime();
+            try {
+				processCommand(userInput, stdIn);
+			} catch (Exception e) {
+				audit(null, "FAIL", started, "Command failed: " + e);
+				System.out.println();
+			}
+            System.out.print(prompt);
+        }
+
+        stdIn.close();
+    }
+
+    /* Interpret a command sent to the ATM and print the result to the output stream. */
+    private void processCommand(String command, BufferedReader stdIn) throws IOException {
+    	// Necessary variables
+    	String pin, userInput;
+    	
+    	// Break the command up into parts that we can use
+    	String[] parts = command.split(" ");
+    	String action = parts[0];
+    	
+    	// Check for begin-session or output errors
+    	if(action.equals("begin-session")) {
+    		// Make sure the user is trying to log in with a username
+    		if(parts.length != 2) {
+    			System.out.println();
+    			return;
+    		}
+    		
+    		// Prompt for the user's pin
+    		System.out.print("PIN? ");
+    		pin = stdIn.readLine();
+    		
+    		// Make sure the entered pin is numeric and 4 digits
+    		try {
+    			Integer.parseInt(pin);
+    			if(pin.length() != 4)
+    				throw new NumberFormatException();
+    		} catch (NumberFormatException e) {
+    			System.out.println("unathorized\n");
+    			return;
+    		}
+    		
+    		// Read card in preparation for authorization, from memory unless it is the first time it is used
+    		String userCandidate = parts[1], cardSecret = CardStore.shared().get(userCandidate);
+    		if(cardSecret == null) {
+    			System.out.println("unauthorized\n");
+    			return;
+    		}
+    		boolean authorized = false;
+    		
+    		// Send authorization message to the Bank; the PIN and card stay out of the audit log
+    		long started = System.nanoTime();
+    		try {
+    			authorized = client.authenticate(userCandidate, pin, cardSecret).join();
+    			audit("AUTH:" + userCandidate, "AUTH:" + userCandidate + (authorized ? ":PASS" : ":FAIL"), started, null);
+    		} catch (CompletionException e) {
+    			// Refused, busy or disconnected, all of which leave the user logged out
+    			audit("AUTH:" + userCandidate, "FAIL", started, String.valueOf(e.getCause()));
+    		}
+    		
+    		if(authorized) {
+	    		// Pass the user to the commands that can only be executed when logged in
+	    		loggedInUser = userCandidate;
+				System.out.print("authorized\n\nATM (" + loggedInUser + "): ");
+	    		while(loggedInUser != null && (userInput = stdIn.readLine()) != null) {
+	    			processInSessionCommands(userInput);
+	    			if(loggedInUser != null)
+	    				System.out.print("ATM (" + loggedInUser + "): ");
+	    		}
+    		} else {
+    			System.out.print("unauthorized\n");
+    		}
+
+    	} else if(action.equals("balance") || action.equals("withdraw") || action.equals("end-session")) {
+    		// Trying to do an in-session command while logged out
+			System.out.println("no user logged in\n");
+			return;
+			
+    	}    	
+    	
+    	// Extra space for extra clarity.
+    	System.out.println();
+    }
+    
+    private void processInSessionCommands(String command) {
+    	// Break the command up into parts that we can use
+    	String[] parts = command.split(" ");
+    	String action = parts[0];
+    	
+    	if(action.equals("end-session")) {
+		if(parts.length != 1) {
+			System.out.println();
+			return;
+		}
+    		System.out.println("user logged out");
+    		loggedInUser = null;
+    		return;
+    	} else if (action.equals("balance")) {
+		if(parts.length != 1) {
+			System.out.println();
+			return;
+		}
+    		int balance;
+    		long started = System.nanoTime();
+    		try {
+    			balance = client.balance(loggedInUser).join();
+    		} catch (CompletionException e) {
+    			audit("BALANCE:" + loggedInUser, "FAIL", started, String.valueOf(e.getCause()));
+    			refused();
+    			return;
+    		}
+    		audit("BALANCE:" + loggedInUser, "BALANCE:" + loggedInUser + ":" + balance, started, null);
+    		System.out.println("$" + balance);
+    		
+    	} else if (action.equals("withdraw")) {
+    		if(parts.length != 2) {
+    			System.out.println();
+    			return;
+    		}
+    		String amount = parts[1], request = "WITHDRAW:" + loggedInUser + ":" + amount;
+    		boolean dispensed;
+    		long started = System.nanoTime();
+    		try {
+    			dispensed = client.withdraw(loggedInUser, Integer.parseInt(amount)).join();
+    		} catch (NumberFormatException e) {
+    			// The Bank would refuse it too
+    			refused();
+    			return;
+    		} catch (CompletionException e) {
+    			audit(request, "FAIL", started, String.valueOf(e.getCause()));
+    			refused();
+    			return;
+    		}
+    		audit(request, "WITHDRAW:" + loggedInUser + (dispensed ? ":SUCCEED" : ":INSUFFICIENT"), started, null);
+    		if(dispensed) {
+    			System.out.println("$" + amount + " dispensed");
+    		} else {
+    			System.out.println("insufficient funds");
+    		}
+    		
+    	}
+
+    	// Extra space for extra clarity.
+    	System.out.println();
+    }
+    
+    /**
+     * Reports a request the Bank refused or never answered. Most likely the
+     * message to the Bank was either a replay attempt or it had been tampered
+     * with.
+     */
+    private void refused() {
+    	System.out.println();
+    }
+
+    /* Hand a request, or a failed command, to the audit log, off this thread. */
+    private void audit(String request, String reply, long started, String detail) {
+    	if(audit != null)
+    		audit.publish(AuditLog.CONSOLE, request, reply, System.nanoTime() - started, detail);
+    }
+
+    /* Close the connection to the Bank. */
+    public void close() throws IOException {
+        client.close();
+    }
+
+}
@@ -0,0 +1,59 @@
+package atm;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Where the Bank keeps its accounts. Implementations must be safe to call from
+ * any number of threads at once: lookups must not lock, and balance updates
+ * must be atomic per account, so that requests for unrelated accounts never
+ * wait on each other.
+ *
+ * Changes may be made durable after the call that makes them returns; sync()
+ * says when they are.
+ */
+
+public interface AccountStore {
+
+	/* Receives the accounts passed out by forEach(). The credentials array may be reused once visit() returns. */
+	interface Visitor {
+		void visit(String name, int balance, byte[] credentials) throws IOException;
+	}
+
+	/* Opens an account. Replaces any existing account with the same name. */
+	void add(String name, int balance, String pin, String cardValue);
+
+	/* Opens an account whose credentials are already hashed (see Credentials). */
+	void add(String name, int balance, byte[] credentials);
+
+	boolean contains(String name);
+
+	/* Returns the account's balance, or -1 if there is no such account. */
+	int getBalance(String name);
+
+	/* Returns false if the account does not exist or the credentials do not match. */
+	boolean verify(String name, String pinCandidate, String cardValueCandidate);
+
+	/* Returns false if the account does not exist or the amount is not positive. */
+	boolean deposit(String name, int amount);
+
+	/* Returns false if the account does not exist, the amount is not positive or the funds are insufficient. */
+	boolean withdraw(String name, int amount);
+
+	/*
+	 * Moves money from one account to another atomically: no one sees one balance changed without the other.
+	 * Returns false if either account does not exist, they are the same account, the amount is not positive,
+	 * the funds are insufficient or the receiving balance would overflow.
+	 */
+	boolean transfer(String from, String to, int amount);
+
+	/* Sets an existing account's balance as part of recovery. The change is not itself recorded. */
+	void restore(String name, int balance);
+
+	/* Returns a future that completes once every change made so far will survive a restart. */
+	CompletableFuture<Void> sync();
+
+	/* Passes every account to the visitor. Accounts may change meanwhile, but each balance is read atomically. */
+	void forEach(Visitor visitor) throws IOException;
+
+}
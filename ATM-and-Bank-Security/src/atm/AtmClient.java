@@ -0,0 +1,529 @@
+package atm;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * A terminal's connection to the Bank, through the Router, that never blocks
+ * the caller. Every request returns a CompletableFuture at once, and any
+ * number of them can be outstanding on one connection; each carries its own
+ * request ID and its reply is matched back to it by that ID. A reply is only
+ * accepted if it verifies and answers a request that is still pending, so the
+ * Router cannot make the terminal act twice on one reply by repeating it.
+ *
+ * The reading and writing is done by an AtmClientLoop, one thread serving many
+ * connections, so a program can drive hundreds of terminals with a few
+ * threads. Replies complete their futures on the loop's thread; see
+ * AtmClientLoop for what that means for callbacks.
+ *
+ * Requests about an account go out behind a shard header (see WireFormat),
+ * so a Router in front of sharded Banks can send each to the Bank that owns
+ * the account.
+ *
+ * Failures are never thrown: a request that cannot be sent, a reply refusing
+ * it and a lost connection all complete the future exceptionally, with an
+ * IOException or GeneralSecurityException as the cause. A request with no
+ * reply after atm.requestTimeoutMillis, 10 seconds by default, fails with a
+ * TimeoutException, as one would whose reply the Router dropped; one the
+ * Router could not deliver fails as soon as it says so. A reply that
+ * does not verify means the connection cannot be trusted, so it is closed and
+ * everything pending on it fails. Nothing stays pending for good.
+ */
+
+public class AtmClient {
+
+    // Longest reply accepted from the router, which for a BATCH can be well past the longest request
+    private static final int MAX_MESSAGE_LENGTH = 64 * 1024;
+    // Most queued requests handed to the socket in one write
+    private static final int MAX_GATHER = 64;
+    private static final SecureRandom sessionNumbers = new SecureRandom();
+    // How long a request may wait for its reply
+    private static final long REQUEST_TIMEOUT_MILLIS = Long.getLong("atm.requestTimeoutMillis", 10000);
+
+    final SocketChannel channel;
+    private final AtmClientLoop loop;
+    // Set and used by the loop's thread only
+    SelectionKey key;
+
+    // Private keys. Same two are saved in the BankProtocol class. Zeroed out.
+    private byte[] aesKeyRaw = {0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0};
+    private byte[] macKeyRaw = {0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0};
+    private final EncryptionHelper encrypter = new EncryptionHelper(aesKeyRaw, macKeyRaw);
+
+    // Whether requests go out as binary frames rather than text lines. See useBinaryFrames().
+    private volatile boolean binary = false;
+    // How requests are encrypted and authenticated. See useAuthenticatedEncryption().
+    private volatile EncryptionHelper.Mode mode = EncryptionHelper.Mode.CBC_HMAC;
+
+    // Requests sent to the Bank that are still waiting for a reply, by request ID
+    private final ConcurrentHashMap<Long, CompletableFuture<String>> pending = new ConcurrentHashMap<Long, CompletableFuture<String>>();
+    // Guarded by this. Request IDs are this connection's session number followed by a sequence number (see ReplayWindows).
+    private long session = newSession();
+    private int nextSequence = 1;
+    private boolean disconnected = false;
+
+    // Secured requests waiting for the loop to write them, in the order their IDs were handed out
+    private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<ByteBuffer>();
+    // Whether the loop has already been asked to write them
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    // Used by the loop's thread only
+    private final ByteBuffer inbound = ByteBuffer.allocate(MAX_MESSAGE_LENGTH);
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    // How far into inbound we have looked for the end of a text line
+    private int scanned = 0;
+
+    private AtmClient(SocketChannel channel, AtmClientLoop loop) {
+        this.channel = channel;
+        this.loop = loop;
+    }
+
+    /**
+     * Connects to the Router's ATM port, and serves the connection from the shared loop.
+     *
+     * @param host
+     * @param port
+     * @return
+     * @throws IOException if the connection cannot be made
+     */
+    public static AtmClient connect(String host, int port) throws IOException {
+        return connect(host, port, AtmClientLoop.shared());
+    }
+
+    /**
+     * Connects to the Router's ATM port, and serves the connection from the given loop.
+     *
+     * @param host
+     * @param port
+     * @param loop
+     * @return
+     * @throws IOException if the connection cannot be made
+     */
+    public static AtmClient connect(String host, int port, AtmClientLoop loop) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+        try {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        AtmClient client = new AtmClient(channel, loop);
+        loop.add(client);
+        return client;
+    }
+
+    /**
+     * Sends a message to the Bank, and completes with the Bank's decrypted
+     * reply once it arrives.
+     *
+     * @param message
+     * @return
+     */
+    public CompletableFuture<String> request(String message) {
+        return request(mode, message);
+    }
+
+    /**
+     * Sends several operations to the Bank as one BATCH request (see BankProtocol), and completes with their
+     * results in the same order once the reply arrives. If the Bank refuses the batch as a whole, every result is
+     * FAIL. The secured batch has to fit in one router message, Router.BUF_LENGTH bytes, or the future fails.
+     * A batch goes to the shard of its first operation's account, so operations on accounts of other shards fail.
+     *
+     * @param operations
+     * @return
+     */
+    public CompletableFuture<String[]> requestBatch(final String... operations) {
+        StringBuilder batch = new StringBuilder("BATCH");
+        char separator = ':';
+        for (String operation : operations) {
+            batch.append(separator).append(operation);
+            separator = BankProtocol.BATCH_SEPARATOR;
+        }
+        return request(batch.toString()).thenApply(new Function<String, String[]>() {
+            public String[] apply(String reply) {
+                String[] results = reply.startsWith("BATCH:")
+                        ? reply.substring(6).split(String.valueOf(BankProtocol.BATCH_SEPARATOR), -1)
+                        : new String[0];
+                if (results.length != operations.length) {
+                    results = new String[operations.length];
+                    Arrays.fill(results, "FAIL");
+                }
+                return results;
+            }
+        });
+    }
+
+    /**
+     * Checks a user's PIN and card with the Bank. Completes with whether
+     * they match; a Bank too busy to check them completes it exceptionally.
+     *
+     * @param name
+     * @param pin
+     * @param cardValue
+     * @return
+     */
+    public CompletableFuture<Boolean> authenticate(String name, String pin, String cardValue) {
+        final String prefix = "AUTH:" + name + ":";
+        return request(prefix + pin + ":" + cardValue).thenApply(new Function<String, Boolean>() {
+            public Boolean apply(String reply) {
+                String outcome = outcomeOf(reply, prefix);
+                if (outcome.equals("BUSY"))
+                    throw new CompletionException(new IOException("The Bank is too busy to check the login."));
+                return outcome.equals("PASS");
+            }
+        });
+    }
+
+    /**
+     * Asks the Bank for a user's balance.
+     *
+     * @param name
+     * @return
+     */
+    public CompletableFuture<Integer> balance(String name) {
+        final String prefix = "BALANCE:" + name + ":";
+        return request("BALANCE:" + name).thenApply(new Function<String, Integer>() {
+            public Integer apply(String reply) {
+                try {
+                    return Integer.valueOf(outcomeOf(reply, prefix));
+                } catch (NumberFormatException e) {
+                    throw refused();
+                }
+            }
+        });
+    }
+
+    /**
+     * Withdraws from a user's account. Completes with true if the money was
+     * dispensed and false if the balance was too low; any other answer
+     * completes it exceptionally.
+     *
+     * @param name
+     * @param amount
+     * @return
+     */
+    public CompletableFuture<Boolean> withdraw(String name, int amount) {
+        final String prefix = "WITHDRAW:" + name + ":";
+        return request(prefix + amount).thenApply(new Function<String, Boolean>() {
+            public Boolean apply(String reply) {
+                String outcome = outcomeOf(reply, prefix);
+                if (outcome.equals("SUCCEED"))
+                    return true;
+                if (outcome.equals("INSUFFICIENT"))
+                    return false;
+                throw refused();
+            }
+        });
+    }
+
+    /**
+     * Moves money from one account to another. Completes with true once it has
+     * moved and false if the balance was too low; any other answer completes it
+     * exceptionally. With sharded Banks, both accounts must be on one shard.
+     *
+     * @param from
+     * @param to
+     * @param amount
+     * @return
+     */
+    public CompletableFuture<Boolean> transfer(String from, String to, int amount) {
+        final String prefix = "TRANSFER:" + from + ":";
+        return request(prefix + to + ":" + amount).thenApply(new Function<String, Boolean>() {
+            public Boolean apply(String reply) {
+                String outcome = outcomeOf(reply, prefix);
+                if (outcome.equals("SUCCEED"))
+                    return true;
+                if (outcome.equals("INSUFFICIENT"))
+                    return false;
+                throw refused();
+            }
+        });
+    }
+
+    /**
+     * Asks the Bank to switch this connection to binary frames (see WireFormat), which are less than half the
+     * size of text lines and cheaper to take apart. A Bank that does not know about binary frames refuses, and
+     * the connection carries on with text lines. Send nothing else until it completes.
+     *
+     * @return whether binary frames are now in use
+     */
+    public CompletableFuture<Boolean> useBinaryFrames() {
+        return request("MODE:BINARY").thenApply(new Function<String, Boolean>() {
+            public Boolean apply(String reply) {
+                binary = reply.equals("MODE:BINARY:OK");
+                return binary;
+            }
+        });
+    }
+
+    /**
+     * Asks the Bank whether it understands AES-GCM, and if so secures every later request with it (see
+     * EncryptionHelper.Mode). The question itself is sealed with GCM: a Bank that only knows CBC and HMAC
+     * cannot read it and answers FAIL, and the connection carries on as before.
+     *
+     * @return whether GCM is now in use
+     */
+    public CompletableFuture<Boolean> useAuthenticatedEncryption() {
+        return request(EncryptionHelper.Mode.GCM, "MODE:GCM").thenApply(new Function<String, Boolean>() {
+            public Boolean apply(String reply) {
+                if (reply.equals("MODE:GCM:OK"))
+                    mode = EncryptionHelper.Mode.GCM;
+                return mode == EncryptionHelper.Mode.GCM;
+            }
+        });
+    }
+
+    /* Closes the connection, failing whatever is still pending. */
+    public void close() {
+        disconnect();
+    }
+
+    /*
+     * Sends a request secured in the given mode. The Bank only accepts each request ID once, and not far behind
+     * the newest one of its session, so IDs are handed out and requests queued in the same order.
+     */
+    private CompletableFuture<String> request(EncryptionHelper.Mode mode, String message) {
+        CompletableFuture<String> reply = new CompletableFuture<String>();
+        String account = accountOf(message);
+        ByteBuffer header = null;
+        if (account != null) {
+            header = ByteBuffer.allocate(WireFormat.SHARD_HEADER_LENGTH);
+            WireFormat.putShardHeader(header, ShardRing.keyOf(account));
+            header.flip();
+        }
+        synchronized (this) {
+            if (disconnected) {
+                reply.completeExceptionally(new IOException("Connection to the Bank closed."));
+                return reply;
+            }
+            // Start a new session rather than run out of sequence numbers, never sending the last, all ones
+            if (nextSequence == ReplayWindows.MAX_SEQUENCE) {
+                session = newSession();
+                nextSequence = 1;
+            }
+            long requestId = ReplayWindows.requestId(session, nextSequence++);
+            ByteBuffer out;
+            try {
+                out = binary
+                        ? encrypter.secureFrame(mode, requestId, 0, message)
+                        : ByteBuffer.wrap((encrypter.secureMessage(mode, requestId, message) + "\n").getBytes());
+            } catch (GeneralSecurityException e) {
+                reply.completeExceptionally(e);
+                return reply;
+            }
+            // The router would drop it, and the reply would never come
+            if (out.remaining() + (header == null ? 0 : header.remaining()) > Router.BUF_LENGTH) {
+                reply.completeExceptionally(new IOException("Request too long for the router."));
+                return reply;
+            }
+            pending.put(requestId, reply);
+            if (header != null)
+                outbound.add(header);
+            outbound.add(out);
+            forgetOnFailure(requestId, reply);
+        }
+        if (flushScheduled.compareAndSet(false, true))
+            loop.flushLater(this);
+        return reply;
+    }
+
+    /* Time the request out if no reply comes, and stop waiting for one once it has failed for any reason. */
+    private void forgetOnFailure(final long requestId, final CompletableFuture<String> reply) {
+        reply.orTimeout(REQUEST_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS).whenComplete(new BiConsumer<String, Throwable>() {
+            public void accept(String clear, Throwable failure) {
+                if (failure != null)
+                    pending.remove(requestId, reply);
+            }
+        });
+    }
+
+    /* A random session number, so that terminals are unlikely to share one. */
+    private static long newSession() {
+        return sessionNumbers.nextLong() & ReplayWindows.SESSION_MASK;
+    }
+
+    /* The account a request is about, which picks the shard it goes to, or null for requests such as MODE. */
+    private static String accountOf(String message) {
+        int colon = message.indexOf(':');
+        if (colon < 0)
+            return null;
+        String command = message.substring(0, colon);
+        if (command.equals("BATCH")) {
+            int end = message.indexOf(BankProtocol.BATCH_SEPARATOR, colon + 1);
+            return accountOf(end < 0 ? message.substring(colon + 1) : message.substring(colon + 1, end));
+        }
+        if (!command.equals("AUTH") && !command.equals("BALANCE") && !command.equals("WITHDRAW") && !command.equals("TRANSFER"))
+            return null;
+        int end = message.indexOf(':', colon + 1);
+        return end < 0 ? message.substring(colon + 1) : message.substring(colon + 1, end);
+    }
+
+    /* The part of a reply after prefix, or a failure if the Bank answered something else. */
+    private static String outcomeOf(String reply, String prefix) {
+        if (!reply.startsWith(prefix))
+            throw refused();
+        return reply.substring(prefix.length());
+    }
+
+    private static CompletionException refused() {
+        return new CompletionException(new IOException("The Bank refused the request."));
+    }
+
+    /* Write as many queued requests as the socket takes, and ask to hear when it takes more. Loop thread only. */
+    void flush() throws IOException {
+        flushScheduled.set(false);
+        // Not registered yet, in which case the loop flushes once it is, or already closed
+        if (key == null || !key.isValid())
+            return;
+        while (!outbound.isEmpty()) {
+            int count = 0;
+            for (ByteBuffer out : outbound) {
+                if (count == MAX_GATHER)
+                    break;
+                gather[count++] = out;
+            }
+            channel.write(gather, 0, count);
+            boolean full = gather[count - 1].hasRemaining();
+            Arrays.fill(gather, 0, count, null);
+            while (!outbound.isEmpty() && !outbound.peek().hasRemaining())
+                outbound.poll();
+            if (full)
+                break;
+        }
+        int ops = outbound.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+        if (key.interestOps() != ops)
+            key.interestOps(ops);
+    }
+
+    /* Read what has arrived, and complete the requests it answers. Loop thread only. */
+    void read() throws IOException {
+        if (channel.read(inbound) < 0) {
+            disconnect();
+            return;
+        }
+
+        int start = 0, end = inbound.position();
+        while (start < end) {
+            byte first = inbound.get(start);
+            int length;
+            if (WireFormat.isBinary(first)) {
+                if (end - start < WireFormat.PREFIX_LENGTH)
+                    break;
+                length = WireFormat.PREFIX_LENGTH + inbound.getInt(start + WireFormat.LENGTH_OFFSET);
+                if (length < WireFormat.minFrameLength(first) || length > inbound.capacity())
+                    throw new IOException("Malformed binary frame.");
+                if (end - start < length)
+                    break;
+                ByteBuffer frame = inbound.duplicate();
+                frame.limit(start + length).position(start);
+                receive(frame, null);
+            } else {
+                int newline = Math.max(scanned, start);
+                while (newline < end && inbound.get(newline) != '\n')
+                    ++newline;
+                if (newline == end) {
+                    scanned = end;
+                    break;
+                }
+                int lineEnd = newline > start && inbound.get(newline - 1) == '\r' ? newline - 1 : newline;
+                receive(null, new String(inbound.array(), start, lineEnd - start, StandardCharsets.ISO_8859_1));
+                length = newline + 1 - start;
+            }
+            start += length;
+        }
+
+        // Move what is left of the next reply to the front
+        inbound.limit(end).position(start);
+        inbound.compact();
+        scanned = Math.max(scanned - start, 0);
+        if (!inbound.hasRemaining())
+            throw new IOException("Reply too long.");
+    }
+
+    /*
+     * Complete the request a binary frame or text line answers, if the request is still pending. A reply that
+     * does not verify closes the connection. A reply with no request ID answers a request the Bank could not
+     * read; it matches nothing, and that request times out.
+     */
+    private void receive(ByteBuffer frame, String line) {
+        if (line != null && !line.isEmpty() && line.charAt(0) == WireFormat.ROUTER_ERROR) {
+            routerError(line);
+            return;
+        }
+        try {
+            long requestId;
+            EncryptionHelper.Revealed revealed;
+            if (frame != null) {
+                requestId = WireFormat.requestIdOf(frame);
+                revealed = encrypter.revealFrame(frame);
+            } else {
+                requestId = EncryptionHelper.requestIdOf(line);
+                revealed = encrypter.revealMessage(line);
+            }
+            if (!revealed.isAccepted()) {
+                disconnect(new IOException("A reply from the Bank failed verification: " + revealed.rejection.description));
+                return;
+            }
+            CompletableFuture<String> reply = pending.remove(requestId);
+            if (reply != null)
+                reply.complete(revealed.clear);
+        } catch (Exception e) {
+            disconnect(new IOException("Malformed reply from the Bank.", e));
+        }
+    }
+
+    /* Fail the request a router error names (see WireFormat); the Router could not get it to the Bank. */
+    private void routerError(String line) {
+        long requestId;
+        try {
+            requestId = Long.parseLong(line.substring(1));
+        } catch (NumberFormatException e) {
+            disconnect(new IOException("Malformed router error."));
+            return;
+        }
+        CompletableFuture<String> reply = pending.remove(requestId);
+        if (reply != null)
+            reply.completeExceptionally(new IOException("The Router could not get the request to the Bank."));
+    }
+
+    /* Close the connection and fail whatever is still pending. Safe to call more than once, from any thread. */
+    void disconnect() {
+        disconnect(new IOException("Connection to the Bank closed."));
+    }
+
+    private void disconnect(IOException cause) {
+        synchronized (this) {
+            if (disconnected)
+                return;
+            disconnected = true;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        for (Long requestId : pending.keySet()) {
+            CompletableFuture<String> reply = pending.remove(requestId);
+            if (reply != null)
+                reply.completeExceptionally(cause);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package atm;
+
+import java.io.IOException;
+
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * An event loop for AtmClients: a thread with its own Selector that does the
+ * reading and writing for any number of terminal connections. A connection
+ * only takes up the thread while its bytes are moving, so a program driving
+ * hundreds of terminals needs only a few loops.
+ *
+ * Replies are revealed, and their futures completed, on this thread. Callbacks
+ * attached to those futures run here too unless they are attached with one
+ * of the async methods, so they must not block.
+ */
+
+public class AtmClientLoop implements Runnable {
+
+    private static AtmClientLoop shared;
+
+    private final Selector selector;
+    /* Clients waiting to be registered with the selector, and clients with requests waiting to go out. */
+    private final Queue<AtmClient> incoming = new ConcurrentLinkedQueue<AtmClient>();
+    private final Queue<AtmClient> flushes = new ConcurrentLinkedQueue<AtmClient>();
+
+    /**
+     * Opens the selector and starts the loop on a daemon thread of its own.
+     *
+     * @throws IOException
+     */
+    public AtmClientLoop() throws IOException {
+        selector = Selector.open();
+        Thread thread = new Thread(this, "atm-client-loop");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /* A loop shared by every client that is not given one, started the first time it is asked for. */
+    public static synchronized AtmClientLoop shared() throws IOException {
+        if (shared == null)
+            shared = new AtmClientLoop();
+        return shared;
+    }
+
+    /* Hand a newly connected client to this loop. Safe to call from any thread. */
+    void add(AtmClient client) {
+        incoming.add(client);
+        selector.wakeup();
+    }
+
+    /* Have the loop write out the client's queued requests. Safe to call from any thread. */
+    void flushLater(AtmClient client) {
+        flushes.add(client);
+        selector.wakeup();
+    }
+
+    /* Read and write until the process exits. */
+    public void run() {
+        while (true) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                System.err.println("Select failed for the ATM clients.");
+                return;
+            }
+
+            AtmClient client;
+            while ((client = incoming.poll()) != null) {
+                try {
+                    client.key = client.channel.register(selector, SelectionKey.OP_READ, client);
+                    client.flush();
+                } catch (ClosedChannelException e) {
+                    client.disconnect();
+                } catch (IOException e) {
+                    client.disconnect();
+                }
+            }
+            while ((client = flushes.poll()) != null) {
+                try {
+                    client.flush();
+                } catch (IOException e) {
+                    client.disconnect();
+                } catch (CancelledKeyException e) {
+                    // Closed by another thread meanwhile
+                    client.disconnect();
+                }
+            }
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                client = (AtmClient) key.attachment();
+                try {
+                    if (key.isValid() && key.isWritable())
+                        client.flush();
+                    if (key.isValid() && key.isReadable())
+                        client.read();
+                } catch (IOException e) {
+                    client.disconnect();
+                } catch (CancelledKeyException e) {
+                    client.disconnect();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,371 @@
+package atm;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An audit trail: one CSV row for every operation a terminal or the teller
+ * asked for, with who asked, what, the amount, the outcome and how long it
+ * took, written to a file that is rolled over as it grows. The Bank keeps one
+ * for every request it serves, and the ATM one for its shell's commands.
+ *
+ * Request threads never touch the file. publish() copies a few references into
+ * a slot of a ring buffer allocated up front and returns; a single writer
+ * thread drains the ring, turns each event into rows and writes them out. The
+ * formatting happens on the writer too, so publishing costs a claim of the next
+ * slot and a handful of stores. The ring is a bounded multi-producer queue in
+ * the manner of Vyukov's: each slot carries a sequence number saying whether it
+ * is free for the next lap of producers or holds an event for the writer. A
+ * writer with nothing to do parks until a publisher wakes it, so an idle log
+ * costs nothing, and a busy one is never woken because it never parks.
+ *
+ * When the writer falls a whole ring behind, what happens is up to the
+ * overflow setting: DROP turns new events away and counts them, so requests
+ * never wait; BLOCK makes the request wait for a free slot, so nothing is lost
+ * but a slow disk slows the Bank down.
+ *
+ * Rows hold
+ *     time, terminal, action, account, to, amount, outcome, latencyMicros, detail
+ * The terminal is the route the request came in on, "direct" for one that did
+ * not come through a Router, or "console" for the teller. A BATCH gives a row
+ * per operation. PINs and card values are never written.
+ *
+ * Settings are system properties under a prefix, such as "bank.audit":
+ *     <prefix>            the file, rolled over to <file>.1, <file>.2, ...
+ *     <prefix>.capacity   events the ring holds, rounded up to a power of two, 65536 by default
+ *     <prefix>.overflow   "drop" or "block", drop by default
+ *     <prefix>.rollBytes  size at which the file is rolled over, 64 MB by default
+ *     <prefix>.keep       rolled over files to keep, 10 by default
+ */
+
+public class AuditLog implements Closeable {
+
+    /* What publish() does when the ring is full. */
+    public enum Overflow { DROP, BLOCK }
+
+    /* Terminals that are not routes. */
+    public static final int DIRECT = -1, CONSOLE = -2;
+
+    private static final String HEADER = "time,terminal,action,account,to,amount,outcome,latencyMicros,detail\n";
+    private static final int BUFFER_LENGTH = 64 * 1024;
+    /* How long a blocked publisher sleeps before looking for a free slot again. */
+    private static final long FULL_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    /* One event. Slots are allocated once and filled in again on every lap of the ring. */
+    private static final class Slot {
+        long time, latency;
+        int terminal;
+        String request, reply, detail;
+    }
+
+    private final Slot[] slots;
+    /*
+     * For the slot at index i: i + lap * capacity when it is free for that lap's producer, and one more once
+     * the producer has filled it in.
+     */
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private final Overflow overflow;
+    private final LongAdder written, dropped;
+
+    /* Only touched by the writer thread. */
+    private final Path file;
+    private final long rollBytes;
+    private final int keep;
+    private long head, size;
+    private FileChannel channel;
+    private final ByteBuffer out = ByteBuffer.allocate(BUFFER_LENGTH);
+    private final StringBuilder row = new StringBuilder();
+
+    private final Thread writer;
+    /* Set by the writer before it parks; the first publisher to clear it unparks the writer. */
+    private final AtomicBoolean idle = new AtomicBoolean();
+    private volatile boolean closed = false;
+
+    /**
+     * Opens the file, appending to it if it is there, and starts the writer.
+     *
+     * @param file
+     * @param capacity
+     * @param overflow
+     * @param rollBytes
+     * @param keep
+     * @param metrics where to count the rows written and the events dropped
+     * @throws IOException
+     */
+    public AuditLog(Path file, int capacity, Overflow overflow, long rollBytes, int keep, Metrics metrics) throws IOException {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        slots = new Slot[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; ++i) {
+            slots[i] = new Slot();
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+        this.overflow = overflow;
+        this.file = file;
+        this.rollBytes = rollBytes;
+        this.keep = keep;
+        written = metrics.counter("audit.written");
+        dropped = metrics.counter("audit.dropped");
+        openFile();
+
+        writer = new Thread("audit-writer") {
+            public void run() {
+                writeLoop();
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /* An audit log set up from the system properties under prefix, or null if <prefix> is set to nothing. */
+    public static AuditLog open(String prefix, String defaultFile, Metrics metrics) throws IOException {
+        String file = System.getProperty(prefix, defaultFile);
+        if (file.isEmpty())
+            return null;
+        Overflow overflow = Overflow.valueOf(System.getProperty(prefix + ".overflow", "drop").toUpperCase());
+        return new AuditLog(Paths.get(file), Integer.getInteger(prefix + ".capacity", 65536), overflow,
+                Long.getLong(prefix + ".rollBytes", 64L * 1024 * 1024), Integer.getInteger(prefix + ".keep", 10), metrics);
+    }
+
+    /**
+     * Records an event. Safe to call from any thread, and only waits if the ring is full and the overflow
+     * setting is BLOCK.
+     *
+     * @param terminal the route the request came in on, DIRECT or CONSOLE
+     * @param request the request in the clear, or null if it could not be read
+     * @param reply what the terminal was sent
+     * @param latency nanoseconds from receiving the request to replying
+     * @param detail why it failed, or null
+     * @return false if the event was dropped
+     */
+    public boolean publish(int terminal, String request, String reply, long latency, String detail) {
+        if (closed) {
+            dropped.increment();
+            return false;
+        }
+        long position;
+        int index;
+        while (true) {
+            position = tail.get();
+            index = (int) position & mask;
+            long sequence = sequences.get(index);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1))
+                    break;
+            } else if (sequence < position) {
+                // The writer has not freed this slot from the last lap yet
+                if (overflow == Overflow.DROP || closed) {
+                    dropped.increment();
+                    return false;
+                }
+                LockSupport.parkNanos(FULL_NANOS);
+            }
+            // Otherwise another producer claimed it first; try the next one
+        }
+
+        Slot slot = slots[index];
+        slot.time = System.currentTimeMillis();
+        slot.latency = latency;
+        slot.terminal = terminal;
+        slot.request = request;
+        slot.reply = reply;
+        slot.detail = detail;
+        // A full store, so that the writer either sees the event or has said it is idle by the time idle is read
+        sequences.set(index, position + 1);
+        if (idle.get() && idle.compareAndSet(true, false))
+            LockSupport.unpark(writer);
+        return true;
+    }
+
+    /* Drain the ring until closed, writing out and parking whenever it runs dry. */
+    private void writeLoop() {
+        while (true) {
+            boolean wasClosed = closed;
+            if (ready()) {
+                Slot slot = slots[(int) head & mask];
+                formatEvent(slot);
+                slot.request = slot.reply = slot.detail = null;
+                sequences.lazySet((int) head & mask, head + slots.length);
+                ++head;
+                continue;
+            }
+            flush();
+            // Once closed, wait only for the events already claimed
+            if (wasClosed && head == tail.get())
+                return;
+            // Say so before looking one last time, so that an event published meanwhile is seen or wakes the writer
+            idle.set(true);
+            if (!ready() && !closed)
+                LockSupport.park(this);
+            idle.set(false);
+        }
+    }
+
+    /* Whether the next event has been published. Writer thread only. */
+    private boolean ready() {
+        return sequences.get((int) head & mask) == head + 1;
+    }
+
+    /* Add the rows for one event, one per operation if it is a batch. */
+    private void formatEvent(Slot slot) {
+        String time = DateTimeFormatter.ISO_INSTANT.format(Instant.ofEpochMilli(slot.time));
+        String terminal = slot.terminal == CONSOLE ? "console" : slot.terminal == DIRECT ? "direct" : Integer.toString(slot.terminal);
+        String request = slot.request, reply = slot.reply == null ? "" : slot.reply;
+
+        if (request != null && request.startsWith("BATCH:")) {
+            String[] operations = request.substring(6).split(String.valueOf(BankProtocol.BATCH_SEPARATOR), -1);
+            String[] results = reply.startsWith("BATCH:") ? reply.substring(6).split(String.valueOf(BankProtocol.BATCH_SEPARATOR), -1) : new String[0];
+            for (int i = 0; i < operations.length; ++i)
+                formatRow(time, terminal, operations[i], i < results.length ? results[i] : reply, slot.latency, slot.detail);
+        } else {
+            formatRow(time, terminal, request, reply, slot.latency, slot.detail);
+        }
+    }
+
+    private void formatRow(String time, String terminal, String request, String reply, long latency, String detail) {
+        String[] fields = request == null ? new String[0] : request.split(":", -1);
+        String action = fields.length > 0 ? fields[0] : "", account = fields.length > 1 ? fields[1] : "", to = "", amount = "";
+        String outcome = reply.substring(reply.lastIndexOf(':') + 1);
+        if (action.equals("WITHDRAW") || action.equals("DEPOSIT")) {
+            amount = fields.length > 2 ? fields[2] : "";
+        } else if (action.equals("TRANSFER")) {
+            to = fields.length > 2 ? fields[2] : "";
+            amount = fields.length > 3 ? fields[3] : "";
+        } else if (action.equals("BALANCE") && reply.startsWith("BALANCE:")) {
+            // The reply ends with the balance rather than an outcome
+            amount = outcome;
+            outcome = "OK";
+        }
+        // Anything past the account of an AUTH is a secret, and never leaves the request
+
+        row.setLength(0);
+        row.append(time).append(',').append(terminal).append(',');
+        appendField(action);
+        row.append(',');
+        appendField(account);
+        row.append(',');
+        appendField(to);
+        row.append(',');
+        appendField(amount);
+        row.append(',');
+        appendField(outcome);
+        row.append(',').append(TimeUnit.NANOSECONDS.toMicros(latency)).append(',');
+        appendField(detail == null ? "" : detail);
+        row.append('\n');
+        write(row.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /* A field, quoted if it holds anything that would break the row apart. */
+    private void appendField(String field) {
+        if (field.indexOf(',') < 0 && field.indexOf('"') < 0 && field.indexOf('\n') < 0 && field.indexOf('\r') < 0) {
+            row.append(field);
+            return;
+        }
+        row.append('"').append(field.replace("\"", "\"\"")).append('"');
+    }
+
+    private void write(byte[] bytes) {
+        if (channel == null) {
+            dropped.increment();
+            return;
+        }
+        if (size + out.position() + bytes.length > rollBytes && size + out.position() > HEADER.length())
+            roll();
+        if (out.remaining() < bytes.length)
+            flush();
+        if (bytes.length > out.capacity()) {
+            dropped.increment();
+            return;
+        }
+        out.put(bytes);
+        written.increment();
+    }
+
+    /* Write out what is buffered. The audit trail is not forced to disk; the journal is what keeps balances safe. */
+    private void flush() {
+        out.flip();
+        try {
+            while (channel != null && out.hasRemaining())
+                size += channel.write(out);
+        } catch (IOException e) {
+            System.err.println("Could not write the audit log, dropping events: " + e.getMessage());
+            closeFile();
+        }
+        out.clear();
+    }
+
+    /* Move the file to <file>.1, and each older one up by one, then start a new one. */
+    private void roll() {
+        flush();
+        closeFile();
+        try {
+            Files.deleteIfExists(rolled(keep));
+            for (int i = keep - 1; i >= 1; --i) {
+                if (Files.exists(rolled(i)))
+                    Files.move(rolled(i), rolled(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (keep > 0)
+                Files.move(file, rolled(1), StandardCopyOption.REPLACE_EXISTING);
+            else
+                Files.delete(file);
+            openFile();
+        } catch (IOException e) {
+            System.err.println("Could not roll the audit log over, dropping events: " + e.getMessage());
+        }
+    }
+
+    private Path rolled(int generation) {
+        return file.resolveSibling(file.getFileName() + "." + generation);
+    }
+
+    private void openFile() throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        size = channel.size();
+        if (size == 0)
+            size += channel.write(ByteBuffer.wrap(HEADER.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private void closeFile() {
+        if (channel == null)
+            return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Could not close the audit log: " + e.getMessage());
+        }
+        channel = null;
+    }
+
+    /* Writes out every event published so far and closes the file. Events published from now on are dropped. */
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closeFile();
+    }
+}
@@ -0,0 +1,331 @@
+package atm;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.IllegalBlockSizeException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.NoSuchPaddingException;
+
+/**
+ * The main class for the bank. The bank must constantly listen for
+ * input from both the command line and the router.
+ *
+ * By default the bank connects out to a single Router. Started with "listen",
+ * it instead accepts any number of upstream connections (Routers, or ATMs
+ * talking to it directly) and runs a separate BankProtocol session for each
+ * one on its own thread. Those are virtual threads when the JVM has them, so
+ * sessions can stay plain blocking code even with tens of thousands open.
+ * The build targets Java 17, which has none: there every session holds a
+ * platform thread, with an OS thread and its stack, and a few thousand open
+ * terminals are about the limit (see sessionThreadFactory).
+ *
+ * Every balance change is written ahead to a journal (see Journal), and the
+ * whole account store is snapshotted in the background every so often (see
+ * Snapshot). On startup the Bank loads the newest snapshot and replays the
+ * journal after it, so a restart loses nothing that was acknowledged. With no
+ * snapshot yet, it starts from the account book (see AccountBook), a text
+ * file with one "name,balance,pin,card value" line per account, or failing
+ * that from three demonstration accounts. Files are set with system properties:
+ *     bank.journal          the journal, "bank.journal" by default
+ *     bank.snapshot         the snapshot, "bank.snapshot" by default
+ *     bank.accounts         the account book, none by default
+ *     bank.snapshotSeconds  seconds between snapshots, 60 by default
+ *     bank.metricsSeconds   seconds between metrics log lines, none by default
+ *     bank.authThreads      threads checking logins, half the cores by default
+ *     bank.authQueue        logins that may wait for those threads before more are
+ *                           turned away as busy, 1024 by default
+ *     bank.pbkdf2Iterations PBKDF2 iterations for newly hashed credentials (see
+ *                           Credentials), 10000 by default
+ *     bank.shards           every shard, "host:port,host:port,...", when the accounts
+ *                           are split between Banks (see ShardRing); none by default
+ *     bank.shard            which of them this Bank is; only its own accounts are
+ *                           opened from the account book
+ *     bank.audit            the audit log, "bank.audit.csv" by default, or nothing for
+ *                           none; bank.audit.capacity, .overflow, .rollBytes and .keep
+ *                           tune it (see AuditLog)
+ * The Bank's metrics (see Metrics) can also be read over JMX as atm:type=Bank.
+ */
+
+public class Bank {
+
+	private final static String prompt = "Bank: ";
+    
+    public static void main(String[] args) throws InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException, IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException {
+
+        if (args.length < 1 || args.length > 2 || (args.length == 2 && !args[1].equals("listen"))) {
+            System.out.println("Usage: java [-Dbank.journal=<file>] [-Dbank.snapshot=<file>] [-Dbank.accounts=<file>] [-Dbank.audit=<file>] atm.Bank <Bank-port> [listen]");
+            System.exit(1);
+        }
+
+        int bankPort = Integer.parseInt(args[0]);
+        
+        final AccountStore accounts;
+        try {
+            accounts = openAccounts();
+        } catch (IOException e) {
+            System.out.println("Failed to load the accounts: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        BankProtocol.metrics.publish("bank.metricsSeconds");
+        openAuditLog();
+
+        // Remote commands from every connection are carried out on these threads
+        final ExecutorService commands = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        // except logins, which get a few of their own so they cannot crowd the rest out
+        final ExecutorService logins = loginExecutor();
+
+        if (args.length == 2) {
+            listen(bankPort, accounts, commands, logins);
+            return;
+        }
+        
+        try {
+            /* Connect to port */
+            Socket socket = new Socket("localhost", bankPort);
+            socket.setTcpNoDelay(true);
+            final BankProtocol bankProtocol = new BankProtocol(socket.getInputStream(), socket.getOutputStream(), accounts, commands, logins);
+
+            /* Handle command-line input */
+            Thread local = consoleThread(bankProtocol);
+
+            /* Handle router input */
+            Thread remote = new Thread() {
+                public void run() {
+                    try {
+                        bankProtocol.processRemoteCommands();
+                    } catch (IOException e) {
+                        System.out.println("Failed to process remote input.");
+                        System.exit(0);
+                    }
+                }
+            };
+
+            local.start();
+            remote.start();
+
+            try {
+                local.join();
+                remote.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            /* Clean up */
+            try {
+                commands.shutdown();
+                logins.shutdown();
+                bankProtocol.close();
+                socket.close();
+            } catch(IOException e) {
+                System.out.println("Could not close socket.");
+                System.exit(0);
+            }
+
+        } catch (IOException e) {
+            System.out.println("Failed to connect to bank on port " + bankPort + ". Please try a different port.");
+            System.exit(0);
+        }
+    }
+
+    /**
+     * Loads the accounts from the newest snapshot, or else the account book, brings them up to date from the
+     * journal, and starts taking snapshots in the background.
+     *
+     * @return
+     * @throws IOException
+     */
+    private static AccountStore openAccounts() throws IOException {
+        Path snapshotFile = Paths.get(System.getProperty("bank.snapshot", "bank.snapshot"));
+        long snapshotSeconds = Long.parseLong(System.getProperty("bank.snapshotSeconds", "60"));
+        Journal journal = new Journal(Paths.get(System.getProperty("bank.journal", "bank.journal")));
+        AccountStore accounts = new PrimitiveAccountStore(journal);
+
+        long start = System.currentTimeMillis();
+        long journalPosition = Snapshot.load(snapshotFile, accounts);
+        if (journalPosition < 0) {
+            ShardRing ring = null;
+            int shard = -1;
+            String shards = System.getProperty("bank.shards");
+            if (shards != null) {
+                ring = ShardRing.parse(shards);
+                shard = ring.indexOf(System.getProperty("bank.shard", ""));
+                if (shard < 0)
+                    throw new IOException("bank.shard must name one of bank.shards.");
+            }
+
+            String book = System.getProperty("bank.accounts");
+            if (book != null) {
+                AccountBook.load(Paths.get(book), accounts, ring, shard);
+            } else {
+                // Create the three users' bank accounts
+                if (owns(ring, shard, "Alice"))
+                    accounts.add("Alice", 100, "0", "0");
+                if (owns(ring, shard, "Bob"))
+                    accounts.add("Bob", 100, "0", "0");
+                if (owns(ring, shard, "Carol"))
+                    accounts.add("Carol", 0, "0", "0");
+            }
+            journalPosition = 0;
+        }
+        int replayed = journal.replay(accounts, journalPosition);
+        System.out.println("Loaded the accounts and replayed " + replayed + " journal entries in " + (System.currentTimeMillis() - start) + " ms.");
+
+        if (!Files.exists(snapshotFile))
+            Snapshot.write(snapshotFile, accounts, journal);
+        Snapshot.schedule(snapshotFile, accounts, journal, snapshotSeconds);
+        return accounts;
+    }
+
+    /* Whether this Bank opens an account: always, unless it is one of several shards and the ring gives the account to another. */
+    private static boolean owns(ShardRing ring, int shard, String name) {
+        return ring == null || ring.shardOf(name) == shard;
+    }
+
+    /* A fixed set of threads for logins, with a bounded queue that turns logins away once it is full. */
+    private static ExecutorService loginExecutor() {
+        int threads = Integer.getInteger("bank.authThreads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+        int queue = Integer.getInteger("bank.authQueue", 1024);
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queue),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /* Accept upstream connections until the process is killed, one session thread each. */
+    private static void listen(int bankPort, final AccountStore accounts, final ExecutorService commands, final ExecutorService logins) throws InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException, IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException {
+        ServerSocket server = null;
+        try {
+            server = new ServerSocket(bankPort);
+        } catch (IOException e) {
+            System.out.println("Failed to listen on port " + bankPort + ". Please try a different port.");
+            System.exit(0);
+        }
+
+        consoleThread(new BankProtocol(accounts)).start();
+
+        ThreadFactory sessions = sessionThreadFactory();
+        while (true) {
+            final Socket socket;
+            try {
+                socket = server.accept();
+                socket.setTcpNoDelay(true);
+            } catch (IOException e) {
+                System.out.println("Failed to accept a connection.");
+                continue;
+            }
+
+            sessions.newThread(new Runnable() {
+                public void run() {
+                    try {
+                        BankProtocol session = new BankProtocol(socket.getInputStream(), socket.getOutputStream(), accounts, commands, logins);
+                        try {
+                            session.processRemoteCommands();
+                        } finally {
+                            session.close();
+                        }
+                    } catch (Exception e) {
+                        System.out.println("Session with " + socket.getRemoteSocketAddress() + " failed.");
+                    } finally {
+                        try {
+                            socket.close();
+                        } catch (IOException e) {
+                            System.out.println("Could not close socket.");
+                        }
+                    }
+                }
+            }).start();
+        }
+    }
+
+    /* Open the audit log, and write out what is left of it when the Bank shuts down. */
+    private static void openAuditLog() {
+        final AuditLog audit;
+        try {
+            audit = AuditLog.open("bank.audit", "bank.audit.csv", BankProtocol.metrics);
+        } catch (IOException e) {
+            System.out.println("Failed to open the audit log: " + e.getMessage());
+            System.exit(1);
+            return;
+        } catch (IllegalArgumentException e) {
+            System.out.println("bank.audit.overflow must be drop or block.");
+            System.exit(1);
+            return;
+        }
+        if (audit == null)
+            return;
+        BankProtocol.audit = audit;
+        Runtime.getRuntime().addShutdownHook(new Thread("bank-audit-close") {
+            public void run() {
+                try {
+                    audit.close();
+                } catch (IOException e) {
+                    System.err.println("Could not close the audit log: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    /* A thread that reads teller commands from the command line. */
+    private static Thread consoleThread(final BankProtocol bankProtocol) {
+        return new Thread() {
+            public void run() {
+                System.out.print(prompt);
+                BufferedReader stdIn = new BufferedReader(new InputStreamReader(System.in));
+
+                try{
+                    bankProtocol.processLocalCommands(stdIn, prompt);
+                } catch (IOException e) {
+                    System.out.println("Failed to process user input.");
+                    System.exit(0);
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns a factory for virtual threads when running on a JVM that has
+     * them (Java 21 and later), and for ordinary daemon threads otherwise. It
+     * is looked up reflectively so the Bank still builds for and runs on Java
+     * 17, and a Java 17 build gets virtual threads whenever it runs on 21 or
+     * later. Platform threads cost an OS thread and a stack each, about 1 MB
+     * reserved by default, so on 17 the OS's thread limit and memory cap a
+     * listening Bank at a few thousand connections; run it on Java 21 to go
+     * past that. Which kind is used is printed when the Bank starts listening.
+     *
+     * @return
+     */
+    static ThreadFactory sessionThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, "bank-session-", 0L);
+            ThreadFactory factory = (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+            System.out.println("Every session gets a virtual thread.");
+            return factory;
+        } catch (Exception e) {
+            System.out.println("This JVM has no virtual threads, so every session gets a platform thread of its own.");
+            return new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "bank-session");
+                    t.setDaemon(true);
+                    return t;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package atm;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A single account. The balance is guarded by the account's own lock, so
+ * updates are atomic without holding up any other account. Reading the balance
+ * normally takes no lock at all: it reads optimistically and only falls back to
+ * the read lock if an update got in the way. Given a Journal,
+ * the account records each new balance in it before releasing the lock, so the
+ * journal holds the changes to an account in the order they were made.
+ */
+
+public class BankAccount {
+	
+	private String name;
+	private int balance;
+	private final StampedLock lock = new StampedLock();
+	private final byte[] credentials;
+	private final Journal journal;
+	
+	public BankAccount(String name, int balance, String pin, String cardValue) {
+		this(name, balance, Credentials.hash(name, pin, cardValue), null);
+	}
+	
+	/* An account whose credentials are already hashed (see Credentials). */
+	public BankAccount(String name, int balance, byte[] credentials, Journal journal) {
+		this.name = name;
+		this.balance = balance;
+		this.credentials = credentials;
+		this.journal = journal;
+	}
+
+	public int getBalance() {
+		long stamp = lock.tryOptimisticRead();
+		int current = balance;
+		if(lock.validate(stamp))
+			return current;
+		stamp = lock.readLock();
+		try {
+			return balance;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+	
+	public boolean deposit(int additionalFunds) {
+		if(additionalFunds <= 0)
+			return false;
+		long stamp = lock.writeLock();
+		try {
+			if(balance + additionalFunds < balance) {
+				balance = Integer.MAX_VALUE;
+			} else
+				balance += additionalFunds;
+			if(journal != null)
+				journal.append(name, balance);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+		return true;
+	}
+	
+	public boolean withdraw(int amount) {
+		if(amount <= 0)
+			return false;
+		long stamp = lock.writeLock();
+		try {
+			if(balance >= amount) {
+				balance -= amount;
+				if(journal != null)
+					journal.append(name, balance);
+				return true;
+			}
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+		return false;
+	}
+
+	/**
+	 * Moves money to another account, atomically. Both locks are held for the
+	 * transfer, always taken in name order, so two transfers between the same
+	 * accounts in opposite directions cannot deadlock, and transfers between
+	 * unrelated accounts do not wait on each other. Both new balances go into
+	 * the journal as one record.
+	 *
+	 * @param to
+	 * @param amount
+	 * @return false if to is this account, the amount is not positive, the funds are insufficient or the
+	 *         receiving balance would overflow
+	 */
+	public boolean transferTo(BankAccount to, int amount) {
+		if(amount <= 0 || to == this)
+			return false;
+		BankAccount first = name.compareTo(to.name) <= 0 ? this : to, second = first == this ? to : this;
+		long firstStamp = first.lock.writeLock();
+		try {
+			long secondStamp = second.lock.writeLock();
+			try {
+				if(balance < amount || to.balance > Integer.MAX_VALUE - amount)
+					return false;
+				balance -= amount;
+				to.balance += amount;
+				if(journal != null)
+					journal.appendTransfer(name, balance, to.name, to.balance);
+				return true;
+			} finally {
+				second.lock.unlockWrite(secondStamp);
+			}
+		} finally {
+			first.lock.unlockWrite(firstStamp);
+		}
+	}
+
+	/* Sets the balance without journaling it, to bring the account back to a recorded state. */
+	public void restore(int balance) {
+		long stamp = lock.writeLock();
+		try {
+			this.balance = balance;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+	
+	byte[] getCredentials() {
+		return credentials;
+	}
+	
+	public boolean verify(String pinCandidate, String cardValueCandidate) {
+		return Credentials.matches(credentials, 0, name, pinCandidate, cardValueCandidate);
+	}
+	
+}
@@ -0,0 +1,562 @@
+package atm;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+
+/**
+ * A BankProtocol processes local and remote commands sent to the Bank and writes to
+ * or reads from the router as necessary. You can use whatever method you would like to
+ * read from and write to the router, but this is an example to get you started.
+ *
+ * Remote commands arrive either as text lines or as binary frames (see WireFormat), and
+ * each reply goes back in the same form as its request. A terminal asks for binary mode
+ * by sending MODE:BINARY; a Bank that understands it answers MODE:BINARY:OK. Replies are
+ * also secured in the same mode as their request (see EncryptionHelper.Mode), so terminals
+ * sealing with AES-GCM and older ones using CBC and HMAC can share a Bank. MODE:GCM lets a
+ * terminal check for GCM support before relying on it.
+ *
+ * A BATCH command carries as many operations as fit in one secured message, separated by
+ * BATCH_SEPARATOR, as in "BATCH:BALANCE:Alice;WITHDRAW:Bob:20". They are carried out in
+ * order, and the reply holds each operation's result in the same order, as in
+ * "BATCH:BALANCE:Alice:100;WITHDRAW:Bob:SUCCEED". A terminal syncing many operations
+ * at once then pays for the crypto and the round trip once.
+ *
+ * TRANSFER:<from>:<to>:<amount> moves money between two accounts atomically (see
+ * AccountStore.transfer), and answers TRANSFER:<from>:SUCCEED, INSUFFICIENT or FAIL.
+ *
+ * Every request is counted and timed in metrics (see Metrics): how long each kind
+ * of command takes, the time spent revealing and securing messages, and how many
+ * requests are turned away as malformed, unverified or replayed. Each one is also
+ * published to the audit log (see AuditLog) once its reply is sent, along with
+ * why it failed if it did; the request thread only hands the event over.
+ */
+
+public class BankProtocol implements Protocol {
+
+    // Longest message accepted from the router
+    private static final int MAX_MESSAGE_LENGTH = 64 * 1024;
+    // Route id of a request that did not come through the router
+    private static final int NO_ROUTE = -1;
+    // Separates the operations of a BATCH command, and their results in the reply
+    static final char BATCH_SEPARATOR = ';';
+    private static final String BATCH = "BATCH";
+
+    // Shared by every connection to this Bank, and published by Bank
+    static final Metrics metrics = new Metrics("Bank");
+    private static final String[] COMMANDS = {"AUTH", "BALANCE", "WITHDRAW", "TRANSFER", BATCH, "MODE"};
+    // Time spent carrying out each command in COMMANDS, and then any other command
+    private static final Histogram[] commandTimes = new Histogram[COMMANDS.length + 1];
+    private static final Histogram revealTimes = metrics.histogram("reveal"), secureTimes = metrics.histogram("secure");
+    private static final LongAdder malformed = metrics.counter("rejected.malformed");
+    private static final LongAdder unverified = metrics.counter("rejected.verification");
+    private static final LongAdder replays = metrics.counter("rejected.replay");
+    private static final LongAdder authBusy = metrics.counter("rejected.authBusy");
+    // Shared by every connection to this Bank, and opened by Bank; null when there is none
+    static volatile AuditLog audit;
+    static {
+    	for(int i = 0; i < COMMANDS.length; i++)
+    		commandTimes[i] = metrics.histogram("command." + COMMANDS[i].toLowerCase());
+    	commandTimes[COMMANDS.length] = metrics.histogram("command.other");
+    }
+
+    private OutputStream writer;
+    // Held while writing a reply, by whichever thread carried out the request
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private FrameReader reader;
+    private byte[] aesKeyRaw = {0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0};
+    private byte[] macKeyRaw = {0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0};
+    private EncryptionHelper encrypter;
+    // Replay state, shared by every connection to this Bank so that a request cannot be replayed on a different
+    // one. Requests with a request ID are checked against the windows, and requests without one against
+    // lastCommandTime, the time of the newest of them accepted on any connection.
+    private static final ReplayWindows replayWindows = new ReplayWindows(EncryptionHelper.ACCEPTABLE_TIME_RANGE_MILLIS);
+    private static final AtomicLong lastCommandTime = new AtomicLong();
+    private AccountStore accounts;
+    private Executor executor, authExecutor;
+
+    /*
+     * Remote and local commands run on different threads, and remote commands are carried out on the
+     * executor. None of them takes a lock here: the account store makes each balance update atomic, and the
+     * replay windows and lastCommandTime are safe to share.
+     *
+     * Logins, which are slow on purpose once PINs are hashed, are carried out on authExecutor instead, so a
+     * burst of them does not hold up balance and withdrawal traffic. When authExecutor turns a login away,
+     * because its queue is full, the terminal gets AUTH:<name>:BUSY straight back.
+     */
+    public BankProtocol(InputStream inputStream, OutputStream outputStream, AccountStore accounts, Executor executor, Executor authExecutor) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException {
+        writer = outputStream;
+        reader = new FrameReader(inputStream, MAX_MESSAGE_LENGTH);
+        encrypter = new EncryptionHelper(aesKeyRaw, macKeyRaw);
+        this.accounts = accounts;
+        this.executor = executor;
+        this.authExecutor = authExecutor;
+    }
+
+    /* A protocol that carries out logins on the same executor as every other command. */
+    public BankProtocol(InputStream inputStream, OutputStream outputStream, AccountStore accounts, Executor executor) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException {
+        this(inputStream, outputStream, accounts, executor, executor);
+    }
+
+    /* A protocol that carries out each remote command on the thread that read it, one at a time. */
+    public BankProtocol(InputStream inputStream, OutputStream outputStream, AccountStore accounts) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException {
+        this(inputStream, outputStream, accounts, new Executor() {
+        	public void execute(Runnable command) {
+        		command.run();
+        	}
+        });
+    }
+
+    /* A protocol that only serves the command line, for a Bank that listens for its connections. */
+    public BankProtocol(AccountStore accounts) {
+        this.accounts = accounts;
+    }
+
+    /* One remote command, and what is needed to send its reply back the way it came. */
+    private static class Request {
+    	boolean binary;
+    	EncryptionHelper.Mode mode = EncryptionHelper.Mode.CBC_HMAC;
+    	int route = NO_ROUTE;
+    	long received, time, requestId = EncryptionHelper.NO_REQUEST_ID;
+    	String clear;
+    	// Why the request failed, for the audit log
+    	String detail;
+    }
+
+    /**
+     * Process commands sent through the router. Each command is verified and checked for replay here, in the
+     * order it arrived, and then carried out on the executor. Replies are written as commands complete, so a
+     * client that tags its requests with IDs may get them back in a different order than it sent them.
+     * 
+     * @throws IOException
+     */
+    public void processRemoteCommands() throws IOException {
+        while (reader.next()) {
+        	final Request request = new Request();
+        	request.received = System.nanoTime();
+        	try {
+        		readRequest(request);
+        	} catch (Exception e) {
+        		request.detail = "Malformed request: " + e;
+        		malformed.increment();
+        		fail(request);
+        		continue;
+        	}
+        	if(request.clear == null) {
+        		// A bad MAC or tag, or a time too far off, as the detail says
+        		unverified.increment();
+        		fail(request);
+        		continue;
+        	}
+        	if(isReplay(request)) {
+        		request.detail = "Replayed";
+        		replays.increment();
+        		fail(request);
+        		continue;
+        	}
+        	
+        	Runnable command = new Runnable() {
+        		public void run() {
+        			try {
+        				String result = processRemoteCommand(request.clear);
+        				replyWhenDurable(request, result);
+        			} catch (Exception e) {
+        				request.detail = "Could not carry out the request: " + e;
+        				fail(request);
+        			}
+        		}
+        	};
+        	if(!isLogin(request.clear)) {
+        		executor.execute(command);
+        		continue;
+        	}
+        	try {
+        		authExecutor.execute(command);
+        	} catch (RejectedExecutionException e) {
+        		authBusy.increment();
+        		busy(request);
+        	}
+        }
+    }
+
+    /* Whether a command is a login, or a batch with one among its operations. */
+    private static boolean isLogin(String clear) {
+    	if(isCommand(clear, 0, "AUTH"))
+    		return true;
+    	if(!isCommand(clear, 0, BATCH))
+    		return false;
+    	for(int start = BATCH.length() + 1; start > 0; start = clear.indexOf(BATCH_SEPARATOR, start) + 1) {
+    		if(isCommand(clear, start, "AUTH"))
+    			return true;
+    	}
+    	return false;
+    }
+
+    /* Turn a login away without trying it, so the terminal can try again later. */
+    private void busy(Request request) {
+    	String clear = request.clear;
+    	int end = clear.indexOf(':', 5);
+    	try {
+    		if(clear.startsWith("AUTH:") && end > 5)
+    			reply(request, "AUTH:" + clear.substring(5, end) + ":BUSY");
+    		else
+    			reply(request, "FAIL");
+    	} catch (Exception e) {
+    		audit(request, "FAIL", "Could not send the reply: " + e);
+    	}
+    }
+
+    /* Pull the current frame apart and try to get the unobfuscated message sent by the ATM. */
+    private void readRequest(Request request) throws InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException, IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException {
+    	request.binary = reader.isBinary();
+    	long start = System.nanoTime();
+    	EncryptionHelper.Revealed revealed;
+    	if(request.binary) {
+    		ByteBuffer frame = reader.frame();
+    		request.mode = EncryptionHelper.modeOf(frame);
+    		request.route = WireFormat.routeOf(frame);
+    		request.time = WireFormat.timeOf(frame);
+    		request.requestId = WireFormat.requestIdOf(frame);
+    		revealed = encrypter.revealFrame(frame);
+    	} else {
+    		// Messages forwarded by the Router carry the terminal's route tag, which goes back on the reply
+    		String input = reader.line();
+    		int sep = input.indexOf(Router.ROUTE_SEPARATOR);
+    		if(sep >= 0)
+    			request.route = Integer.parseInt(input.substring(0, sep));
+    		String command = input.substring(sep + 1);
+    		request.mode = EncryptionHelper.modeOf(command);
+    		request.requestId = EncryptionHelper.requestIdOf(command);
+    		request.time = EncryptionHelper.timeOf(command);
+    		revealed = encrypter.revealMessage(command);
+    	}
+    	request.clear = revealed.clear;
+    	if(!revealed.isAccepted())
+    		request.detail = revealed.rejection.description;
+    	revealTimes.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Secure a reply in the same form as its request and write it. Replies may come from several threads at
+     * once, so each one is written whole.
+     * 
+     * @param request
+     * @param message
+     */
+    private void reply(Request request, String message) throws IOException, InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException, IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException {
+    	ByteBuffer out;
+    	long start = System.nanoTime();
+    	if(request.binary) {
+    		out = encrypter.secureFrame(request.mode, request.requestId, Math.max(request.route, 0), message);
+    	} else {
+    		String line = encrypter.secureMessage(request.mode, request.requestId, message) + "\n";
+    		if(request.route != NO_ROUTE)
+    			line = request.route + "" + Router.ROUTE_SEPARATOR + line;
+    		out = ByteBuffer.wrap(line.getBytes());
+    	}
+    	secureTimes.record(System.nanoTime() - start);
+    	// Straight to the stream under a ReentrantLock: a virtual thread blocked on the socket then pins no carrier,
+    	// as it would inside a monitor, such as the one a channel from Channels.newChannel() takes around each write
+    	writeLock.lock();
+    	try {
+    		writer.write(out.array(), out.arrayOffset() + out.position(), out.remaining());
+    	} finally {
+    		writeLock.unlock();
+    	}
+    	audit(request, message, request.detail);
+    }
+
+    /* Hand what became of a request to the audit log. Without one, nothing is reported: nothing here may block. */
+    private static void audit(Request request, String reply, String detail) {
+    	audit(request.route == NO_ROUTE ? AuditLog.DIRECT : request.route, request.clear, reply, request.received, detail);
+    }
+
+    private static void audit(int terminal, String request, String reply, long received, String detail) {
+    	AuditLog log = audit;
+    	if(log != null)
+    		log.publish(terminal, request, reply, System.nanoTime() - received, detail);
+    }
+
+    /*
+     * Reply once whatever the command changed is durable, so a terminal never hands out cash for a withdrawal
+     * that a restart would undo. Changes from many requests are made durable together, and the reply is written
+     * from the executor rather than from the thread that made them durable.
+     */
+    private void replyWhenDurable(final Request request, final String message) throws IOException, InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException, IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException {
+    	CompletableFuture<Void> durable = accounts.sync();
+    	if(durable.isDone() && !durable.isCompletedExceptionally()) {
+    		reply(request, message);
+    		return;
+    	}
+    	durable.whenCompleteAsync(new BiConsumer<Void, Throwable>() {
+    		public void accept(Void done, Throwable failure) {
+    			if(failure != null) {
+    				request.detail = "Could not make the change durable: " + failure;
+    				fail(request);
+    				return;
+    			}
+    			try {
+    				reply(request, message);
+    			} catch (Exception e) {
+    				request.detail = "Could not send the reply: " + e;
+    				fail(request);
+    			}
+    		}
+    	}, executor);
+    }
+
+    /* Tell the client that its request could not be carried out. */
+    private void fail(Request request) {
+    	try {
+    		reply(request, "FAIL");
+    	} catch (Exception e) {
+    		audit(request, "FAIL", "Could not send the reply: " + e);
+    	}
+    }
+
+    /* Process commands from the command line. */
+    public void processLocalCommands(BufferedReader stdIn, String prompt) throws IOException {
+        String userInput;
+
+        while((userInput = stdIn.readLine()) != null ) {
+            processLocalCommand(userInput);
+            System.out.print(prompt);
+        }
+
+        stdIn.close();
+    }
+
+    /**
+     * Returns true if the request is a replay. Only called from the thread reading remote commands, in arrival
+     * order, and only for requests that have already been verified. Requests with a request ID are checked
+     * against the sliding window of their session (see ReplayWindows), so terminals never hold each other up.
+     * Requests without one must be newer than every other request without one, on any connection, so two legacy
+     * terminals sending in the same millisecond turn one of them away.
+     * 
+     * @param request
+     * @return
+     */
+    private boolean isReplay(Request request) {
+    	if(request.requestId != EncryptionHelper.NO_REQUEST_ID)
+    		return !replayWindows.accept(request.requestId, request.time);
+    	
+    	// Make sure the time is valid before proceeding. That is, if this command was made at the same time or before
+    	// the previous valid command, then this is a replay attack and must be prevented.
+    	long last;
+    	do {
+    		last = lastCommandTime.get();
+    		if(request.time <= last)
+    			return true;
+    	} while(!lastCommandTime.compareAndSet(last, request.time));
+    	return false;
+    }
+
+    /* Carry out a verified remote command and return the reply to send back, before it is secured. */
+    String processRemoteCommand(String clear) {
+    	long start = System.nanoTime();
+    	String reply = clear.startsWith(BATCH + ":") ? processBatch(clear.substring(BATCH.length() + 1)) : processOperation(clear);
+    	commandTimes[commandOf(clear)].record(System.nanoTime() - start);
+    	return reply;
+    }
+    
+    /* The index in COMMANDS of the command a message starts with, or COMMANDS.length for anything else. */
+    private static int commandOf(String clear) {
+    	for(int i = 0; i < COMMANDS.length; i++) {
+    		if(isCommand(clear, 0, COMMANDS[i]))
+    			return i;
+    	}
+    	return COMMANDS.length;
+    }
+    
+    /* Whether the operation starting at offset at in clear is the given command, followed by its arguments. */
+    private static boolean isCommand(String clear, int at, String command) {
+    	int end = at + command.length();
+    	return clear.length() > end && clear.charAt(end) == ':' && clear.startsWith(command, at);
+    }
+    
+    /* Carry out each operation of a batch in turn, and collect their results. An operation that breaks fails alone. */
+    private String processBatch(String operations) {
+    	StringBuilder results = new StringBuilder(BATCH);
+    	char separator = ':';
+    	int start = 0;
+    	while(start <= operations.length()) {
+    		int end = operations.indexOf(BATCH_SEPARATOR, start);
+    		if(end < 0)
+    			end = operations.length();
+    		String operation = operations.substring(start, end);
+    		
+    		String result;
+    		if(operation.startsWith(BATCH + ":") || operation.startsWith("MODE:")) {
+    			// Batches do not nest, and only whole connections change mode
+    			result = "FAIL";
+    		} else {
+    			try {
+    				result = processOperation(operation);
+    			} catch (RuntimeException e) {
+    				result = "FAIL";
+    			}
+    		}
+    		results.append(separator).append(result);
+    		separator = BATCH_SEPARATOR;
+    		start = end + 1;
+    	}
+    	return results.toString();
+    }
+    
+    /* Carry out a single operation and return its result. */
+    private String processOperation(String clear) {
+    	
+    	// Split this clear message into chunks to start handling it
+    	String[] parts = clear.split(":");
+    	String action = parts[0], user = parts[1], pin, cardSecret, amount;
+    	int intAmount;
+    	
+    	// Do the specified action
+    	if(action.equals("MODE")) {
+    		// The terminal wants to switch to binary frames or GCM, both of which this Bank understands
+    		if(user.equals("BINARY"))
+    			return "MODE:BINARY:OK";
+    		if(user.equals("GCM"))
+    			return "MODE:GCM:OK";
+    		
+    	} else if(action.equals("AUTH")) {
+    		pin = parts[2]; cardSecret = parts[3];
+    		if(accounts.verify(user, pin, cardSecret))
+    			return "AUTH:" + user + ":PASS";
+    		else
+    			return "AUTH:" + user + ":FAIL";
+    		
+    	} else if (action.equals("BALANCE")) {
+    		int balance = accounts.getBalance(user);
+    		if(balance >= 0)
+    			return "BALANCE:" + user + ":" + Integer.toString(balance);
+    		else
+    			return "FAIL";
+    		
+    	} else if (action.equals("WITHDRAW")) {
+    		amount = parts[2];
+    		if(accounts.contains(user)) {
+    			try {
+    				intAmount = Integer.parseInt(amount);
+    				if(intAmount <= 0)
+    					return "WITHDRAW:" + user + ":FAIL";
+    				else if(accounts.withdraw(user, intAmount))
+	    				return "WITHDRAW:" + user + ":SUCCEED";
+	    			else
+	    				return "WITHDRAW:" + user + ":INSUFFICIENT";
+    			} catch (NumberFormatException e) {
+    				return "WITHDRAW:" + user + ":FAIL";
+    			}
+    		} else
+				return "FAIL";
+    		
+    	} else if (action.equals("TRANSFER")) {
+    		if(parts.length != 4 || !accounts.contains(user) || !accounts.contains(parts[2]))
+    			return "FAIL";
+    		try {
+    			intAmount = Integer.parseInt(parts[3]);
+    		} catch (NumberFormatException e) {
+    			return "TRANSFER:" + user + ":FAIL";
+    		}
+    		if(intAmount <= 0 || user.equals(parts[2]))
+    			return "TRANSFER:" + user + ":FAIL";
+    		else if(accounts.transfer(user, parts[2], intAmount))
+    			return "TRANSFER:" + user + ":SUCCEED";
+    		else
+    			return "TRANSFER:" + user + ":INSUFFICIENT";
+    		
+    	}
+    	return "FAIL";
+    }
+
+    /* Process user input. Balance checks and deposits are audited as coming from the console. */
+    private void processLocalCommand(String command) {
+    	long received = System.nanoTime();
+    	// Split the command into parts that we can easily use in executing the command
+    	String[] parts = command.split(" ");
+    	
+    	// No valid command will have fewer than two elements in parts[]
+    	if(parts.length < 2) {
+    		System.out.println();
+    		return;
+    	}
+    	
+    	// Values necessary for either action
+    	String action = parts[0];
+    	String user = parts[1];
+    	
+    	// Don't do anything if the user isn't one of the three we support
+    	if(!accounts.contains(user)) {
+    		System.out.println();
+    		return;
+    	}
+
+    	// Perform the two valid actions and print an error for anything else
+    	if(action.equals("balance")) {
+		if(parts.length != 2) {
+			System.out.println();
+			return;
+		}
+    		int balance = accounts.getBalance(user);
+    		audit(AuditLog.CONSOLE, "BALANCE:" + user, "BALANCE:" + user + ":" + balance, received, null);
+    		System.out.println("$" + balance);
+    		
+    	} else if(action.equals("deposit")) {
+    		// Output an error if an amount is not provided
+    		if(parts.length != 3) {
+    			System.out.println();
+    			return;
+    		}
+    		
+    		// Output an error if the amount is not a number
+    		int amount;
+    		try {
+    			amount = Integer.parseInt(parts[2]);
+    			if(amount <= 0) throw new NumberFormatException();
+    		} catch (NumberFormatException e) {
+    			System.out.println();
+    			return;
+    		}
+    		
+    		// We are good to deposit, and report it once it is durable
+    		accounts.deposit(user, amount);
+    		try {
+    			accounts.sync().join();
+    		} catch (CompletionException e) {
+    			audit(AuditLog.CONSOLE, "DEPOSIT:" + user + ":" + amount, "DEPOSIT:" + user + ":FAIL", received, "Could not make the change durable: " + e.getCause());
+    			System.out.println("The deposit could not be recorded.");
+    			return;
+    		}
+    		audit(AuditLog.CONSOLE, "DEPOSIT:" + user + ":" + amount, "DEPOSIT:" + user + ":SUCCEED", received, null);
+    		System.out.println("$" + amount + " added to " + user + "'s account");
+    	} else {
+    		System.out.println();
+    		return;
+    	}
+    	
+    	// Extra space for clarity in the command line
+    	System.out.println();
+    }
+
+    /* Clean up all open streams. */
+    public void close() throws IOException {
+        if (reader != null)
+            reader.close();
+        if (writer != null)
+            writer.close();
+    }
+}
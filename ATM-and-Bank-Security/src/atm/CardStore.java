@@ -0,0 +1,207 @@
+package atm;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The card secrets an ATM reads when a user begins a session, one per
+ * "<name>.card" file whose first line is the secret. Rather than open a file
+ * on every login, the store loads the cards in its directory once, keeps up
+ * to a fixed number of them in memory, dropping the least recently used when
+ * it is full, and reads any other card the first time it is asked for.
+ *
+ * A background thread watches the directory, so a card that is written,
+ * changed or removed is picked up without waiting for a restart.
+ *
+ * The directory and the number of cards kept are set with system properties:
+ *     atm.cards       the directory holding the cards, the working directory by default
+ *     atm.cardCache   cards kept in memory, 10000 by default
+ */
+
+public class CardStore {
+
+    private static final String SUFFIX = ".card";
+    private static CardStore shared;
+
+    private final Path directory;
+    /* Guarded by this. In order of use, least recently used first. */
+    private final Map<String, String> cards;
+    /* Guarded by this. Changes the watcher has seen, so that a card read before one is not cached after it. */
+    private long changes;
+
+    /**
+     * Loads up to capacity cards from the directory, and starts watching it.
+     *
+     * @param directory
+     * @param capacity
+     * @throws IOException if the directory cannot be read
+     */
+    public CardStore(Path directory, final int capacity) throws IOException {
+        this.directory = directory.toAbsolutePath().normalize();
+        this.cards = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > capacity;
+            }
+        };
+
+        DirectoryStream<Path> files = Files.newDirectoryStream(this.directory, "*" + SUFFIX);
+        try {
+            for (Path file : files) {
+                if (cards.size() >= capacity)
+                    break;
+                String secret = read(file);
+                if (secret != null)
+                    cards.put(nameOf(file), secret);
+            }
+        } finally {
+            files.close();
+        }
+        watch();
+    }
+
+    /* The store for the directory and size given by the system properties, opened the first time it is asked for. */
+    public static synchronized CardStore shared() throws IOException {
+        if (shared == null)
+            shared = new CardStore(Paths.get(System.getProperty("atm.cards", ".")), Integer.getInteger("atm.cardCache", 10000));
+        return shared;
+    }
+
+    /**
+     * Returns the secret on the user's card, or null if there is no card.
+     *
+     * @param name
+     * @return
+     */
+    public String get(String name) {
+        long seen;
+        synchronized (this) {
+            String secret = cards.get(name);
+            if (secret != null)
+                return secret;
+            seen = changes;
+        }
+
+        Path file = fileOf(name);
+        if (file == null)
+            return null;
+        String secret;
+        try {
+            secret = read(file);
+        } catch (IOException e) {
+            return null;
+        }
+        if (secret != null) {
+            synchronized (this) {
+                // The file may have changed while it was read, and the watcher, finding no card in memory to
+                // update, left it to the next read. Then this read may be stale, so it is returned but not kept.
+                if (changes == seen)
+                    cards.put(name, secret);
+            }
+        }
+        return secret;
+    }
+
+    /* The card file for a name, or null for a name that would point outside the directory. */
+    private Path fileOf(String name) {
+        if (name.isEmpty() || name.indexOf('/') >= 0 || name.indexOf('\\') >= 0 || name.equals("..") || name.equals("."))
+            return null;
+        Path file = directory.resolve(name + SUFFIX).normalize();
+        return directory.equals(file.getParent()) ? file : null;
+    }
+
+    private static String nameOf(Path file) {
+        String fileName = file.getFileName().toString();
+        return fileName.substring(0, fileName.length() - SUFFIX.length());
+    }
+
+    /* The first line of a card file, or null if it has none or is gone. */
+    private static String read(Path file) throws IOException {
+        BufferedReader in;
+        try {
+            in = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        try {
+            return in.readLine();
+        } finally {
+            in.close();
+        }
+    }
+
+    /* Keep cached cards in step with their files. Cards not in memory are read when next asked for anyway. */
+    private void watch() throws IOException {
+        final WatchService watcher = directory.getFileSystem().newWatchService();
+        directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+
+        Thread thread = new Thread("card-watcher") {
+            public void run() {
+                try {
+                    while (true) {
+                        WatchKey key = watcher.take();
+                        for (WatchEvent<?> event : key.pollEvents()) {
+                            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                                // Some changes were missed; start over from the files
+                                synchronized (CardStore.this) {
+                                    ++changes;
+                                    cards.clear();
+                                }
+                                continue;
+                            }
+                            String fileName = event.context().toString();
+                            if (fileName.endsWith(SUFFIX))
+                                changed(nameOf(Paths.get(fileName)), event.kind() == StandardWatchEventKinds.ENTRY_DELETE);
+                        }
+                        if (!key.reset()) {
+                            System.err.println("Stopped watching " + directory + " for card changes.");
+                            return;
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // Only asked of a daemon thread while the JVM shuts down
+                } catch (ClosedWatchServiceException e) {
+                    // Same
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void changed(String name, boolean deleted) {
+        synchronized (this) {
+            ++changes;
+            // Cards that are not in memory are read fresh the next time they are asked for
+            if (deleted || !cards.containsKey(name)) {
+                cards.remove(name);
+                return;
+            }
+        }
+        Path file = fileOf(name);
+        String secret = null;
+        try {
+            secret = file == null ? null : read(file);
+        } catch (IOException e) {
+            System.err.println("Could not read the card for " + name + ": " + e.getMessage());
+        }
+        synchronized (this) {
+            if (secret == null)
+                cards.remove(name);
+            else
+                cards.put(name, secret);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package atm;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An AccountStore backed by a ConcurrentHashMap of BankAccount objects. Lookups
+ * never lock, and each BankAccount guards its own balance, so only requests for
+ * the same account are ever serialized. With a Journal, every balance change
+ * is written ahead to it; without one, changes only live in memory.
+ */
+
+public class ConcurrentAccountStore implements AccountStore {
+
+	private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+
+	private final ConcurrentHashMap<String, BankAccount> accounts = new ConcurrentHashMap<String, BankAccount>();
+	private final Journal journal;
+
+	public ConcurrentAccountStore() {
+		this(null);
+	}
+
+	public ConcurrentAccountStore(Journal journal) {
+		this.journal = journal;
+	}
+
+	public void add(String name, int balance, String pin, String cardValue) {
+		add(name, balance, Credentials.hash(name, pin, cardValue));
+	}
+
+	public void add(String name, int balance, byte[] credentials) {
+		accounts.put(name, new BankAccount(name, balance, credentials, journal));
+	}
+
+	public boolean contains(String name) {
+		return accounts.containsKey(name);
+	}
+
+	public int getBalance(String name) {
+		BankAccount account = accounts.get(name);
+		return account == null ? -1 : account.getBalance();
+	}
+
+	public boolean verify(String name, String pinCandidate, String cardValueCandidate) {
+		BankAccount account = accounts.get(name);
+		return account != null && account.verify(pinCandidate, cardValueCandidate);
+	}
+
+	public boolean deposit(String name, int amount) {
+		BankAccount account = accounts.get(name);
+		return account != null && account.deposit(amount);
+	}
+
+	public boolean withdraw(String name, int amount) {
+		BankAccount account = accounts.get(name);
+		return account != null && account.withdraw(amount);
+	}
+
+	public boolean transfer(String from, String to, int amount) {
+		BankAccount source = accounts.get(from), destination = accounts.get(to);
+		return source != null && destination != null && source.transferTo(destination, amount);
+	}
+
+	public void restore(String name, int balance) {
+		BankAccount account = accounts.get(name);
+		if(account != null)
+			account.restore(balance);
+	}
+
+	public CompletableFuture<Void> sync() {
+		return journal == null ? DONE : journal.sync();
+	}
+
+	public void forEach(Visitor visitor) throws IOException {
+		for(BankAccount account : accounts.values())
+			visitor.visit(account.getName(), account.getBalance(), account.getCredentials());
+	}
+
+}
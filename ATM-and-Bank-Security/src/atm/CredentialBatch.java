@@ -0,0 +1,125 @@
+package atm;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Opens accounts whose credentials arrive as plain text, as they do from an
+ * account book or a version 1 snapshot, hashing them a batch at a time on
+ * every core. Hashing is slow on purpose (see Credentials): about 2.4 ms an
+ * account at the default 10000 iterations, so a million accounts take some
+ * 40 minutes on one core, and about that divided by the number of cores here.
+ * Accounts are still opened one at a time, in the order they were added.
+ *
+ * Accounts whose credentials are already hashed may be added too, and keep
+ * their place in the order.
+ */
+
+final class CredentialBatch {
+
+	private static final int SIZE = 4096;
+	/* Fewer accounts than this are hashed on the calling thread. */
+	private static final int MIN_PER_THREAD = 16;
+
+	private final AccountStore accounts;
+	private final int threadCount = Runtime.getRuntime().availableProcessors();
+	private final String[] names = new String[SIZE], pins = new String[SIZE], cardValues = new String[SIZE];
+	private final int[] balances = new int[SIZE];
+	private final byte[][] credentials = new byte[SIZE][];
+	private int count, plain;
+	private ExecutorService threads;
+
+	CredentialBatch(AccountStore accounts) {
+		this.accounts = accounts;
+	}
+
+	void add(String name, int balance, String pin, String cardValue) throws IOException {
+		pins[count] = pin;
+		cardValues[count] = cardValue;
+		++plain;
+		add(name, balance, (byte[]) null);
+	}
+
+	void add(String name, int balance, byte[] hashed) throws IOException {
+		names[count] = name;
+		balances[count] = balance;
+		credentials[count] = hashed;
+		if(++count == SIZE)
+			flush();
+	}
+
+	/**
+	 * Hashes the credentials still waiting and opens their accounts.
+	 *
+	 * @throws IOException if interrupted while the credentials were hashed
+	 */
+	void flush() throws IOException {
+		hash();
+		for(int i = 0; i < count; i++) {
+			accounts.add(names[i], balances[i], credentials[i]);
+			names[i] = pins[i] = cardValues[i] = null;
+			credentials[i] = null;
+		}
+		count = plain = 0;
+	}
+
+	/* Stops the hashing threads. Accounts not flushed yet are never opened. */
+	void close() {
+		if(threads != null)
+			threads.shutdownNow();
+	}
+
+	/* Hash every plain-text entry of the batch, split into a contiguous range per thread. */
+	private void hash() throws IOException {
+		if(plain == 0)
+			return;
+		int parts = Math.min(threadCount, plain / MIN_PER_THREAD);
+		if(parts <= 1) {
+			hash(0, count);
+			return;
+		}
+		if(threads == null)
+			threads = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "credential-hashing");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		List<Callable<Void>> ranges = new ArrayList<Callable<Void>>(parts);
+		for(int part = 0; part < parts; part++) {
+			final int from = (int) ((long) count * part / parts), to = (int) ((long) count * (part + 1) / parts);
+			ranges.add(new Callable<Void>() {
+				public Void call() {
+					hash(from, to);
+					return null;
+				}
+			});
+		}
+		try {
+			for(Future<Void> range : threads.invokeAll(ranges))
+				range.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while hashing credentials.");
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	private void hash(int from, int to) {
+		for(int i = from; i < to; i++)
+			if(credentials[i] == null)
+				credentials[i] = Credentials.hash(names[i], pins[i], cardValues[i]);
+	}
+}
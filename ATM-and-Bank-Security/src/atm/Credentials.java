@@ -0,0 +1,206 @@
+package atm;
+
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Account credentials, kept as a salted and stretched hash of the account
+ * name, PIN and card value rather than as the strings themselves: PBKDF2 with
+ * HmacSHA256, over a random salt of each account's own. A stolen snapshot can
+ * then neither be looked up in precomputed tables nor have one guess tried
+ * against every account at once, and every guess costs the iterations.
+ *
+ * Every record is HASH_LENGTH bytes: the iteration count as an int, the salt
+ * and the derived key. The count is read back from the record, so changing
+ * bank.pbkdf2Iterations, 10000 by default, only affects credentials hashed
+ * afterwards. A count of 0 marks the unsalted SHA-256 hash that version 2
+ * snapshots held (see Snapshot), which is still checked as it was.
+ *
+ * Checking a candidate allocates no more than the HMAC key: each thread hashes
+ * into its own scratch buffers with its own Mac.
+ */
+
+public final class Credentials {
+
+	static final int SALT_LENGTH = 16;
+	static final int KEY_LENGTH = 32;
+	static final int HASH_LENGTH = 4 + SALT_LENGTH + KEY_LENGTH;
+	private static final int SALT_OFFSET = 4, KEY_OFFSET = SALT_OFFSET + SALT_LENGTH;
+	private static final int ITERATIONS = Math.max(1, Integer.getInteger("bank.pbkdf2Iterations", 10000));
+	private static final String MAC = "HmacSHA256", LEGACY_DIGEST = "SHA-256";
+	/* PBKDF2's block index; the derived key is one HMAC output long, so there is only block 1. */
+	private static final byte[] FIRST_BLOCK = {0, 0, 0, 1};
+
+	private static final SecureRandom salts = new SecureRandom();
+
+	private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
+	/* One thread's MAC, digest and buffers. */
+	private static class Scratch {
+		final Mac mac;
+		final MessageDigest digest;
+		byte[] input = new byte[256];
+		final byte[] block = new byte[KEY_LENGTH];
+		final byte[] key = new byte[KEY_LENGTH];
+
+		Scratch() {
+			try {
+				mac = Mac.getInstance(MAC);
+				digest = MessageDigest.getInstance(LEGACY_DIGEST);
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(MAC + " or " + LEGACY_DIGEST + " is not available", e);
+			}
+		}
+	}
+
+	private Credentials() {
+	}
+
+	/**
+	 * Returns a record of an account's credentials, hashed with a fresh salt.
+	 *
+	 * @param name
+	 * @param pin
+	 * @param cardValue
+	 * @return
+	 */
+	static byte[] hash(String name, String pin, String cardValue) {
+		byte[] record = new byte[HASH_LENGTH];
+		byte[] salt = new byte[SALT_LENGTH];
+		salts.nextBytes(salt);
+		putInt(record, 0, ITERATIONS);
+		System.arraycopy(salt, 0, record, SALT_OFFSET, SALT_LENGTH);
+		Scratch s = scratch.get();
+		int length = password(s, name, pin, cardValue);
+		derive(s, length, record, 0, record, KEY_OFFSET);
+		return record;
+	}
+
+	/**
+	 * Returns a record holding an unsalted SHA-256 hash of the kind version 2
+	 * snapshots stored.
+	 *
+	 * @param unsalted
+	 * @return
+	 */
+	static byte[] fromUnsalted(byte[] unsalted) {
+		byte[] record = new byte[HASH_LENGTH];
+		System.arraycopy(unsalted, 0, record, KEY_OFFSET, KEY_LENGTH);
+		return record;
+	}
+
+	/**
+	 * Returns whether the candidate PIN and card value hash to the credentials
+	 * stored at offset in stored.
+	 *
+	 * @param stored
+	 * @param offset
+	 * @param name
+	 * @param pinCandidate
+	 * @param cardValueCandidate
+	 * @return
+	 */
+	static boolean matches(byte[] stored, int offset, String name, String pinCandidate, String cardValueCandidate) {
+		Scratch s = scratch.get();
+		byte[] candidate = s.key;
+		int length = password(s, name, pinCandidate, cardValueCandidate);
+		if(getInt(stored, offset) == 0) {
+			s.digest.update(s.input, 0, length);
+			Arrays.fill(s.input, 0, length, (byte) 0);
+			try {
+				s.digest.digest(candidate, 0, KEY_LENGTH);
+			} catch (DigestException e) {
+				throw new IllegalStateException(e);
+			}
+		} else {
+			derive(s, length, stored, offset, candidate, 0);
+		}
+		int difference = 0;
+		for(int i = 0; i < KEY_LENGTH; i++)
+			difference |= candidate[i] ^ stored[offset + KEY_OFFSET + i];
+		return difference == 0;
+	}
+
+	/*
+	 * PBKDF2 (RFC 8018) over the password in the scratch input, with the salt and iteration count of the record
+	 * at recordOffset, into out at offset. The password is wiped from the scratch input afterwards.
+	 */
+	private static void derive(Scratch s, int passwordLength, byte[] record, int recordOffset, byte[] out, int offset) {
+		int iterations = getInt(record, recordOffset);
+		Mac mac = s.mac;
+		byte[] block = s.block;
+		try {
+			mac.init(new SecretKeySpec(s.input, 0, passwordLength, MAC));
+			mac.update(record, recordOffset + SALT_OFFSET, SALT_LENGTH);
+			mac.update(FIRST_BLOCK);
+			mac.doFinal(block, 0);
+			System.arraycopy(block, 0, out, offset, KEY_LENGTH);
+			for(int i = 1; i < iterations; i++) {
+				mac.update(block, 0, KEY_LENGTH);
+				mac.doFinal(block, 0);
+				for(int j = 0; j < KEY_LENGTH; j++)
+					out[offset + j] ^= block[j];
+			}
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		} finally {
+			Arrays.fill(s.input, 0, passwordLength, (byte) 0);
+		}
+	}
+
+	/* Put the name, PIN and card value, each followed by a zero byte, in the scratch input, and return its length. */
+	private static int password(Scratch s, String name, String pin, String cardValue) {
+		int length = 0;
+		length = put(s, length, name);
+		length = put(s, length, pin);
+		length = put(s, length, cardValue);
+		return length;
+	}
+
+	/* Append the UTF-8 bytes of value and a zero byte to the scratch input, without allocating for ASCII. */
+	private static int put(Scratch s, int length, String value) {
+		int needed = length + 3 * value.length() + 1;
+		if(needed > s.input.length) {
+			byte[] bigger = new byte[Math.max(needed, 2 * s.input.length)];
+			System.arraycopy(s.input, 0, bigger, 0, length);
+			Arrays.fill(s.input, (byte) 0);
+			s.input = bigger;
+		}
+		for(int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if(c >= 0x80) {
+				byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+				System.arraycopy(bytes, 0, s.input, length - i, bytes.length);
+				length += bytes.length - i;
+				s.input[length] = 0;
+				return length + 1;
+			}
+			s.input[length++] = (byte) c;
+		}
+		s.input[length] = 0;
+		return length + 1;
+	}
+
+	private static void putInt(byte[] bytes, int offset, int value) {
+		bytes[offset] = (byte) (value >>> 24);
+		bytes[offset + 1] = (byte) (value >>> 16);
+		bytes[offset + 2] = (byte) (value >>> 8);
+		bytes[offset + 3] = (byte) value;
+	}
+
+	private static int getInt(byte[] bytes, int offset) {
+		return (bytes[offset] & 0xFF) << 24 | (bytes[offset + 1] & 0xFF) << 16 | (bytes[offset + 2] & 0xFF) << 8 | (bytes[offset + 3] & 0xFF);
+	}
+}
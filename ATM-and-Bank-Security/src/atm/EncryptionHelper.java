@@ -0,0 +1,673 @@
+package atm;
+
+import java.nio.ByteBuffer;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypts, decrypts and MACs the messages passed between the ATM and the Bank.
+ * 
+ * A single EncryptionHelper is safe to share between any number of threads. Cipher and Mac objects are not
+ * thread-safe and are costly to look up, so each thread looks its own up once and reuses it for every message;
+ * IVs all come from one long-lived SecureRandom, which is thread-safe and is only seeded once.
+ * 
+ * Messages can be secured in one of two modes. CBC_HMAC encrypts with AES-CBC and then MACs the result with
+ * HmacSHA1, and is what every terminal understands. GCM seals the message with AES-GCM in a single pass, with the
+ * time and request ID authenticated as associated data; there is no separate MAC. The sender picks the mode, and
+ * revealMessage() and revealFrame() tell the two apart by themselves, so a Bank can serve both kinds of terminal.
+ */
+
+public class EncryptionHelper {
+
+    private static final String CIPHER_TRANSFORMATION = "AES/CBC/PKCS5Padding";
+    private static final String MAC_ALGORITHM = "HmacSHA1";
+    private static final String AEAD_TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int AEAD_TAG_BITS = 128;
+    // Starts the sealed part of a text bundle in GCM mode. It is not a hex digit, so it cannot start a CBC part.
+    private static final char AEAD_MARKER = 'G';
+
+    private static final SecureRandom random = new SecureRandom();
+    private static final ThreadLocal<Cipher> aesCipher = new ThreadLocal<Cipher>() {
+    	protected Cipher initialValue() {
+    		try {
+    			return Cipher.getInstance(CIPHER_TRANSFORMATION);
+    		} catch (Exception e) {
+    			throw new IllegalStateException(CIPHER_TRANSFORMATION + " is not available", e);
+    		}
+    	}
+    };
+
+    private static final ThreadLocal<Cipher> aeadCipher = new ThreadLocal<Cipher>() {
+    	protected Cipher initialValue() {
+    		try {
+    			return Cipher.getInstance(AEAD_TRANSFORMATION);
+    		} catch (Exception e) {
+    			throw new IllegalStateException(AEAD_TRANSFORMATION + " is not available", e);
+    		}
+    	}
+    };
+
+    /* How a message is encrypted and authenticated. */
+    public enum Mode { CBC_HMAC, GCM }
+
+    /* Why revealMessage() or revealFrame() turned a message away. */
+    public enum Rejection {
+    	MALFORMED("Message is malformed."),
+    	TAMPERED("Message has been tampered with."),
+    	EXPIRED("Message no longer valid.");
+
+    	public final String description;
+    	// Every rejection of this kind, since it carries nothing else
+    	final Revealed revealed;
+
+    	Rejection(String description) {
+    		this.description = description;
+    		this.revealed = new Revealed(null, this);
+    	}
+    }
+
+    /*
+     * What revealMessage() and revealFrame() make of a message: its clear text, or why it was turned away. The
+     * caller decides whether and where to report a rejection; nothing is printed here.
+     */
+    public static final class Revealed {
+    	public final String clear;
+    	public final Rejection rejection;
+
+    	private Revealed(String clear, Rejection rejection) {
+    		this.clear = clear;
+    		this.rejection = rejection;
+    	}
+
+    	static Revealed accepted(String clear) {
+    		return new Revealed(clear, null);
+    	}
+
+    	public boolean isAccepted() {
+    		return rejection == null;
+    	}
+    }
+
+    private SecretKeySpec key;
+    private final ThreadLocal<Mac> mac;
+    static final int ACCEPTABLE_TIME_RANGE_MILLIS = 10000000;
+    
+    // Marks a bundle that carries no request ID
+    public static final long NO_REQUEST_ID = -1;
+    
+    public EncryptionHelper(byte[] aesKeyRaw, byte[] macKeyRaw) {
+	    // Generate the AES key, used for both encryption and decryption
+		key = new SecretKeySpec(aesKeyRaw, "AES");
+		
+		// Generate the MAC hash. Each thread keys its own Mac the first time it needs one.
+		final SecretKeySpec macKey = new SecretKeySpec(macKeyRaw, MAC_ALGORITHM);
+		mac = new ThreadLocal<Mac>() {
+			protected Mac initialValue() {
+				try {
+					Mac m = Mac.getInstance(MAC_ALGORITHM);
+					m.init(macKey);
+					return m;
+				} catch (Exception e) {
+					throw new IllegalStateException(MAC_ALGORITHM + " is not available", e);
+				}
+			}
+		};
+		// Key this thread's Mac now, so that a helper that cannot MAC fails here rather than on its first message
+		mac.get();
+    }
+
+    /**
+     * Encrypts the String str using AES with mode CBC and a random Initialization vector.
+     * 
+     * @param str
+     * @return
+     * @throws NoSuchAlgorithmException
+     * @throws NoSuchPaddingException
+     * @throws InvalidKeyException
+     * @throws IllegalBlockSizeException
+     * @throws BadPaddingException
+     * @throws InvalidAlgorithmParameterException
+     */
+    public String encrypt(String str) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException {
+    	// Initialize the necessary variables
+    	byte[] input = str.getBytes();
+    	byte[] iv = new byte[16];
+    	random.nextBytes(iv);
+    	
+    	// Prepare the cipher object
+    	IvParameterSpec ips = new IvParameterSpec(iv);
+		Cipher aesEncrypt = aesCipher.get();
+		aesEncrypt.init(Cipher.ENCRYPT_MODE, key, ips);
+		
+		// Encrypt the input straight in behind the IV
+		byte[] combined = new byte[16 + aesEncrypt.getOutputSize(input.length)];
+		System.arraycopy(iv, 0, combined, 0, 16);
+		int length = 16;
+		try {
+			length += aesEncrypt.doFinal(input, 0, input.length, combined, 16);
+		} catch (ShortBufferException e) {
+			throw new IllegalBlockSizeException("Output buffer too small");
+		}
+		
+		// Return the output as a hex string
+    	return Hex.encode(combined, 0, length);
+    }
+    
+    /**
+     * Decrypts the String str by obtaining the initialization vector and using standard AES decryption with CBC.
+     * 
+     * @param str
+     * @return
+     * @throws NoSuchAlgorithmException
+     * @throws NoSuchPaddingException
+     * @throws InvalidKeyException
+     * @throws InvalidAlgorithmParameterException
+     * @throws IllegalBlockSizeException
+     * @throws BadPaddingException
+     */
+    public String decrypt(String str) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException, IllegalBlockSizeException, BadPaddingException {
+    	// Turn the hex string into a byte array: the IV followed by the ciphertext
+    	byte[] combined = Hex.decode(str);
+    	if(combined.length <= 16)
+    		throw new IllegalBlockSizeException("Message too short");
+    	
+    	// Set up the cipher object
+    	IvParameterSpec ips = new IvParameterSpec(combined, 0, 16);
+    	Cipher aesDecrypt = aesCipher.get();
+		aesDecrypt.init(Cipher.DECRYPT_MODE, key, ips);
+		
+		// Decrypt the input
+		byte[] output = aesDecrypt.doFinal(combined, 16, combined.length - 16);
+    	
+		// Return the human-readable string
+    	return byteArrayToAsciiString(output);
+    }
+    
+    /**
+     * Secures a given message for communication between the ATM and the Bank.
+     * It takes the current system time in milliseconds concatenated with the provided message and hashes that
+     * to generate a MAC. The unhashed message is concatenated with the hashed message and returned as a bundle.
+     * 
+     * @param message
+     * @return
+     * @throws InvalidKeyException
+     * @throws NoSuchAlgorithmException
+     * @throws NoSuchPaddingException
+     * @throws IllegalBlockSizeException
+     * @throws BadPaddingException
+     * @throws InvalidAlgorithmParameterException
+     */
+    public String secureMessage(String message) throws InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException, IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException {
+    	return secureMessage(NO_REQUEST_ID, message);
+    }
+    
+    /**
+     * Like secureMessage(String), but also carries a request ID so that a client can have several requests
+     * in flight on one connection and match each reply to its request. The ID sits between the time and the
+     * encrypted message, and is covered by the MAC:
+     * 	time,requestId,HEX(iv||ciphertext),HEX(mac)
+     * Passing NO_REQUEST_ID produces the original three-part bundle understood by older terminals.
+     * 
+     * @param requestId
+     * @param message
+     * @return
+     * @throws InvalidKeyException
+     * @throws NoSuchAlgorithmException
+     * @throws NoSuchPaddingException
+     * @throws IllegalBlockSizeException
+     * @throws BadPaddingException
+     * @throws InvalidAlgorithmParameterException
+     */
+    public String secureMessage(long requestId, String message) throws InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException, IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException {
+    	return secureMessage(Mode.CBC_HMAC, requestId, message);
+    }
+    
+    /**
+     * Like secureMessage(long, String), in the given mode. In GCM mode the bundle is
+     * 	time,requestId,G HEX(nonce||ciphertext||tag)
+     * without the space, and the time and request ID, commas included, are the associated data.
+     * 
+     * @param mode
+     * @param requestId
+     * @param message
+     * @return
+     * @throws InvalidKeyException
+     * @throws NoSuchAlgorithmException
+     * @throws NoSuchPaddingException
+     * @throws IllegalBlockSizeException
+     * @throws BadPaddingException
+     * @throws InvalidAlgorithmParameterException
+     */
+    public String secureMessage(Mode mode, long requestId, String message) throws InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException, IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException {
+    	if(mode == Mode.GCM) {
+    		String prefix = System.currentTimeMillis() + "," + (requestId == NO_REQUEST_ID ? "" : requestId + ",");
+    		return prefix + AEAD_MARKER + seal(prefix.getBytes(), message);
+    	}
+    	String m = System.currentTimeMillis() + "," + (requestId == NO_REQUEST_ID ? "" : requestId + ",") + encrypt(message);
+    	return m + "," + macMessage(m);
+    }
+    
+    /**
+     * Runs the given message through the MAC function, using this thread's own Mac.
+     * 
+     * @param message
+     * @return
+     */
+    public String macMessage(String message) {
+    	return byteArrayToHexString(mac.get().doFinal(message.getBytes()));
+    }
+    
+    /**
+     * Encrypts and authenticates str with AES-GCM and a random nonce, and authenticates aad along with it.
+     * 
+     * @param aad
+     * @param str
+     * @return the nonce, ciphertext and tag as a hex string
+     * @throws InvalidKeyException
+     * @throws IllegalBlockSizeException
+     * @throws BadPaddingException
+     * @throws InvalidAlgorithmParameterException
+     */
+    private String seal(byte[] aad, String str) throws InvalidKeyException, IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException {
+    	byte[] input = str.getBytes();
+    	byte[] nonce = new byte[WireFormat.NONCE_LENGTH];
+    	random.nextBytes(nonce);
+    	
+    	Cipher gcm = aeadCipher.get();
+    	gcm.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(AEAD_TAG_BITS, nonce));
+    	gcm.updateAAD(aad);
+    	
+    	byte[] combined = new byte[nonce.length + gcm.getOutputSize(input.length)];
+    	System.arraycopy(nonce, 0, combined, 0, nonce.length);
+    	int length = nonce.length;
+    	try {
+    		length += gcm.doFinal(input, 0, input.length, combined, nonce.length);
+    	} catch (ShortBufferException e) {
+    		throw new IllegalBlockSizeException("Output buffer too small");
+    	}
+    	return Hex.encode(combined, 0, length);
+    }
+    
+    /**
+     * Reverses seal(). Returns null if the ciphertext or the associated data has been tampered with.
+     * 
+     * @param aad
+     * @param str
+     * @return
+     * @throws InvalidKeyException
+     * @throws IllegalBlockSizeException
+     * @throws BadPaddingException
+     * @throws InvalidAlgorithmParameterException
+     */
+    private String open(byte[] aad, String str) throws InvalidKeyException, IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException {
+    	byte[] combined = Hex.decode(str);
+    	if(combined.length < WireFormat.NONCE_LENGTH + WireFormat.TAG_LENGTH)
+    		throw new IllegalBlockSizeException("Message too short");
+    	
+    	Cipher gcm = aeadCipher.get();
+    	gcm.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(AEAD_TAG_BITS, combined, 0, WireFormat.NONCE_LENGTH));
+    	gcm.updateAAD(aad);
+    	try {
+    		byte[] output = gcm.doFinal(combined, WireFormat.NONCE_LENGTH, combined.length - WireFormat.NONCE_LENGTH);
+    		return byteArrayToAsciiString(output);
+    	} catch (AEADBadTagException e) {
+    		return null;
+    	}
+    }
+    
+    /**
+     * Given a message generated using the secureMessage() function, returns the original, unhashed, unencrypted message.
+     * However, there are a certain number of tests the message has to pass. Namely,
+     * 	1. The unencrypted message (i.e., everything to the left of the last comma) must hash to the 
+     * 	   value on the right side of the last comma. This verifies that the message was not tampered with.
+     *  2. The time value given in the unencrypted portion of the message must be within ACCEPTABLE_TIME_RANGE_MILLIS of
+     *     the current system time.
+     * Should both of these conditions be met, the decrypted message is returned; otherwise the rejection says which
+     * test failed.
+     * Bundles with and without a request ID are both accepted, in either mode. In GCM mode the first test is
+     * carried out by the decryption itself.
+     * 
+     * @param macked
+     * @return the decrypted message, or why it was rejected
+     * @throws InvalidKeyException
+     * @throws NoSuchAlgorithmException
+     * @throws NoSuchPaddingException
+     * @throws IllegalBlockSizeException
+     * @throws BadPaddingException
+     * @throws InvalidAlgorithmParameterException
+     */
+    public Revealed revealMessage(String macked) throws InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException, IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException {
+    	if(modeOf(macked) == Mode.GCM)
+    		return revealSealedMessage(macked);
+    	
+    	// Collecting the pieces we need to verify the message.
+    	String[] parts = macked.split(",");
+    	if(parts.length != 3 && parts.length != 4)
+    		return Rejection.MALFORMED.revealed;
+    	String timeStr = parts[0];
+    	String encryptedMessage = parts[parts.length - 2];
+    	String mackedMessage = parts[parts.length - 1];
+    	
+    	// Verify that the time, request ID and encrypted message hash to what it should, in constant time
+    	String signed = macked.substring(0, macked.lastIndexOf(",")).trim();
+    	byte[] expected = mac.get().doFinal(signed.getBytes()), actual;
+    	try {
+    		actual = Hex.decode(mackedMessage);
+    	} catch (IllegalArgumentException e) {
+    		return Rejection.TAMPERED.revealed;
+    	}
+    	if(!MessageDigest.isEqual(expected, actual))
+    		return Rejection.TAMPERED.revealed;
+    	
+    	// Verify time is within range    	    	
+    	if(System.currentTimeMillis() - Long.parseLong(timeStr.trim()) > ACCEPTABLE_TIME_RANGE_MILLIS)
+    		return Rejection.EXPIRED.revealed;
+    	
+    	// Return decrypted message    	
+    	return Revealed.accepted(decrypt(encryptedMessage));
+    }
+    
+    /* revealMessage() for a bundle sealed in GCM mode. */
+    private Revealed revealSealedMessage(String sealed) throws InvalidKeyException, IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException {
+    	int last = sealed.lastIndexOf(",");
+    	int commas = 0;
+    	for(int i = sealed.indexOf(","); i >= 0; i = sealed.indexOf(",", i + 1))
+    		commas++;
+    	if(commas != 1 && commas != 2)
+    		return Rejection.MALFORMED.revealed;
+    	
+    	// Decrypt, verifying that neither the time and request ID nor the ciphertext were changed
+    	String clear = open(sealed.substring(0, last + 1).getBytes(), sealed.substring(last + 2).trim());
+    	if(clear == null)
+    		return Rejection.TAMPERED.revealed;
+    	
+    	// Verify time is within range
+    	if(System.currentTimeMillis() - timeOf(sealed) > ACCEPTABLE_TIME_RANGE_MILLIS)
+    		return Rejection.EXPIRED.revealed;
+    	return Revealed.accepted(clear);
+    }
+    
+    /**
+     * Binary counterpart of secureMessage(long, String): secures the message as a single binary frame laid out
+     * as described in WireFormat. The raw IV, MAC and ciphertext go on the wire as they are, with no hex
+     * encoding and nothing to split on the other side.
+     * 
+     * @param requestId
+     * @param route the route id to stamp on the frame, 0 if there is none
+     * @param message
+     * @return a buffer holding exactly the frame, ready to be written
+     * @throws InvalidKeyException
+     * @throws IllegalBlockSizeException
+     * @throws BadPaddingException
+     * @throws InvalidAlgorithmParameterException
+     */
+    public ByteBuffer secureFrame(long requestId, int route, String message) throws InvalidKeyException, IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException {
+    	return secureFrame(Mode.CBC_HMAC, requestId, route, message);
+    }
+    
+    /**
+     * Like secureFrame(long, int, String), in the given mode. A GCM frame has the layout described in WireFormat
+     * under BINARY_GCM_FRAME: the nonce takes the place of the IV and MAC, and the tag follows the ciphertext.
+     * 
+     * @param mode
+     * @param requestId
+     * @param route the route id to stamp on the frame, 0 if there is none
+     * @param message
+     * @return a buffer holding exactly the frame, ready to be written
+     * @throws InvalidKeyException
+     * @throws IllegalBlockSizeException
+     * @throws BadPaddingException
+     * @throws InvalidAlgorithmParameterException
+     */
+    public ByteBuffer secureFrame(Mode mode, long requestId, int route, String message) throws InvalidKeyException, IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException {
+    	if(mode == Mode.GCM)
+    		return sealFrame(requestId, route, message);
+    	byte[] input = message.getBytes();
+    	ByteBuffer frame = ByteBuffer.allocate(WireFormat.frameLength(input.length));
+    	byte[] out = frame.array();
+    	frame.put(WireFormat.BINARY_FRAME);
+    	frame.putInt(frame.capacity() - WireFormat.PREFIX_LENGTH);
+    	frame.putInt(route);
+    	frame.putLong(System.currentTimeMillis());
+    	frame.putLong(requestId);
+    	
+    	byte[] iv = new byte[WireFormat.IV_LENGTH];
+    	random.nextBytes(iv);
+    	frame.put(iv);
+    	
+    	try {
+    		// Encrypt the input straight into the frame
+	    	Cipher aesEncrypt = aesCipher.get();
+	    	aesEncrypt.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+	    	int length = aesEncrypt.doFinal(input, 0, input.length, out, WireFormat.CIPHERTEXT_OFFSET);
+	    	
+	    	// MAC the time, request ID, IV and ciphertext
+	    	Mac m = mac.get();
+	    	m.update(out, WireFormat.TIME_OFFSET, WireFormat.MAC_OFFSET - WireFormat.TIME_OFFSET);
+	    	m.update(out, WireFormat.CIPHERTEXT_OFFSET, length);
+	    	m.doFinal(out, WireFormat.MAC_OFFSET);
+    	} catch (ShortBufferException e) {
+    		throw new IllegalBlockSizeException("Frame too small");
+    	}
+    	
+    	frame.clear();
+    	return frame;
+    }
+    
+    /* secureFrame() in GCM mode. */
+    private ByteBuffer sealFrame(long requestId, int route, String message) throws InvalidKeyException, IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException {
+    	byte[] input = message.getBytes();
+    	ByteBuffer frame = ByteBuffer.allocate(WireFormat.sealedFrameLength(input.length));
+    	byte[] out = frame.array();
+    	frame.put(WireFormat.BINARY_GCM_FRAME);
+    	frame.putInt(frame.capacity() - WireFormat.PREFIX_LENGTH);
+    	frame.putInt(route);
+    	frame.putLong(System.currentTimeMillis());
+    	frame.putLong(requestId);
+    	
+    	byte[] nonce = new byte[WireFormat.NONCE_LENGTH];
+    	random.nextBytes(nonce);
+    	frame.put(nonce);
+    	
+    	try {
+    		// Encrypt the input straight into the frame, authenticating the time and request ID with it
+	    	Cipher gcm = aeadCipher.get();
+	    	gcm.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(AEAD_TAG_BITS, nonce));
+	    	gcm.updateAAD(out, WireFormat.TIME_OFFSET, WireFormat.NONCE_OFFSET - WireFormat.TIME_OFFSET);
+	    	gcm.doFinal(input, 0, input.length, out, WireFormat.SEALED_OFFSET);
+    	} catch (ShortBufferException e) {
+    		throw new IllegalBlockSizeException("Frame too small");
+    	}
+    	
+    	frame.clear();
+    	return frame;
+    }
+    
+    /**
+     * Binary counterpart of revealMessage(String). The frame runs from the buffer's position to its limit. The
+     * same tests apply: the MAC must match, and the time must be within ACCEPTABLE_TIME_RANGE_MILLIS.
+     * 
+     * @param frame
+     * @return the decrypted message, or why the frame failed either test or is malformed
+     * @throws InvalidKeyException
+     * @throws IllegalBlockSizeException
+     * @throws BadPaddingException
+     * @throws InvalidAlgorithmParameterException
+     */
+    public Revealed revealFrame(ByteBuffer frame) throws InvalidKeyException, IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException {
+    	if(modeOf(frame) == Mode.GCM)
+    		return revealSealedFrame(frame);
+    	int base = frame.position(), end = frame.limit();
+    	int cipherLength = end - base - WireFormat.CIPHERTEXT_OFFSET;
+    	if(cipherLength < 16 || cipherLength % 16 != 0 || frame.get(base) != WireFormat.BINARY_FRAME)
+    		return Rejection.MALFORMED.revealed;
+    	ByteBuffer part = frame.duplicate();
+    	
+    	// Verify that the time, request ID, IV and ciphertext hash to what they should
+    	Mac m = mac.get();
+    	part.limit(base + WireFormat.MAC_OFFSET).position(base + WireFormat.TIME_OFFSET);
+    	m.update(part);
+    	part.limit(end).position(base + WireFormat.CIPHERTEXT_OFFSET);
+    	m.update(part);
+    	byte[] expected = m.doFinal(), actual = new byte[WireFormat.MAC_LENGTH];
+    	part.limit(base + WireFormat.CIPHERTEXT_OFFSET).position(base + WireFormat.MAC_OFFSET);
+    	part.get(actual);
+    	if(!MessageDigest.isEqual(expected, actual))
+    		return Rejection.TAMPERED.revealed;
+    	
+    	// Verify time is within range
+    	if(System.currentTimeMillis() - WireFormat.timeOf(frame) > ACCEPTABLE_TIME_RANGE_MILLIS)
+    		return Rejection.EXPIRED.revealed;
+    	
+    	// Return decrypted message
+    	byte[] iv = new byte[WireFormat.IV_LENGTH];
+    	part.limit(base + WireFormat.MAC_OFFSET).position(base + WireFormat.IV_OFFSET);
+    	part.get(iv);
+    	Cipher aesDecrypt = aesCipher.get();
+    	aesDecrypt.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+    	ByteBuffer output = ByteBuffer.allocate(aesDecrypt.getOutputSize(cipherLength));
+    	part.limit(end).position(base + WireFormat.CIPHERTEXT_OFFSET);
+    	try {
+    		aesDecrypt.doFinal(part, output);
+    	} catch (ShortBufferException e) {
+    		throw new IllegalBlockSizeException("Output buffer too small");
+    	}
+    	return Revealed.accepted(byteArrayToAsciiString(output.array(), output.position()));
+    }
+    
+    /* revealFrame() for a frame sealed in GCM mode. */
+    private Revealed revealSealedFrame(ByteBuffer frame) throws InvalidKeyException, IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException {
+    	int base = frame.position(), end = frame.limit();
+    	int sealedLength = end - base - WireFormat.SEALED_OFFSET;
+    	if(sealedLength < WireFormat.TAG_LENGTH)
+    		return Rejection.MALFORMED.revealed;
+    	ByteBuffer part = frame.duplicate();
+    	
+    	byte[] nonce = new byte[WireFormat.NONCE_LENGTH];
+    	part.limit(base + WireFormat.SEALED_OFFSET).position(base + WireFormat.NONCE_OFFSET);
+    	part.get(nonce);
+    	Cipher gcm = aeadCipher.get();
+    	gcm.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(AEAD_TAG_BITS, nonce));
+    	part.limit(base + WireFormat.NONCE_OFFSET).position(base + WireFormat.TIME_OFFSET);
+    	gcm.updateAAD(part);
+    	
+    	// Decrypt, verifying that neither the time and request ID nor the ciphertext were changed
+    	ByteBuffer output = ByteBuffer.allocate(gcm.getOutputSize(sealedLength));
+    	part.limit(end).position(base + WireFormat.SEALED_OFFSET);
+    	try {
+    		gcm.doFinal(part, output);
+    	} catch (AEADBadTagException e) {
+    		return Rejection.TAMPERED.revealed;
+    	} catch (ShortBufferException e) {
+    		throw new IllegalBlockSizeException("Output buffer too small");
+    	}
+    	
+    	// Verify time is within range
+    	if(System.currentTimeMillis() - WireFormat.timeOf(frame) > ACCEPTABLE_TIME_RANGE_MILLIS)
+    		return Rejection.EXPIRED.revealed;
+    	return Revealed.accepted(byteArrayToAsciiString(output.array(), output.position()));
+    }
+    
+    /**
+     * Returns the mode a bundle was secured in.
+     * 
+     * @param macked
+     * @return
+     */
+    public static Mode modeOf(String macked) {
+    	int last = macked.lastIndexOf(",");
+    	if(last >= 0 && last + 1 < macked.length() && macked.charAt(last + 1) == AEAD_MARKER)
+    		return Mode.GCM;
+    	return Mode.CBC_HMAC;
+    }
+    
+    /**
+     * Returns the mode a frame was secured in. The frame starts at the buffer's position.
+     * 
+     * @param frame
+     * @return
+     */
+    public static Mode modeOf(ByteBuffer frame) {
+    	return frame.get(frame.position()) == WireFormat.BINARY_GCM_FRAME ? Mode.GCM : Mode.CBC_HMAC;
+    }
+    
+    /**
+     * Returns the time a bundle claims to have been secured at. Only trust it once revealMessage() has accepted
+     * the bundle.
+     * 
+     * @param macked
+     * @return
+     */
+    public static long timeOf(String macked) {
+    	return Long.parseLong(macked.substring(0, macked.indexOf(",")).trim());
+    }
+    
+    /**
+     * Returns the request ID carried by a bundle, or NO_REQUEST_ID for a bundle without one: the original
+     * three-part format, or a two-part GCM bundle. Only trust it once revealMessage() has accepted the bundle.
+     * 
+     * @param macked
+     * @return
+     */
+    public static long requestIdOf(String macked) {
+    	int first = macked.indexOf(","), second = macked.indexOf(",", first + 1);
+    	if(first < 0 || second < 0)
+    		return NO_REQUEST_ID;
+    	if(macked.indexOf(",", second + 1) < 0 && modeOf(macked) != Mode.GCM)
+    		return NO_REQUEST_ID;
+    	try {
+    		return Long.parseLong(macked.substring(first + 1, second));
+    	} catch (NumberFormatException e) {
+    		return NO_REQUEST_ID;
+    	}
+    }
+    
+	/**
+	 * Takes an arbitrary byte array and turns it into a hex string.
+	 * 
+	 * @param arr
+	 * @return
+	 */
+	protected static String byteArrayToHexString(byte[] arr) {
+		return Hex.encode(arr);
+	}
+	
+	/**
+	 * Converts a byte array into an ASCII String.
+	 * 
+	 * @param arr
+	 * @return
+	 */
+	protected static String byteArrayToAsciiString(byte[] arr) {
+		return byteArrayToAsciiString(arr, arr.length);
+	}
+	
+	/**
+	 * Converts the first length bytes of a byte array into an ASCII String.
+	 * 
+	 * @param arr
+	 * @param length
+	 * @return
+	 */
+	protected static String byteArrayToAsciiString(byte[] arr, int length) {
+		char[] chars = new char[length];
+		for(int i = 0; i < length; i++) {
+			chars[i] = (char) arr[i];
+		}
+		return new String(chars);
+	}
+}
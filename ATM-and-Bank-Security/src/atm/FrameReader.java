@@ -0,0 +1,127 @@
+package atm;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Splits a blocking byte stream into frames: newline-terminated text lines and
+ * length-prefixed binary frames (see WireFormat), in any mix. Used by the ATM
+ * and the Bank in place of BufferedReader.readLine(), which only understands
+ * text. Shard headers (see WireFormat) are only meant for the Router, and are
+ * skipped. It reads the stream itself rather than a channel over it, since the
+ * channels Channels.newChannel() makes hold a monitor while they block, which
+ * would pin the carrier of a virtual thread waiting for the next request.
+ */
+
+public class FrameReader {
+
+    private final InputStream in;
+    private final ByteBuffer buf;
+
+    /* Start and end of the current frame within buf. */
+    private int start = 0, end = 0;
+    private boolean binary;
+
+    public FrameReader(InputStream in, int maxFrameLength) {
+        this.in = in;
+        this.buf = ByteBuffer.allocate(maxFrameLength);
+        buf.flip();
+    }
+
+    /**
+     * Reads the next frame, blocking until it has arrived in full.
+     *
+     * @return false once the stream has ended
+     * @throws IOException if the stream breaks, ends mid-frame, or a frame is malformed or too long
+     */
+    public boolean next() throws IOException {
+        buf.position(end);
+        if (!buf.hasRemaining() && !fill())
+            return false;
+
+        start = buf.position();
+        if (buf.get(start) == WireFormat.SHARD_HEADER) {
+            // From a terminal connected straight to the Bank, which has no use for it
+            require(WireFormat.SHARD_HEADER_LENGTH + 1);
+            start += WireFormat.SHARD_HEADER_LENGTH;
+            buf.position(start);
+        }
+        binary = WireFormat.isBinary(buf.get(start));
+        if (binary) {
+            require(WireFormat.PREFIX_LENGTH);
+            int length = WireFormat.lengthOf(buf);
+            if (length < WireFormat.minFrameLength(buf.get(start)) || length > buf.capacity())
+                throw new IOException("Malformed binary frame.");
+            require(length);
+            end = start + length;
+        } else {
+            int scanned = start;
+            while (true) {
+                while (scanned < buf.limit() && buf.get(scanned) != '\n')
+                    ++scanned;
+                if (scanned < buf.limit())
+                    break;
+                scanned -= start;
+                require(scanned + 1);
+                scanned += start;
+            }
+            end = scanned + 1;
+        }
+        return true;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /* The current text frame, without its newline. */
+    public String line() {
+        int length = end - 1 - start;
+        if (length > 0 && buf.get(end - 2) == '\r')
+            --length;
+        return new String(buf.array(), start, length, StandardCharsets.ISO_8859_1);
+    }
+
+    /* The current binary frame. The view is only valid until the next call to next(). */
+    public ByteBuffer frame() {
+        ByteBuffer frame = buf.duplicate();
+        frame.limit(end).position(start);
+        return frame;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /* Make sure the current frame's first count bytes are in the buffer. */
+    private void require(int count) throws IOException {
+        if (count > buf.capacity())
+            throw new IOException("Message too long.");
+        while (buf.limit() - start < count) {
+            if (!fill())
+                throw new EOFException("Stream ended in the middle of a message.");
+        }
+    }
+
+    /* Read more bytes, moving the current frame to the front of the buffer first. */
+    private boolean fill() throws IOException {
+        int from = buf.position();
+        buf.compact();
+        start -= from;
+        if (start < 0)
+            start = 0;
+
+        int n;
+        do {
+            n = in.read(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+            if (n > 0)
+                buf.position(buf.position() + n);
+        } while (n == 0);
+        buf.flip();
+        return n > 0;
+    }
+}
@@ -0,0 +1,131 @@
+package atm;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Table-driven hex encoding and decoding for the wire envelope. Every method works straight between bytes and
+ * chars in caller-sized arrays or buffers, two chars per byte, without building intermediate Strings. Encoding
+ * produces upper-case digits; decoding accepts either case.
+ */
+
+public final class Hex {
+
+	private static final char[] DIGITS = "0123456789ABCDEF".toCharArray();
+
+	// Value of each ASCII hex digit, or -1 for any other character
+	private static final byte[] VALUES = new byte[128];
+	static {
+		for(int i = 0; i < VALUES.length; i++)
+			VALUES[i] = -1;
+		for(int i = 0; i < 10; i++)
+			VALUES['0' + i] = (byte) i;
+		for(int i = 0; i < 6; i++) {
+			VALUES['A' + i] = (byte) (10 + i);
+			VALUES['a' + i] = (byte) (10 + i);
+		}
+	}
+
+	private Hex() {
+	}
+
+	/**
+	 * Returns the number of chars needed to encode the given number of bytes.
+	 * 
+	 * @param byteCount
+	 * @return
+	 */
+	public static int encodedLength(int byteCount) {
+		return byteCount << 1;
+	}
+
+	/**
+	 * Encodes len bytes of src, starting at srcOff, into dst starting at dstOff.
+	 * 
+	 * @return the index in dst just past the last char written
+	 */
+	public static int encode(byte[] src, int srcOff, int len, char[] dst, int dstOff) {
+		for(int i = srcOff, end = srcOff + len; i < end; i++) {
+			int b = src[i] & 0xFF;
+			dst[dstOff++] = DIGITS[b >>> 4];
+			dst[dstOff++] = DIGITS[b & 0x0F];
+		}
+		return dstOff;
+	}
+
+	/**
+	 * Encodes the remaining bytes of src into dst starting at dstOff, consuming src.
+	 * 
+	 * @return the index in dst just past the last char written
+	 */
+	public static int encode(ByteBuffer src, char[] dst, int dstOff) {
+		while(src.hasRemaining()) {
+			int b = src.get() & 0xFF;
+			dst[dstOff++] = DIGITS[b >>> 4];
+			dst[dstOff++] = DIGITS[b & 0x0F];
+		}
+		return dstOff;
+	}
+
+	/**
+	 * Encodes len bytes of src, starting at off, as a String.
+	 * 
+	 * @param src
+	 * @param off
+	 * @param len
+	 * @return
+	 */
+	public static String encode(byte[] src, int off, int len) {
+		char[] out = new char[encodedLength(len)];
+		encode(src, off, len, out, 0);
+		return new String(out);
+	}
+
+	public static String encode(byte[] src) {
+		return encode(src, 0, src.length);
+	}
+
+	/**
+	 * Decodes the hex digits src[srcOff, srcOff + len) into dst starting at dstOff.
+	 * 
+	 * @return the index in dst just past the last byte written
+	 * @throws IllegalArgumentException if len is odd or the range holds anything but hex digits
+	 */
+	public static int decode(CharSequence src, int srcOff, int len, byte[] dst, int dstOff) {
+		if((len & 1) != 0)
+			throw new IllegalArgumentException("Odd number of hex digits");
+		for(int i = srcOff, end = srcOff + len; i < end; i += 2)
+			dst[dstOff++] = (byte) ((value(src.charAt(i)) << 4) | value(src.charAt(i + 1)));
+		return dstOff;
+	}
+
+	/**
+	 * Decodes the hex digits src[srcOff, srcOff + len) into dst at its position, advancing it.
+	 * 
+	 * @throws IllegalArgumentException if len is odd or the range holds anything but hex digits
+	 */
+	public static void decode(CharSequence src, int srcOff, int len, ByteBuffer dst) {
+		if((len & 1) != 0)
+			throw new IllegalArgumentException("Odd number of hex digits");
+		for(int i = srcOff, end = srcOff + len; i < end; i += 2)
+			dst.put((byte) ((value(src.charAt(i)) << 4) | value(src.charAt(i + 1))));
+	}
+
+	/**
+	 * Decodes a whole String of hex digits.
+	 * 
+	 * @param src
+	 * @return
+	 */
+	public static byte[] decode(CharSequence src) {
+		byte[] out = new byte[src.length() >> 1];
+		decode(src, 0, src.length(), out, 0);
+		return out;
+	}
+
+	private static int value(char c) {
+		int v = c < 128 ? VALUES[c] : -1;
+		if(v < 0)
+			throw new IllegalArgumentException("Not a hex digit: " + c);
+		return v;
+	}
+}
@@ -0,0 +1,109 @@
+package atm;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of non-negative values, such as latencies in nanoseconds, with
+ * a fixed set of buckets. Values below SUB_BUCKETS get a bucket each; above
+ * that, every power of two is split into SUB_BUCKETS equal buckets, so any
+ * value is known to within about 3% no matter how large. Recording is a few
+ * bit operations and an atomic increment, and never allocates, so it can sit
+ * on a hot path and be shared by many threads. The buckets are kept in several
+ * stripes, picked by thread, so threads recording at once mostly touch
+ * different memory; reading the histogram adds the stripes up.
+ */
+
+public class Histogram {
+
+    private static final int SUB_BITS = 5, SUB_BUCKETS = 1 << SUB_BITS;
+    /* Values are capped below 2^MAX_BITS, which is over an hour in nanoseconds. */
+    private static final int MAX_BITS = 42;
+    private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+    private static final int BUCKETS = (MAX_BITS - SUB_BITS + 1) * SUB_BUCKETS;
+    /* A power of two, about one stripe per core. */
+    private static final int STRIPES = Math.min(16, Integer.highestOneBit(2 * Runtime.getRuntime().availableProcessors() - 1));
+
+    private final AtomicLongArray[] counts = new AtomicLongArray[STRIPES];
+    private final LongAdder total = new LongAdder(), sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public Histogram() {
+        for (int i = 0; i < STRIPES; ++i)
+            counts[i] = new AtomicLongArray(BUCKETS);
+    }
+
+    /* Adds a value, capped at MAX_VALUE. Negative values count as 0. */
+    public void record(long value) {
+        value = Math.max(0, Math.min(value, MAX_VALUE));
+        counts[(int) Thread.currentThread().getId() & (STRIPES - 1)].incrementAndGet(bucketOf(value));
+        total.increment();
+        sum.add(value);
+        long seen;
+        while (value > (seen = max.get()) && !max.compareAndSet(seen, value))
+            ;
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /* The largest value that falls in the bucket. */
+    private static long highestIn(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long lowest = (1L << exponent) | ((long) (bucket % SUB_BUCKETS) << (exponent - SUB_BITS));
+        return lowest + (1L << (exponent - SUB_BITS)) - 1;
+    }
+
+    public long count() {
+        return total.sum();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    public double mean() {
+        long n = total.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * Returns a value that at least the given percentage of the recorded
+     * values are no greater than, or 0 if nothing was recorded.
+     *
+     * @param percentile from 0 to 100
+     * @return
+     */
+    public long valueAt(double percentile) {
+        long n = total.sum();
+        if (n == 0)
+            return 0;
+        long wanted = Math.max(1, (long) Math.ceil(percentile / 100 * n)), seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; ++bucket) {
+            for (AtomicLongArray stripe : counts)
+                seen += stripe.get(bucket);
+            if (seen >= wanted)
+                return Math.min(highestIn(bucket), max.get());
+        }
+        return max.get();
+    }
+
+    /* Forgets everything recorded so far. Values recorded meanwhile may or may not be kept. */
+    public void reset() {
+        for (AtomicLongArray stripe : counts) {
+            for (int bucket = 0; bucket < BUCKETS; ++bucket)
+                stripe.set(bucket, 0);
+        }
+        total.reset();
+        sum.reset();
+        max.set(0);
+    }
+}
@@ -0,0 +1,552 @@
+package atm;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only write-ahead log of balance changes. Every successful deposit
+ * or withdrawal appends the account's new balance, and the Bank holds back the
+ * reply until the record is on disk. Replaying the journal over the opening
+ * balances gives back the balances at the time of the last durable record.
+ *
+ * Appending only copies the record into a buffer. A single committer thread
+ * writes out everything appended since its last pass and forces it to disk
+ * with one fsync, then completes the futures of everyone who was waiting on
+ * those records. Records appended while it is busy go out together in its
+ * next pass, so under load many transactions share each fsync.
+ *
+ * The journal's state is guarded by a ReentrantLock rather than by its
+ * monitor. Appends come from the Bank's session threads, which may be virtual
+ * threads, and one that waits for a monitor held by a thread doing file I/O
+ * pins its carrier thread; waiting for a ReentrantLock does not.
+ *
+ * Each record is
+ *     int     length of the body
+ *     body    byte type, int balance, short name length, name in UTF-8
+ *     int     CRC32 of the body
+ * A TRANSFER record's body carries a second balance and name after the first,
+ * for the two accounts of a transfer, so that replay restores both or neither.
+ * A record that is cut short or fails its CRC marks the end of the journal;
+ * it was never acknowledged, and is cut off on replay.
+ *
+ * Positions count every byte of records ever appended, so they keep growing
+ * even though the records before a snapshot are no longer needed. Once a
+ * snapshot is in place, discardBefore() has the committer copy the records
+ * from the snapshot's position on into a new file, which replaces the journal
+ * in one step. That file starts with a header giving the position of its
+ * first record:
+ *     int     MAGIC, which no record length can be
+ *     long    position of the first record
+ * A journal without the header starts at position 0.
+ */
+
+public class Journal implements Closeable {
+
+	private static final byte BALANCE = 1, TRANSFER = 2;
+	private static final int MAGIC = 0x424A524E;
+	private static final int HEADER_LENGTH = 4 + 8;
+	/* Bytes around the body: its length before it and its CRC after it. */
+	private static final int FRAMING = 8;
+	private static final int MIN_BODY = 1 + 4 + 2, MAX_BODY = MIN_BODY + 0xFFFF;
+	private static final int BUFFER_LENGTH = 64 * 1024;
+	private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+
+	private final Path file;
+	/* Used by replay, then only by the committer, then by close. */
+	private FileChannel channel;
+	/* The position of the first record, and of the file's first byte, which is before it by the header if there is one. */
+	private long first, offset;
+	private final Thread committer;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	/* Signalled when records are appended to an empty buffer, or the journal is closed. */
+	private final Condition appendedTo = lock.newCondition();
+	/* Guarded by lock. Records are appended to filling while the committer writes out writing. */
+	private ByteBuffer filling = ByteBuffer.allocate(BUFFER_LENGTH), writing = ByteBuffer.allocate(BUFFER_LENGTH);
+	private final CRC32 crc = new CRC32();
+	private long appended, durable;
+	private final List<Waiter> waiters = new ArrayList<Waiter>();
+	private boolean closed = false;
+	private IOException failure;
+	/* Guarded by lock. The position before which the committer is to drop records, and who waits for it, if anyone. */
+	private long discardBefore;
+	private CompletableFuture<Void> discarded;
+
+	/* Someone waiting for the records up to position to be durable. */
+	private static class Waiter {
+		final long position;
+		final CompletableFuture<Void> done = new CompletableFuture<Void>();
+
+		Waiter(long position) {
+			this.position = position;
+		}
+	}
+
+	/**
+	 * Opens the journal, creating the file if there is none. Call replay()
+	 * before appending anything.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public Journal(Path file) throws IOException {
+		this.file = file;
+		channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		committer = new Thread("bank-journal") {
+			public void run() {
+				commitLoop();
+			}
+		};
+		committer.setDaemon(true);
+	}
+
+	/**
+	 * Sets every account named in the journal to the last balance recorded for
+	 * it, cuts off a torn record at the end if there is one, and starts
+	 * accepting appends. Accounts that no longer exist are skipped.
+	 *
+	 * @param accounts
+	 * @return the number of records replayed
+	 * @throws IOException
+	 */
+	public int replay(AccountStore accounts) throws IOException {
+		return replay(accounts, 0);
+	}
+
+	/**
+	 * Like replay(AccountStore), but only replays the records from the given
+	 * position on, such as the position a snapshot was taken at.
+	 *
+	 * @param accounts
+	 * @param from
+	 * @return the number of records replayed
+	 * @throws IOException if the journal cannot be read, or starts after or ends before from
+	 */
+	public int replay(AccountStore accounts, long from) throws IOException {
+		lock.lock();
+		try {
+			return replayLocked(accounts, from);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private int replayLocked(AccountStore accounts, long from) throws IOException {
+		ByteBuffer in = ByteBuffer.allocate(BUFFER_LENGTH);
+		long start = readHeader();
+		long position = from, end = offset + channel.size();
+		int count = 0;
+
+		// The records before start went into a snapshot, and only that snapshot or a later one can be replayed over
+		if(from < start)
+			throw new IOException("The journal starts after the snapshot it belongs with.");
+		// Appending here would give records positions the snapshot already claims to cover
+		if(from > end)
+			throw new IOException("The journal ends before the snapshot it belongs with.");
+		in.flip();
+		channel.position(from - offset);
+		while(true) {
+			// Make sure the next record's length, and then the whole record, is in the buffer
+			if(in.remaining() < 4 && (!fill(in) || in.remaining() < 4))
+				break;
+			int length = in.getInt(in.position());
+			if(length < MIN_BODY || length > MAX_BODY)
+				break;
+			if(in.remaining() < length + FRAMING) {
+				if(in.capacity() < length + FRAMING) {
+					ByteBuffer bigger = ByteBuffer.allocate(length + FRAMING);
+					bigger.put(in);
+					bigger.flip();
+					in = bigger;
+				}
+				if(!fill(in) || in.remaining() < length + FRAMING)
+					break;
+			}
+
+			int body = in.position() + 4;
+			crc.reset();
+			crc.update(in.array(), body, length);
+			if((int) crc.getValue() != in.getInt(body + length))
+				break;
+
+			byte type = in.get(body);
+			if(type == BALANCE || type == TRANSFER) {
+				int at = body + 1;
+				for(int entry = type == TRANSFER ? 2 : 1; entry > 0; entry--) {
+					int balance = in.getInt(at);
+					int nameLength = in.getShort(at + 4) & 0xFFFF;
+					String name = new String(in.array(), at + 6, nameLength, StandardCharsets.UTF_8);
+					if(accounts.contains(name))
+						accounts.restore(name, balance);
+					at += 6 + nameLength;
+				}
+			}
+			in.position(in.position() + length + FRAMING);
+			position += length + FRAMING;
+			++count;
+		}
+
+		if(position < end) {
+			System.out.println("Discarding " + (end - position) + " bytes of incomplete journal.");
+			channel.truncate(position - offset);
+		}
+		channel.position(position - offset);
+		appended = durable = position;
+		committer.start();
+		return count;
+	}
+
+	/* Read the header, if there is one, set offset to match, and return the position of the first record. */
+	private long readHeader() throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		channel.position(0);
+		while(header.hasRemaining() && channel.read(header) > 0)
+			;
+		first = offset = 0;
+		if(header.position() < 4 || header.getInt(0) != MAGIC)
+			return first;
+		if(header.hasRemaining())
+			throw new IOException("The journal's header is cut short.");
+		first = header.getLong(4);
+		offset = first - HEADER_LENGTH;
+		return first;
+	}
+
+	/* Move what is left of in to its front and read more of the file behind it. */
+	private boolean fill(ByteBuffer in) throws IOException {
+		in.compact();
+		int before = in.position();
+		while(in.hasRemaining() && channel.read(in) > 0)
+			;
+		in.flip();
+		return in.limit() > before;
+	}
+
+	/**
+	 * Appends a record of the account's new balance. The caller must hold the
+	 * account's lock, so that records for one account are in the order the
+	 * changes were made.
+	 *
+	 * @param name
+	 * @param balance
+	 * @return the position just after the record
+	 */
+	public long append(String name, int balance) {
+		return append(BALANCE, name, balance, null, 0);
+	}
+
+	/**
+	 * Appends a single record of both accounts' new balances after a transfer.
+	 * The caller must hold both accounts' locks.
+	 *
+	 * @param from
+	 * @param fromBalance
+	 * @param to
+	 * @param toBalance
+	 * @return the position just after the record
+	 */
+	public long appendTransfer(String from, int fromBalance, String to, int toBalance) {
+		return append(TRANSFER, from, fromBalance, to, toBalance);
+	}
+
+	/* Appends a record of one account's balance, and of a second account's too unless other is null. */
+	private long append(byte type, String name, int balance, String other, int otherBalance) {
+		// Names are nearly always ASCII, which goes into the buffer as it is without being encoded first
+		byte[] nameBytes = isAscii(name) ? null : name.getBytes(StandardCharsets.UTF_8);
+		int nameLength = nameBytes == null ? name.length() : nameBytes.length;
+		byte[] otherBytes = other == null || isAscii(other) ? null : other.getBytes(StandardCharsets.UTF_8);
+		int otherLength = other == null ? 0 : otherBytes == null ? other.length() : otherBytes.length;
+		int length = MIN_BODY + nameLength + (other == null ? 0 : 4 + 2 + otherLength);
+		if(length > MAX_BODY)
+			throw new IllegalArgumentException("Account name too long to journal.");
+
+		lock.lock();
+		try {
+			return append(type, length, name, nameBytes, nameLength, balance, other, otherBytes, otherLength, otherBalance);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/* The part of append that needs the lock. */
+	private long append(byte type, int length, String name, byte[] nameBytes, int nameLength, int balance, String other, byte[] otherBytes,
+			int otherLength, int otherBalance) {
+		// Nothing more can be made durable once a write has failed
+		appended += length + FRAMING;
+		if(failure != null)
+			return appended;
+
+		if(filling.remaining() < length + FRAMING) {
+			ByteBuffer bigger = ByteBuffer.allocate(Math.max(2 * filling.capacity(), filling.position() + length + FRAMING));
+			filling.flip();
+			bigger.put(filling);
+			filling = bigger;
+		}
+
+		boolean wasEmpty = filling.position() == 0;
+		int body = filling.position() + 4;
+		filling.putInt(length);
+		filling.put(type);
+		putEntry(name, nameBytes, nameLength, balance);
+		if(other != null)
+			putEntry(other, otherBytes, otherLength, otherBalance);
+		crc.reset();
+		crc.update(filling.array(), body, length);
+		filling.putInt((int) crc.getValue());
+
+		if(wasEmpty)
+			appendedTo.signal();
+		return appended;
+	}
+
+	/* A balance and the name it belongs to; nameBytes is null for an ASCII name. */
+	private void putEntry(String name, byte[] nameBytes, int nameLength, int balance) {
+		filling.putInt(balance);
+		filling.putShort((short) nameLength);
+		if(nameBytes != null) {
+			filling.put(nameBytes);
+		} else {
+			for(int i = 0; i < nameLength; i++)
+				filling.put((byte) name.charAt(i));
+		}
+	}
+
+	private static boolean isAscii(String s) {
+		for(int i = 0; i < s.length(); i++) {
+			if(s.charAt(i) >= 0x80)
+				return false;
+		}
+		return true;
+	}
+
+	/* The position just after the last record appended so far. */
+	public long position() {
+		lock.lock();
+		try {
+			return appended;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns a future that completes once every record up to the given
+	 * position is on disk, or fails if the journal cannot be written.
+	 *
+	 * @param position
+	 * @return
+	 */
+	public CompletableFuture<Void> whenDurable(long position) {
+		lock.lock();
+		try {
+			if(position <= durable)
+				return DONE;
+			Waiter waiter = new Waiter(position);
+			if(failure != null)
+				waiter.done.completeExceptionally(failure);
+			else
+				waiters.add(waiter);
+			return waiter.done;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/* Returns a future that completes once everything appended so far is on disk. */
+	public CompletableFuture<Void> sync() {
+		return whenDurable(position());
+	}
+
+	/**
+	 * Drops the records before the given position, which a snapshot now in
+	 * place covers, from the front of the file. The committer copies the rest
+	 * into a new file and puts it in place of the journal in one step, so a
+	 * crash leaves one file or the other whole. Appends go on meanwhile.
+	 *
+	 * @param position
+	 * @return a future that completes once the records are dropped, or fails
+	 *         if the journal is closed or could not be rewritten, which leaves
+	 *         the old file in place
+	 */
+	public CompletableFuture<Void> discardBefore(long position) {
+		lock.lock();
+		try {
+			if(position > appended)
+				throw new IllegalArgumentException("Cannot discard records that were never appended.");
+			if(position <= 0)
+				return DONE;
+			if(closed || failure != null) {
+				CompletableFuture<Void> refused = new CompletableFuture<Void>();
+				refused.completeExceptionally(failure != null ? failure : new IOException("The journal is closed."));
+				return refused;
+			}
+			// A later snapshot's position supersedes one still waiting to be dropped
+			discardBefore = Math.max(discardBefore, position);
+			if(discarded == null) {
+				discarded = new CompletableFuture<Void>();
+				appendedTo.signal();
+			}
+			return discarded;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/* Copy the records from position on into a new file behind a header, and put it in place of the journal. */
+	private void rewriteFrom(long position) throws IOException {
+		if(position <= first)
+			return;
+		long from = position - offset, end = channel.size();
+		Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+		FileChannel next = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+			header.putInt(MAGIC).putLong(position).flip();
+			while(header.hasRemaining())
+				next.write(header);
+			while(from < end)
+				from += channel.transferTo(from, end - from, next);
+			next.force(false);
+			Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			next.close();
+			Files.deleteIfExists(temporary);
+			throw e;
+		}
+		channel.close();
+		channel = next;
+		first = position;
+		offset = position - HEADER_LENGTH;
+	}
+
+	/* Write out and force each batch of appended records, then let their waiters go. */
+	private void commitLoop() {
+		while(true) {
+			long target, dropBefore;
+			CompletableFuture<Void> dropped;
+			lock.lock();
+			try {
+				while(filling.position() == 0 && discarded == null && !closed) {
+					try {
+						appendedTo.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if(filling.position() == 0 && discarded == null)
+					return;
+				dropBefore = discardBefore;
+				dropped = discarded;
+				discarded = null;
+				ByteBuffer full = filling;
+				filling = writing;
+				writing = full;
+				target = appended;
+			} finally {
+				lock.unlock();
+			}
+
+			List<Waiter> ready = new ArrayList<Waiter>();
+			IOException failed = null, failedWith;
+			try {
+				writing.flip();
+				if(writing.hasRemaining()) {
+					while(writing.hasRemaining())
+						channel.write(writing);
+					channel.force(false);
+				}
+			} catch (IOException e) {
+				System.err.println("Could not write the journal: " + e.getMessage());
+				failed = e;
+			}
+			writing.clear();
+
+			lock.lock();
+			try {
+				if(failed != null)
+					failure = failed;
+				else
+					durable = target;
+				failedWith = failure;
+				for(int i = waiters.size() - 1; i >= 0; --i) {
+					Waiter waiter = waiters.get(i);
+					if(failedWith != null || waiter.position <= durable) {
+						ready.add(waiter);
+						waiters.remove(i);
+					}
+				}
+			} finally {
+				lock.unlock();
+			}
+
+			// Complete outside the lock, since completing may run the replies
+			for(Waiter waiter : ready) {
+				if(failedWith != null)
+					waiter.done.completeExceptionally(failedWith);
+				else
+					waiter.done.complete(null);
+			}
+
+			// Everything appended before dropBefore is on disk now, so the file can be rewritten from there
+			if(dropped != null && failedWith == null) {
+				try {
+					rewriteFrom(dropBefore);
+					dropped.complete(null);
+				} catch (IOException e) {
+					System.err.println("Could not drop the journal before position " + dropBefore + ": " + e.getMessage());
+					dropped.completeExceptionally(e);
+				}
+			}
+			if(failedWith != null) {
+				// Nothing will be dropped any more
+				CompletableFuture<Void> waiting;
+				lock.lock();
+				try {
+					waiting = discarded;
+					discarded = null;
+				} finally {
+					lock.unlock();
+				}
+				if(dropped != null)
+					dropped.completeExceptionally(failedWith);
+				if(waiting != null)
+					waiting.completeExceptionally(failedWith);
+				return;
+			}
+		}
+	}
+
+	/* Writes out whatever is still buffered and closes the file. */
+	public void close() throws IOException {
+		lock.lock();
+		try {
+			closed = true;
+			appendedTo.signal();
+		} finally {
+			lock.unlock();
+		}
+		try {
+			if(committer.isAlive())
+				committer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		channel.close();
+	}
+}
@@ -0,0 +1,251 @@
+package atm;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+
+/**
+ * A fleet of simulated ATMs, for putting the Router and the Bank under load.
+ * It opens a number of connections to the Router, each speaking the ATM's own
+ * protocol through an AtmClient, and sends them a mix of AUTH, BALANCE and
+ * WITHDRAW requests at a fixed overall rate. The connections share a few
+ * AtmClientLoops, so thousands of them take only a handful of threads.
+ *
+ * The schedule is open-loop: request i is due at i / rate seconds after the
+ * start whether or not earlier requests have been answered, and its latency is
+ * measured from when it was due rather than from when it went out. When the
+ * system stalls, every request that piled up behind the stall shows the wait,
+ * instead of the generator quietly waiting along with it and reporting only
+ * the one slow request (coordinated omission).
+ *
+ * At the end it prints the throughput and the p50, p99, p99.9 and maximum
+ * latency of each kind of request and of all of them together. Settings are
+ * system properties:
+ *     load.connections    simulated ATMs, 100 by default
+ *     load.loops          threads serving their connections, 2 by default
+ *     load.rate           requests per second across all of them, 1000 by default
+ *     load.seconds        how long to measure, 30 by default
+ *     load.warmupSeconds  how long to run before measuring, 5 by default
+ *     load.mix            relative weights of each request, "auth:10,balance:60,withdraw:30" by default
+ *     load.accounts       an account book like the Bank's to pick accounts from, or the demonstration
+ *                         accounts by default
+ *     load.binary         true to send binary frames
+ *     load.gcm            true to secure requests with AES-GCM
+ *
+ * Usage: java atm.LoadGenerator <Router's ATM port>
+ */
+
+public class LoadGenerator {
+
+    private static final String[] KINDS = {"AUTH", "BALANCE", "WITHDRAW"};
+    private static final int AUTH = 0, BALANCE = 1, WITHDRAW = 2;
+    /* How long to wait for the last replies once the schedule is over. */
+    private static final long DRAIN_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    /* One account to send requests for. */
+    private static class Account {
+        final String name, pin, cardValue;
+
+        Account(String name, String pin, String cardValue) {
+            this.name = name;
+            this.pin = pin;
+            this.cardValue = cardValue;
+        }
+    }
+
+    private final Histogram[] latencies = new Histogram[KINDS.length];
+    private final Histogram all = new Histogram();
+    private final AtomicLong errors = new AtomicLong(), outstanding = new AtomicLong();
+    /* Requests due from here to measureEnd are measured. Set once warmup is over. */
+    private volatile long measureStart = Long.MAX_VALUE, measureEnd = Long.MAX_VALUE;
+
+    private LoadGenerator() {
+        for (int i = 0; i < KINDS.length; ++i)
+            latencies[i] = new Histogram();
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            System.out.println("Usage: java atm.LoadGenerator <ATM port>");
+            System.exit(1);
+        }
+        int atmPort = Integer.parseInt(args[0]);
+        int connections = Integer.getInteger("load.connections", 100);
+        int rate = Integer.getInteger("load.rate", 1000);
+        int seconds = Integer.getInteger("load.seconds", 30);
+        int warmupSeconds = Integer.getInteger("load.warmupSeconds", 5);
+        int[] mix = parseMix(System.getProperty("load.mix", "auth:10,balance:60,withdraw:30"));
+        String book = System.getProperty("load.accounts");
+        List<Account> accounts = book != null ? readAccounts(book) : demonstrationAccounts();
+
+        AtmClientLoop[] loops = new AtmClientLoop[Math.max(1, Integer.getInteger("load.loops", 2))];
+        for (int i = 0; i < loops.length; ++i)
+            loops[i] = new AtmClientLoop();
+
+        AtmClient[] atms = new AtmClient[connections];
+        for (int i = 0; i < connections; ++i) {
+            atms[i] = AtmClient.connect("localhost", atmPort, loops[i % loops.length]);
+            if (Boolean.getBoolean("load.binary") && !atms[i].useBinaryFrames().join()) {
+                System.out.println("The Bank does not understand binary frames.");
+                System.exit(1);
+            }
+            if (Boolean.getBoolean("load.gcm") && !atms[i].useAuthenticatedEncryption().join()) {
+                System.out.println("The Bank does not understand AES-GCM.");
+                System.exit(1);
+            }
+        }
+        System.out.println("Opened " + connections + " connections on " + loops.length + " loops; sending " + rate + " requests a second for "
+                + warmupSeconds + " s of warmup and " + seconds + " s of measurement.");
+
+        LoadGenerator generator = new LoadGenerator();
+        generator.run(atms, accounts, mix, rate, warmupSeconds, seconds);
+        generator.report(seconds);
+        System.exit(0);
+    }
+
+    /* Send requests on schedule until the warmup and the measurement are over, then wait for the stragglers. */
+    private void run(AtmClient[] atms, List<Account> accounts, int[] mix, int rate, int warmupSeconds, int seconds) throws Exception {
+        Random random = new Random();
+        int weights = 0;
+        for (int weight : mix)
+            weights += weight;
+
+        long start = System.nanoTime(), interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        measureStart = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        measureEnd = measureStart + TimeUnit.SECONDS.toNanos(seconds);
+        long nextReport = start + TimeUnit.SECONDS.toNanos(1), sentSinceReport = 0;
+
+        for (long i = 0; ; ++i) {
+            long due = start + i * interval;
+            if (due >= measureEnd)
+                break;
+            long now;
+            while ((now = System.nanoTime()) < due)
+                LockSupport.parkNanos(due - now);
+
+            // Falling behind does not move the schedule; the requests go out late and their latency shows it
+            int pick = random.nextInt(weights), kind = 0;
+            while (pick >= mix[kind])
+                pick -= mix[kind++];
+            Account account = accounts.get(random.nextInt(accounts.size()));
+            send(atms[(int) (i % atms.length)], kind, account, due);
+            ++sentSinceReport;
+
+            if (now >= nextReport) {
+                System.out.println(String.format("%5d s  sent %8d/s  outstanding %8d  errors %d", TimeUnit.NANOSECONDS.toSeconds(now - start),
+                        sentSinceReport, outstanding.get(), errors.get()));
+                sentSinceReport = 0;
+                nextReport += TimeUnit.SECONDS.toNanos(1);
+            }
+        }
+
+        long giveUp = System.nanoTime() + DRAIN_NANOS;
+        while (outstanding.get() > 0 && System.nanoTime() < giveUp)
+            Thread.sleep(10);
+    }
+
+    private void send(AtmClient atm, final int kind, Account account, final long due) {
+        outstanding.incrementAndGet();
+        CompletableFuture<?> reply;
+        if (kind == AUTH)
+            reply = atm.authenticate(account.name, account.pin, account.cardValue);
+        else if (kind == BALANCE)
+            reply = atm.balance(account.name);
+        else
+            reply = atm.withdraw(account.name, 1);
+
+        reply.whenComplete(new BiConsumer<Object, Throwable>() {
+            public void accept(Object result, Throwable failure) {
+                long latency = System.nanoTime() - due;
+                outstanding.decrementAndGet();
+                // Refusals count, as do logins turned away by a Bank with too many to check
+                if (failure != null)
+                    errors.incrementAndGet();
+                if (due >= measureStart && due < measureEnd) {
+                    latencies[kind].record(latency);
+                    all.record(latency);
+                }
+            }
+        });
+    }
+
+    private void report(int seconds) {
+        System.out.println();
+        System.out.println(String.format("%-10s %10s %10s %10s %10s %10s %10s", "Request", "Count", "ops/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms"));
+        for (int i = 0; i < KINDS.length; ++i)
+            reportLine(KINDS[i], latencies[i], seconds);
+        reportLine("ALL", all, seconds);
+        System.out.println("Errors: " + errors.get() + ", never answered: " + outstanding.get());
+    }
+
+    private static void reportLine(String name, Histogram histogram, int seconds) {
+        System.out.println(String.format("%-10s %10d %10.0f %10.3f %10.3f %10.3f %10.3f", name, histogram.count(), (double) histogram.count() / seconds,
+                millis(histogram.valueAt(50)), millis(histogram.valueAt(99)), millis(histogram.valueAt(99.9)), millis(histogram.max())));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    /* Parse weights such as "auth:10,balance:60,withdraw:30"; kinds left out get no requests. */
+    private static int[] parseMix(String spec) {
+        int[] mix = new int[KINDS.length];
+        int weights = 0;
+        for (String part : spec.split(",")) {
+            String[] fields = part.trim().split(":");
+            int kind = -1;
+            for (int i = 0; i < KINDS.length; ++i) {
+                if (KINDS[i].equalsIgnoreCase(fields[0].trim()))
+                    kind = i;
+            }
+            if (kind < 0 || fields.length != 2)
+                throw new IllegalArgumentException("Bad load.mix entry: " + part);
+            mix[kind] = Integer.parseInt(fields[1].trim());
+            weights += mix[kind];
+        }
+        if (weights <= 0)
+            throw new IllegalArgumentException("load.mix must give some request a weight.");
+        return mix;
+    }
+
+    /* The accounts in an account book of "name,balance,pin,card value" lines. */
+    private static List<Account> readAccounts(String book) throws IOException {
+        List<Account> accounts = new ArrayList<Account>();
+        BufferedReader in = Files.newBufferedReader(Paths.get(book), StandardCharsets.UTF_8);
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                String[] fields = line.split(",");
+                if (fields.length == 4)
+                    accounts.add(new Account(fields[0].trim(), fields[2].trim(), fields[3].trim()));
+            }
+        } finally {
+            in.close();
+        }
+        if (accounts.isEmpty())
+            throw new IOException("The account book has no accounts.");
+        return accounts;
+    }
+
+    /* The accounts a Bank opens when it has no account book. */
+    private static List<Account> demonstrationAccounts() {
+        List<Account> accounts = new ArrayList<Account>();
+        accounts.add(new Account("Alice", "0", "0"));
+        accounts.add(new Account("Bob", "0", "0"));
+        accounts.add(new Account("Carol", "0", "0"));
+        return accounts;
+    }
+}
@@ -0,0 +1,199 @@
+package atm;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * The counters and latency histograms of one component, such as the Bank or
+ * the Router, readable over JMX and optionally logged as one line every so
+ * often.
+ *
+ * Counters are LongAdders, which spread updates from different threads over
+ * separate cells, and latencies go into Histograms, so recording costs a few
+ * nanoseconds and threads recording at once hardly contend. Components look
+ * their counters and histograms up once and keep them in fields; the lookup is
+ * not meant for the hot path.
+ *
+ * Over JMX, under "atm:type=<component>", every counter is an attribute, and
+ * every histogram NAME gives NAME.count, NAME.p50, NAME.p99, NAME.p999 and
+ * NAME.max: in microseconds for histograms of durations, and as they are for
+ * histograms of sizes.
+ */
+
+public class Metrics implements DynamicMBean {
+
+    private static final String DOMAIN = "atm";
+    private static final double[] PERCENTILES = {50, 99, 99.9};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p99", "p999"};
+
+    private final String component;
+    /* Guarded by this. Only ever added to. */
+    private final Map<String, LongAdder> counters = new LinkedHashMap<String, LongAdder>();
+    private final Map<String, Histogram> histograms = new LinkedHashMap<String, Histogram>();
+    /* The names of histograms of sizes rather than durations. */
+    private final Set<String> sizes = new HashSet<String>();
+
+    public Metrics(String component) {
+        this.component = component;
+    }
+
+    /* The counter with this name, created the first time it is asked for. */
+    public synchronized LongAdder counter(String name) {
+        LongAdder counter = counters.get(name);
+        if (counter == null) {
+            counter = new LongAdder();
+            counters.put(name, counter);
+        }
+        return counter;
+    }
+
+    /* The histogram of durations with this name, created the first time it is asked for. Values are in nanoseconds. */
+    public synchronized Histogram histogram(String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            histogram = new Histogram();
+            histograms.put(name, histogram);
+        }
+        return histogram;
+    }
+
+    /* The histogram of sizes, such as bytes, with this name, created the first time it is asked for. */
+    public synchronized Histogram sizeHistogram(String name) {
+        sizes.add(name);
+        return histogram(name);
+    }
+
+    /**
+     * Registers with the platform MBean server, and if the system property
+     * periodProperty gives a number of seconds, logs a line that often.
+     *
+     * @param periodProperty
+     */
+    public void publish(String periodProperty) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(DOMAIN + ":type=" + component));
+        } catch (JMException e) {
+            System.err.println("Could not register the " + component + " metrics: " + e.getMessage());
+        }
+
+        long seconds = Long.getLong(periodProperty, 0);
+        if (seconds <= 0)
+            return;
+        ScheduledExecutorService service = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, component.toLowerCase() + "-metrics");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        service.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                System.out.println(line());
+            }
+        }, seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    /* Every counter, and the count and percentiles of every histogram that has values, on one line. */
+    public synchronized String line() {
+        StringBuilder line = new StringBuilder(component).append(':');
+        for (Map.Entry<String, LongAdder> counter : counters.entrySet())
+            line.append(' ').append(counter.getKey()).append('=').append(counter.getValue().sum());
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            Histogram histogram = entry.getValue();
+            if (histogram.count() == 0)
+                continue;
+            String name = entry.getKey(), unit = sizes.contains(name) ? "" : "us";
+            line.append(' ').append(name).append("=").append(histogram.count());
+            for (int i = 0; i < PERCENTILES.length; ++i)
+                line.append('/').append(PERCENTILE_NAMES[i]).append(':').append(scaled(name, histogram.valueAt(PERCENTILES[i]))).append(unit);
+        }
+        return line.toString();
+    }
+
+    /* A histogram value as reported: sizes as they are, durations in microseconds. */
+    private long scaled(String histogram, long value) {
+        return sizes.contains(histogram) ? value : TimeUnit.NANOSECONDS.toMicros(value);
+    }
+
+    public synchronized Object getAttribute(String attribute) throws AttributeNotFoundException {
+        LongAdder counter = counters.get(attribute);
+        if (counter != null)
+            return counter.sum();
+
+        int dot = attribute.lastIndexOf('.');
+        String name = dot < 0 ? null : attribute.substring(0, dot);
+        Histogram histogram = dot < 0 ? null : histograms.get(name);
+        if (histogram != null) {
+            String statistic = attribute.substring(dot + 1);
+            if (statistic.equals("count"))
+                return histogram.count();
+            if (statistic.equals("max"))
+                return scaled(name, histogram.max());
+            for (int i = 0; i < PERCENTILES.length; ++i) {
+                if (statistic.equals(PERCENTILE_NAMES[i]))
+                    return scaled(name, histogram.valueAt(PERCENTILES[i]));
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException e) {
+                // Left out, as the interface asks
+            }
+        }
+        return list;
+    }
+
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only.");
+    }
+
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    public synchronized MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+        for (String name : counters.keySet())
+            attributes.add(new MBeanAttributeInfo(name, "long", name, true, false, false));
+        for (String name : histograms.keySet()) {
+            String unit = sizes.contains(name) ? "" : " in microseconds";
+            attributes.add(new MBeanAttributeInfo(name + ".count", "long", name + " count", true, false, false));
+            for (String percentile : PERCENTILE_NAMES)
+                attributes.add(new MBeanAttributeInfo(name + "." + percentile, "long", name + " " + percentile + unit, true, false, false));
+            attributes.add(new MBeanAttributeInfo(name + ".max", "long", name + " max" + unit, true, false, false));
+        }
+        return new MBeanInfo(getClass().getName(), component + " metrics", attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+                null, new MBeanOperationInfo[0], null);
+    }
+}
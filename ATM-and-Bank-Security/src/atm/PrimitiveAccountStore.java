@@ -0,0 +1,388 @@
+package atm;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * An AccountStore for millions of accounts. Instead of an object per account,
+ * every account is a slot number into a few primitive arrays: balances in a
+ * long[], credentials as fixed-width hashes in a byte[] (see Credentials), and
+ * names in a char[] arena. An open-addressing index maps a name's hash to its
+ * slot. That is around 90 bytes an account and almost nothing for the garbage
+ * collector to trace, and looking up or updating an account allocates nothing.
+ *
+ * The arrays are split into chunks of CHUNK slots, so growing the store never
+ * moves a balance that another thread may be updating. Balances are guarded by
+ * a fixed set of lock stripes, each covering every STRIPES-th slot. Balance
+ * reads are optimistic: they take no lock and write nothing shared, and only
+ * retry under the stripe's read lock if a write to the stripe overlapped them,
+ * so reads scale with cores and never wait behind withdrawals. Lookups
+ * take no lock: a slot's name, credentials and opening balance are written
+ * before the slot is published in the index, and the index is read with
+ * volatile semantics; a chunk's name arena, which is replaced when it fills,
+ * is as well. Opening accounts is serialized, since it is rare next to
+ * balance traffic.
+ */
+
+public class PrimitiveAccountStore implements AccountStore {
+
+	private static final int CHUNK_SHIFT = 16, CHUNK = 1 << CHUNK_SHIFT, CHUNK_MASK = CHUNK - 1;
+	/* Keeps slot numbers, and the index's length, within an int. */
+	private static final int MAX_CHUNKS = 1 << 13;
+	private static final int STRIPES = 1 << 12;
+	private static final int INITIAL_NAME_ARENA = 8 * CHUNK;
+	private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+
+	/*
+	 * The arrays, by chunk. A new Table, with a new index, replaces the old one whenever there are no more
+	 * chunks to fill, so an index only ever holds slots whose chunks are in the same Table.
+	 */
+	private static final class Table {
+		final long[][] balances;
+		final byte[][] credentials;
+		/* Where each slot's name starts in its chunk's arena: the name's length, then its chars. */
+		final int[][] nameOffsets;
+		/* Published with volatile semantics, since a fuller copy replaces an arena that lookups are reading. */
+		final AtomicReferenceArray<char[]> names;
+		/* Slot + 1 for every account, or 0 for a free entry. */
+		final AtomicIntegerArray index;
+
+		Table(int chunks) {
+			balances = new long[chunks][];
+			credentials = new byte[chunks][];
+			nameOffsets = new int[chunks][];
+			names = new AtomicReferenceArray<char[]>(chunks);
+			index = new AtomicIntegerArray(2 * chunks * CHUNK);
+		}
+	}
+
+	private volatile Table table;
+	private final StampedLock[] stripes = new StampedLock[STRIPES];
+	private final Journal journal;
+
+	/* Only changed while holding this. Written after table, so a Table read after it covers every slot. */
+	private volatile int size = 0;
+	/* How much of each chunk's name arena is in use. Guarded by this. */
+	private final int[] nameFill = new int[MAX_CHUNKS];
+
+	public PrimitiveAccountStore() {
+		this(CHUNK, null);
+	}
+
+	public PrimitiveAccountStore(Journal journal) {
+		this(CHUNK, journal);
+	}
+
+	/**
+	 * @param expectedAccounts how many accounts to make room for up front
+	 * @param journal where to write balance changes ahead to, or null to keep them in memory only
+	 */
+	public PrimitiveAccountStore(int expectedAccounts, Journal journal) {
+		int chunks = 1;
+		while((long) chunks * CHUNK < expectedAccounts)
+			chunks <<= 1;
+		this.table = new Table(chunks);
+		this.journal = journal;
+		for(int i = 0; i < STRIPES; i++)
+			stripes[i] = new StampedLock();
+	}
+
+	public void add(String name, int balance, String pin, String cardValue) {
+		add(name, balance, Credentials.hash(name, pin, cardValue));
+	}
+
+	public synchronized void add(String name, int balance, byte[] credentials) {
+		if(name.length() > Character.MAX_VALUE)
+			throw new IllegalArgumentException("Account name too long.");
+		Table t = table;
+		int slot = find(t, name);
+		if(slot >= 0) {
+			// Replace the existing account
+			StampedLock lock = stripes[slot & (STRIPES - 1)];
+			long stamp = lock.writeLock();
+			try {
+				t.balances[slot >>> CHUNK_SHIFT][slot & CHUNK_MASK] = balance;
+				System.arraycopy(credentials, 0, t.credentials[slot >>> CHUNK_SHIFT], (slot & CHUNK_MASK) * Credentials.HASH_LENGTH, Credentials.HASH_LENGTH);
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+			return;
+		}
+
+		slot = size;
+		int chunk = slot >>> CHUNK_SHIFT, i = slot & CHUNK_MASK;
+		boolean grown = chunk == t.balances.length;
+		if(grown)
+			t = grow(t);
+		if(t.balances[chunk] == null) {
+			t.balances[chunk] = new long[CHUNK];
+			t.credentials[chunk] = new byte[CHUNK * Credentials.HASH_LENGTH];
+			t.nameOffsets[chunk] = new int[CHUNK];
+			t.names.set(chunk, new char[INITIAL_NAME_ARENA]);
+		}
+
+		// Fill the slot in before it can be found
+		char[] arena = t.names.get(chunk);
+		int offset = nameFill[chunk];
+		if(offset + 1 + name.length() > arena.length) {
+			char[] bigger = new char[Math.max(2 * arena.length, offset + 1 + name.length())];
+			System.arraycopy(arena, 0, bigger, 0, offset);
+			t.names.set(chunk, arena = bigger);
+		}
+		arena[offset] = (char) name.length();
+		name.getChars(0, name.length(), arena, offset + 1);
+		nameFill[chunk] = offset + 1 + name.length();
+		t.nameOffsets[chunk][i] = offset;
+		t.balances[chunk][i] = balance;
+		System.arraycopy(credentials, 0, t.credentials[chunk], i * Credentials.HASH_LENGTH, Credentials.HASH_LENGTH);
+
+		insert(t.index, name.hashCode(), slot);
+		if(grown)
+			table = t;
+		size = slot + 1;
+	}
+
+	/* A Table with twice as many chunks, sharing the filled ones, and an index holding every account so far. */
+	private Table grow(Table old) {
+		int chunks = old.balances.length;
+		if(chunks >= MAX_CHUNKS)
+			throw new IllegalStateException("Too many accounts.");
+		Table t = new Table(2 * chunks);
+		System.arraycopy(old.balances, 0, t.balances, 0, chunks);
+		System.arraycopy(old.credentials, 0, t.credentials, 0, chunks);
+		System.arraycopy(old.nameOffsets, 0, t.nameOffsets, 0, chunks);
+		for(int chunk = 0; chunk < chunks; chunk++)
+			t.names.set(chunk, old.names.get(chunk));
+		for(int slot = 0; slot < size; slot++)
+			insert(t.index, nameHash(t, slot), slot);
+		return t;
+	}
+
+	private static void insert(AtomicIntegerArray index, int hash, int slot) {
+		int mask = index.length() - 1;
+		int i = spread(hash) & mask;
+		while(index.get(i) != 0)
+			i = (i + 1) & mask;
+		index.set(i, slot + 1);
+	}
+
+	/* Returns the account's slot, or -1 if there is no such account. */
+	private static int find(Table t, String name) {
+		AtomicIntegerArray index = t.index;
+		int mask = index.length() - 1;
+		for(int i = spread(name.hashCode()) & mask; ; i = (i + 1) & mask) {
+			int entry = index.get(i);
+			if(entry == 0)
+				return -1;
+			if(nameEquals(t, entry - 1, name))
+				return entry - 1;
+		}
+	}
+
+	private static boolean nameEquals(Table t, int slot, String name) {
+		char[] arena = t.names.get(slot >>> CHUNK_SHIFT);
+		int offset = t.nameOffsets[slot >>> CHUNK_SHIFT][slot & CHUNK_MASK];
+		int length = arena[offset];
+		if(length != name.length())
+			return false;
+		for(int i = 0; i < length; i++) {
+			if(arena[offset + 1 + i] != name.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	/* The same hash String.hashCode() gives, computed from the arena. */
+	private static int nameHash(Table t, int slot) {
+		char[] arena = t.names.get(slot >>> CHUNK_SHIFT);
+		int offset = t.nameOffsets[slot >>> CHUNK_SHIFT][slot & CHUNK_MASK];
+		int hash = 0;
+		for(int i = 0, length = arena[offset]; i < length; i++)
+			hash = 31 * hash + arena[offset + 1 + i];
+		return hash;
+	}
+
+	private static int spread(int hash) {
+		return (hash ^ (hash >>> 16)) * 0x9E3779B9;
+	}
+
+	private static String nameOf(Table t, int slot) {
+		char[] arena = t.names.get(slot >>> CHUNK_SHIFT);
+		int offset = t.nameOffsets[slot >>> CHUNK_SHIFT][slot & CHUNK_MASK];
+		return new String(arena, offset + 1, arena[offset]);
+	}
+
+	public boolean contains(String name) {
+		return find(table, name) >= 0;
+	}
+
+	public int getBalance(String name) {
+		Table t = table;
+		int slot = find(t, name);
+		if(slot < 0)
+			return -1;
+		long[] balances = t.balances[slot >>> CHUNK_SHIFT];
+		int i = slot & CHUNK_MASK;
+		StampedLock lock = stripes[slot & (STRIPES - 1)];
+		long stamp = lock.tryOptimisticRead();
+		// A long may be read torn, but then the stamp no longer validates
+		long balance = balances[i];
+		if(lock.validate(stamp))
+			return (int) balance;
+		stamp = lock.readLock();
+		try {
+			return (int) balances[i];
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	public boolean verify(String name, String pinCandidate, String cardValueCandidate) {
+		Table t = table;
+		int slot = find(t, name);
+		if(slot < 0)
+			return false;
+		// Copy the record out, as balances are read, and hash the candidate only after: hashing takes milliseconds,
+		// and withdrawals on the stripe would wait that long behind a read lock held through it
+		byte[] credentials = new byte[Credentials.HASH_LENGTH];
+		byte[] chunk = t.credentials[slot >>> CHUNK_SHIFT];
+		int offset = (slot & CHUNK_MASK) * Credentials.HASH_LENGTH;
+		StampedLock lock = stripes[slot & (STRIPES - 1)];
+		long stamp = lock.tryOptimisticRead();
+		System.arraycopy(chunk, offset, credentials, 0, Credentials.HASH_LENGTH);
+		if(!lock.validate(stamp)) {
+			stamp = lock.readLock();
+			try {
+				System.arraycopy(chunk, offset, credentials, 0, Credentials.HASH_LENGTH);
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+		return Credentials.matches(credentials, 0, name, pinCandidate, cardValueCandidate);
+	}
+
+	public boolean deposit(String name, int amount) {
+		if(amount <= 0)
+			return false;
+		Table t = table;
+		int slot = find(t, name);
+		if(slot < 0)
+			return false;
+		long[] balances = t.balances[slot >>> CHUNK_SHIFT];
+		int i = slot & CHUNK_MASK;
+		StampedLock lock = stripes[slot & (STRIPES - 1)];
+		long stamp = lock.writeLock();
+		try {
+			balances[i] = Math.min(balances[i] + amount, Integer.MAX_VALUE);
+			if(journal != null)
+				journal.append(name, (int) balances[i]);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+		return true;
+	}
+
+	public boolean withdraw(String name, int amount) {
+		if(amount <= 0)
+			return false;
+		Table t = table;
+		int slot = find(t, name);
+		if(slot < 0)
+			return false;
+		long[] balances = t.balances[slot >>> CHUNK_SHIFT];
+		int i = slot & CHUNK_MASK;
+		StampedLock lock = stripes[slot & (STRIPES - 1)];
+		long stamp = lock.writeLock();
+		try {
+			if(balances[i] >= amount) {
+				balances[i] -= amount;
+				if(journal != null)
+					journal.append(name, (int) balances[i]);
+				return true;
+			}
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+		return false;
+	}
+
+	/*
+	 * Holds the write locks of both accounts' stripes, taken in stripe order so that transfers can never wait on
+	 * each other in a cycle, or the one lock when both accounts share a stripe.
+	 */
+	public boolean transfer(String from, String to, int amount) {
+		if(amount <= 0)
+			return false;
+		Table t = table;
+		int source = find(t, from), destination = find(t, to);
+		if(source < 0 || destination < 0 || source == destination)
+			return false;
+		long[] sourceBalances = t.balances[source >>> CHUNK_SHIFT], destinationBalances = t.balances[destination >>> CHUNK_SHIFT];
+		int i = source & CHUNK_MASK, j = destination & CHUNK_MASK;
+		int firstStripe = Math.min(source & (STRIPES - 1), destination & (STRIPES - 1));
+		int secondStripe = Math.max(source & (STRIPES - 1), destination & (STRIPES - 1));
+		StampedLock first = stripes[firstStripe], second = firstStripe == secondStripe ? null : stripes[secondStripe];
+		long firstStamp = first.writeLock();
+		try {
+			long secondStamp = second == null ? 0 : second.writeLock();
+			try {
+				if(sourceBalances[i] < amount || destinationBalances[j] > Integer.MAX_VALUE - amount)
+					return false;
+				sourceBalances[i] -= amount;
+				destinationBalances[j] += amount;
+				if(journal != null)
+					journal.appendTransfer(from, (int) sourceBalances[i], to, (int) destinationBalances[j]);
+				return true;
+			} finally {
+				if(second != null)
+					second.unlockWrite(secondStamp);
+			}
+		} finally {
+			first.unlockWrite(firstStamp);
+		}
+	}
+
+	public void restore(String name, int balance) {
+		Table t = table;
+		int slot = find(t, name);
+		if(slot < 0)
+			return;
+		StampedLock lock = stripes[slot & (STRIPES - 1)];
+		long stamp = lock.writeLock();
+		try {
+			t.balances[slot >>> CHUNK_SHIFT][slot & CHUNK_MASK] = balance;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	public CompletableFuture<Void> sync() {
+		return journal == null ? DONE : journal.sync();
+	}
+
+	public void forEach(Visitor visitor) throws IOException {
+		byte[] credentials = new byte[Credentials.HASH_LENGTH];
+		int count = size;
+		Table t = table;
+		for(int slot = 0; slot < count; slot++) {
+			int balance;
+			StampedLock lock = stripes[slot & (STRIPES - 1)];
+			long stamp = lock.tryOptimisticRead();
+			balance = (int) t.balances[slot >>> CHUNK_SHIFT][slot & CHUNK_MASK];
+			System.arraycopy(t.credentials[slot >>> CHUNK_SHIFT], (slot & CHUNK_MASK) * Credentials.HASH_LENGTH, credentials, 0, Credentials.HASH_LENGTH);
+			if(!lock.validate(stamp)) {
+				stamp = lock.readLock();
+				try {
+					balance = (int) t.balances[slot >>> CHUNK_SHIFT][slot & CHUNK_MASK];
+					System.arraycopy(t.credentials[slot >>> CHUNK_SHIFT], (slot & CHUNK_MASK) * Credentials.HASH_LENGTH, credentials, 0, Credentials.HASH_LENGTH);
+				} finally {
+					lock.unlockRead(stamp);
+				}
+			}
+			visitor.visit(nameOf(t, slot), balance, credentials);
+		}
+	}
+}
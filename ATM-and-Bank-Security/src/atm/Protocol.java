@@ -1,3 +1,5 @@
+package atm;
+
 import java.io.BufferedReader;
 import java.io.IOException;
 
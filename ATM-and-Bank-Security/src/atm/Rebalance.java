@@ -0,0 +1,121 @@
+package atm;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Moves accounts between shards when shards are added or removed (see
+ * ShardRing). It reads every old shard's snapshot and journal, brings each
+ * account up to date, and writes a fresh snapshot and an empty journal for
+ * every new shard holding the accounts the new ring gives it. Thanks to the
+ * ring, adding a shard to N only moves about one account in N + 1; the rest
+ * stay with the shard they were on.
+ *
+ * The procedure is offline:
+ *     1. Stop the Router, so that no request is left in flight, then stop
+ *        every Bank. Their snapshots and journals hold everything they
+ *        acknowledged.
+ *     2. Run Rebalance with the new list of shards and each old shard's files.
+ *     3. Start a Bank for every new shard on its new files, with
+ *        -Dbank.snapshot, -Dbank.journal, and bank.shards and bank.shard
+ *        naming the new list and the shard.
+ *     4. Start the Router with the new list.
+ * The old files are only read, so until step 3 going back is a matter of
+ * restarting the old Banks.
+ *
+ * New files are written to the directory in the system property
+ * rebalance.dir, the working directory by default, as "<host>-<port>.snapshot"
+ * and "<host>-<port>.journal". Files already there are not overwritten.
+ *
+ * Usage: java atm.Rebalance <new shards> <old shard>=<snapshot>,<journal> ...
+ */
+
+public class Rebalance {
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: java atm.Rebalance <host:port,host:port,...> <old host:port>=<snapshot>,<journal> ...");
+            System.exit(1);
+        }
+
+        try {
+            rebalance(ShardRing.parse(args[0]), args, Paths.get(System.getProperty("rebalance.dir", ".")));
+        } catch (IOException e) {
+            System.out.println("Rebalancing failed: " + e.getMessage());
+            System.exit(1);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Rebalancing failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static void rebalance(final ShardRing ring, String[] args, Path dir) throws IOException {
+        final Path[] snapshots = new Path[ring.size()], journals = new Path[ring.size()];
+        for (int shard = 0; shard < ring.size(); ++shard) {
+            String base = ring.name(shard).replace(':', '-');
+            snapshots[shard] = dir.resolve(base + ".snapshot");
+            journals[shard] = dir.resolve(base + ".journal");
+            if (Files.exists(snapshots[shard]) || Files.exists(journals[shard]))
+                throw new IOException(snapshots[shard] + " or " + journals[shard] + " already exists.");
+        }
+
+        final AccountStore[] stores = new AccountStore[ring.size()];
+        for (int shard = 0; shard < ring.size(); ++shard)
+            stores[shard] = new PrimitiveAccountStore();
+        final int[] counts = new int[ring.size()];
+        final long[] moved = new long[1];
+
+        for (int i = 1; i < args.length; ++i) {
+            int equals = args[i].indexOf('='), comma = args[i].indexOf(',', equals);
+            if (equals < 0 || comma < 0)
+                throw new IOException("Expected <old host:port>=<snapshot>,<journal> but got " + args[i]);
+            final String oldShard = args[i].substring(0, equals);
+
+            AccountStore old = load(Paths.get(args[i].substring(equals + 1, comma)), Paths.get(args[i].substring(comma + 1)));
+            old.forEach(new AccountStore.Visitor() {
+                public void visit(String name, int balance, byte[] credentials) throws IOException {
+                    int shard = ring.shardOf(name);
+                    if (stores[shard].contains(name))
+                        throw new IOException("Account " + name + " is on more than one old shard.");
+                    stores[shard].add(name, balance, credentials.clone());
+                    ++counts[shard];
+                    if (!ring.name(shard).equals(oldShard))
+                        ++moved[0];
+                }
+            });
+        }
+
+        long total = 0;
+        for (int shard = 0; shard < ring.size(); ++shard) {
+            Journal journal = new Journal(journals[shard]);
+            try {
+                journal.replay(stores[shard]);
+                Snapshot.write(snapshots[shard], stores[shard], journal);
+            } finally {
+                journal.close();
+            }
+            total += counts[shard];
+            System.out.println(ring.name(shard) + ": " + counts[shard] + " accounts in " + snapshots[shard]);
+        }
+        System.out.println(moved[0] + " of " + total + " accounts moved to another shard.");
+    }
+
+    /* An old shard's accounts as of its last acknowledged change. */
+    private static AccountStore load(Path snapshot, Path journalFile) throws IOException {
+        AccountStore accounts = new PrimitiveAccountStore();
+        long position = Snapshot.load(snapshot, accounts);
+        if (position < 0)
+            throw new IOException("There is no snapshot at " + snapshot + ".");
+        if (!Files.exists(journalFile))
+            throw new IOException("There is no journal at " + journalFile + ".");
+        Journal journal = new Journal(journalFile);
+        try {
+            journal.replay(accounts, position);
+        } finally {
+            journal.close();
+        }
+        return accounts;
+    }
+}
@@ -0,0 +1,133 @@
+package atm;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Replay protection for requests that carry a request ID. A request ID is made
+ * of a session number, picked at random by each terminal connection, in its
+ * high SESSION_BITS bits and a sequence number counting up from 1 in its low
+ * SEQUENCE_BITS bits. A terminal that runs out of sequence numbers picks a
+ * new session. Sessions are wide so that terminals sharing one by chance, and
+ * turning each other's requests away as replays, stay unlikely even with
+ * millions of them: the odds of any two of a million live sessions colliding
+ * are about 1 in 500. Sessions are not told apart by the connection they came
+ * in on, since a request replayed through another Router link must still be
+ * caught.
+ *
+ * Every session gets its own sliding window: the highest sequence number seen
+ * so far and a bitmap of which of the WINDOW numbers below it have been used.
+ * A request is accepted once, and only if its sequence number is new and not
+ * too far behind. Checks for different sessions never contend, and each check
+ * is a map lookup and a few bit operations.
+ *
+ * A window is forgotten once its newest request is too old for
+ * EncryptionHelper to accept, since nothing from that session can get past the
+ * time check any more.
+ */
+
+public class ReplayWindows {
+
+	/* How far behind the highest sequence number a request may arrive and still be accepted. */
+	static final int WINDOW = 64;
+	static final int SESSION_BITS = 48, SEQUENCE_BITS = 64 - SESSION_BITS;
+	static final long SESSION_MASK = (1L << SESSION_BITS) - 1;
+	static final int MAX_SEQUENCE = (1 << SEQUENCE_BITS) - 1;
+	/* Sessions kept before the first sweep for stale windows. */
+	private static final int MIN_SWEEP_SIZE = 1024;
+
+	private final ConcurrentHashMap<Long, Window> windows = new ConcurrentHashMap<Long, Window>();
+	private final long lifetimeMillis;
+	private volatile int sweepAt = MIN_SWEEP_SIZE;
+
+	public ReplayWindows(long lifetimeMillis) {
+		this.lifetimeMillis = lifetimeMillis;
+	}
+
+	/* The sequence numbers of one session. Only touched while holding its lock. */
+	private static class Window {
+		// Sequence number 0 is never sent, so it starts out used
+		private long highest = 0, seen = 1;
+		private long lastTime;
+		// Set once a sweep has dropped the window from the map
+		private boolean retired = false;
+
+		Window(long time) {
+			lastTime = time;
+		}
+
+		boolean accept(long sequence, long time) {
+			if(sequence > highest) {
+				long shift = sequence - highest;
+				seen = shift >= WINDOW ? 1 : (seen << shift) | 1;
+				highest = sequence;
+			} else {
+				long behind = highest - sequence;
+				if(behind >= WINDOW || (seen & (1L << behind)) != 0)
+					return false;
+				seen |= 1L << behind;
+			}
+			if(time > lastTime)
+				lastTime = time;
+			return true;
+		}
+	}
+
+	/**
+	 * Records a verified request, and returns false if it is a replay or too
+	 * far behind the newest request of its session to tell.
+	 *
+	 * @param requestId
+	 * @param time the time the request was secured at
+	 * @return
+	 */
+	public boolean accept(long requestId, long time) {
+		Long session = sessionOf(requestId);
+		long sequence = sequenceOf(requestId);
+		while(true) {
+			Window window = windows.get(session);
+			if(window == null) {
+				Window created = new Window(time);
+				window = windows.putIfAbsent(session, created);
+				if(window == null) {
+					window = created;
+					if(windows.size() > sweepAt)
+						sweep();
+				}
+			}
+			synchronized(window) {
+				// A retired window has been swept; look the session up again
+				if(!window.retired)
+					return window.accept(sequence, time);
+			}
+		}
+	}
+
+	/* Drop the windows of sessions that have gone quiet for longer than a request stays valid. */
+	private void sweep() {
+		long oldest = System.currentTimeMillis() - lifetimeMillis;
+		for(Long session : windows.keySet()) {
+			Window window = windows.get(session);
+			if(window == null)
+				continue;
+			synchronized(window) {
+				if(window.lastTime < oldest) {
+					window.retired = true;
+					windows.remove(session, window);
+				}
+			}
+		}
+		sweepAt = Math.max(MIN_SWEEP_SIZE, 2 * windows.size());
+	}
+
+	static long requestId(long session, int sequence) {
+		return (session << SEQUENCE_BITS) | (sequence & MAX_SEQUENCE);
+	}
+
+	static long sessionOf(long requestId) {
+		return requestId >>> SEQUENCE_BITS;
+	}
+
+	static int sequenceOf(long requestId) {
+		return (int) requestId & MAX_SEQUENCE;
+	}
+}
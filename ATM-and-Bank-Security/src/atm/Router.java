@@ -0,0 +1,210 @@
+package atm;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+
+import java.nio.channels.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The Router sits between any number of ATMs and any number of Banks.
+ *
+ * Each ATM is pinned to one Bank when it sends its first message. Lines from
+ * an ATM are forwarded to its Bank tagged with the ATM's route id, as in
+ * "<id>|<message>", and the Bank echoes the tag on its reply so the Router
+ * knows which terminal to hand the reply back to. The tag is stripped before
+ * the reply reaches the ATM. Binary frames (see WireFormat) carry the route id
+ * in a field of their own instead, which the Router fills in on the way to the
+ * Bank and clears on the way back.
+ *
+ * The work is spread over one or more RouterLoops, each a thread with its own
+ * Selector. Banks are dealt out to the loops in turn, and every ATM is placed
+ * on a loop that has a Bank, so a terminal and the Bank serving it always live
+ * on the same thread. Run at least as many Bank connections as loops to keep
+ * every loop busy; a Router that dials a listening Bank opens one per loop.
+ *
+ * The accounts can be split between several Banks, shards that each own the
+ * accounts a consistent-hash ring (see ShardRing) gives them. The Router is
+ * then started with every shard's address, "host:port,host:port,...", and
+ * each loop dials every shard once. Requests carrying a shard header (see
+ * WireFormat) go to the Bank owning the account named in it; requests without
+ * one go to the terminal's pinned Bank as before, which suits requests such as
+ * MODE that are about no account. Banks that connect to the Router instead are
+ * not sharded and never told apart. See Rebalance for adding a shard.
+ *
+ * A dialed Bank that drops is dialed again, after a wait that doubles with
+ * every failed try up to router.redialMaxMillis, 5 seconds by default. Until
+ * it is back, requests for it are answered with a router error (see
+ * WireFormat) in place of the Bank's reply, as are requests that were still
+ * queued for it when it dropped, so terminals need not wait them out.
+ *
+ * The loops count what they forward in metrics (see Metrics), which can be
+ * read over JMX as atm:type=Router, and logged every router.metricsSeconds
+ * seconds if that system property is set.
+ */
+
+public class Router {
+
+    /* Longest line accepted from a connection, newline included. */
+    final static int BUF_LENGTH = 8192;
+    /* Bytes that may be queued for a connection before it counts as backed up. */
+    final static int OUT_LENGTH = 64 * 1024;
+    final static char ROUTE_SEPARATOR = '|';
+    /* Room a route tag can take up: ten digits and the separator. */
+    final static int ROUTE_TAG_LENGTH = 11;
+    /* Shared by every loop. */
+    final static Metrics metrics = new Metrics("Router");
+
+    private ServerSocketChannel atmServerChannel, bankServerChannel;
+    private RouterLoop[] loops;
+    /* The shards dialed, or null when Banks connect to the Router. */
+    ShardRing ring;
+    /* Where each shard listens, by shard number. */
+    private InetSocketAddress[] shardAddresses;
+
+    /* Taken by the accepting loop, and by any loop dialing a Bank again. */
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    /* Only touched by the loop that accepts connections. */
+    private int nextBankLoop = 0, nextAtmLoop = 0;
+
+    public static void main(String[] args) {
+
+        if (args.length < 2) {
+            System.out.println("Usage: java atm.Router <Bank port | Bank host:port[,host:port...]> <ATM port> [event loops]");
+            System.exit(1);
+        }
+
+        int loopCount = 1;
+        if (args.length > 2)
+            loopCount = Integer.parseInt(args[2]);
+        if (loopCount < 1) {
+            System.out.println("The number of event loops must be at least 1.");
+            System.exit(1);
+        }
+
+        Router router = new Router();
+        try {
+            router.bind(args[0], Integer.parseInt(args[1]), loopCount);
+        } catch (IOException e) {
+            System.out.println("Could not bind: " + e.getMessage());
+            System.exit(1);
+        }
+
+        metrics.publish("router.metricsSeconds");
+        router.start();
+    }
+
+    /**
+     * Opens the event loops and starts listening for ATMs on the first one. A
+     * bare port means Banks connect to the Router on that port; a host:port
+     * means the Bank is listening there, and every loop dials it once. A list
+     * of them means one shard is listening at each, and every loop dials each
+     * of them once.
+     *
+     * @param bank
+     * @param atmPort
+     * @param loopCount
+     * @throws IOException
+     */
+    void bind(String bank, int atmPort, int loopCount) throws IOException {
+        ring = bank.indexOf(':') < 0 ? null : ShardRing.parse(bank);
+        loops = new RouterLoop[loopCount];
+        for (int i = 0; i < loopCount; ++i)
+            loops[i] = new RouterLoop(this, ring == null ? 0 : ring.size());
+
+        Selector acceptor = loops[0].selector();
+
+        if (ring == null) {
+            bankServerChannel = ServerSocketChannel.open();
+            bankServerChannel.socket().bind(new InetSocketAddress(Integer.parseInt(bank)));
+            bankServerChannel.configureBlocking(false);
+            bankServerChannel.register(acceptor, SelectionKey.OP_ACCEPT);
+        } else {
+            shardAddresses = new InetSocketAddress[ring.size()];
+            for (int shard = 0; shard < ring.size(); ++shard) {
+                String name = ring.name(shard);
+                int sep = name.lastIndexOf(':');
+                shardAddresses[shard] = new InetSocketAddress(name.substring(0, sep), Integer.parseInt(name.substring(sep + 1)));
+                for (RouterLoop loop : loops) {
+                    SocketChannel channel = SocketChannel.open(shardAddresses[shard]);
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    RouterConnection conn = new RouterConnection(RouterConnection.Role.BANK, channel, nextId.getAndIncrement(), OUT_LENGTH, OUT_LENGTH);
+                    conn.shard = shard;
+                    loop.add(conn);
+                }
+            }
+        }
+
+        atmServerChannel = ServerSocketChannel.open();
+        atmServerChannel.socket().bind(new InetSocketAddress(atmPort));
+        atmServerChannel.configureBlocking(false);
+        atmServerChannel.register(acceptor, SelectionKey.OP_ACCEPT);
+    }
+
+    /* Run the first loop on this thread and every other loop on a thread of its own. */
+    void start() {
+        for (int i = 1; i < loops.length; ++i)
+            new Thread(loops[i], "router-loop-" + i).start();
+        loops[0].run();
+    }
+
+    /**
+     * Starts dialing a shard again without waiting for the connection to be
+     * made. The connection is flagged as connecting until it has been; the
+     * caller finishes it once its channel is ready to connect.
+     *
+     * @param shard
+     * @return
+     * @throws IOException
+     */
+    RouterConnection dial(int shard) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            RouterConnection conn = new RouterConnection(RouterConnection.Role.BANK, channel, nextId.getAndIncrement(), OUT_LENGTH, OUT_LENGTH);
+            conn.shard = shard;
+            conn.connecting = !channel.connect(shardAddresses[shard]);
+            return conn;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /* Accept a pending connection and give it to one of the loops. Called by the first loop. */
+    void accept(ServerSocketChannel server) {
+        SocketChannel channel;
+        try {
+            channel = server.accept();
+            if (channel == null)
+                return;
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        } catch (IOException e) {
+            System.err.println("Socket Accept() failed.");
+            return;
+        }
+
+        if (server == bankServerChannel) {
+            RouterConnection conn = new RouterConnection(RouterConnection.Role.BANK, channel, nextId.getAndIncrement(), OUT_LENGTH, OUT_LENGTH);
+            loops[nextBankLoop++ % loops.length].add(conn);
+        } else {
+            RouterConnection conn = new RouterConnection(RouterConnection.Role.ATM, channel, nextId.getAndIncrement(), BUF_LENGTH, 4 * BUF_LENGTH);
+            loops[pickAtmLoop()].add(conn);
+        }
+    }
+
+    /* Round-robin over the loops, skipping loops that have no Bank to serve the terminal. */
+    private int pickAtmLoop() {
+        for (int tries = 0; tries < loops.length; ++tries) {
+            int i = nextAtmLoop++ % loops.length;
+            if (loops[i].bankCount.get() > 0)
+                return i;
+        }
+        return nextAtmLoop++ % loops.length;
+    }
+}
@@ -0,0 +1,207 @@
+package atm;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Per-connection state kept by the Router. Every ATM and every Bank that is
+ * connected to the Router gets one of these, attached to its selection key.
+ *
+ * Messages are newline-terminated lines or length-prefixed binary frames (see
+ * WireFormat). Each connection has a direct inbound buffer in which partial
+ * messages accumulate until they are complete, and a direct outbound buffer
+ * holding bytes queued for the peer that the socket has not accepted yet.
+ * Both buffers are always in "fill" mode: the position is the number of bytes
+ * held.
+ */
+
+public class RouterConnection {
+
+    enum Role { ATM, BANK }
+
+    final Role role;
+    final SocketChannel channel;
+    SelectionKey key;
+
+    /* Route id used to tag this terminal's messages on the Bank link. */
+    final int id;
+
+    /* The Bank this ATM is pinned to (null for Bank connections). */
+    RouterConnection bank;
+    /* The shard a Bank connection serves (see ShardRing), or -1 for Banks that connected to the Router. */
+    int shard = -1;
+
+    final ByteBuffer inbound;
+    /* A second view of inbound, used to copy messages out without moving its position. */
+    final ByteBuffer inboundView;
+    /* How far into inbound we have already looked for the current line's newline. */
+    int scanned = 0;
+    /* Set while skipping the rest of a line that did not fit in inbound. */
+    boolean discarding = false;
+    /* Bytes left to skip of a binary frame too long to fit in inbound. */
+    long skipping = 0;
+
+    final ByteBuffer outbound;
+    /* Connections whose reads are paused until outbound has room again. */
+    final List<RouterConnection> waiting = new ArrayList<RouterConnection>();
+
+    /*
+     * On a Bank link, the requests the socket has not taken all of yet, oldest
+     * first, so that they can be answered if the link drops: where each ends
+     * in the stream of bytes queued on the link, and who sent it. A ring that
+     * grows when it fills.
+     */
+    private long[] backlogEnds = new long[64];
+    private int[] backlogRoutes = new int[64];
+    private long[] backlogRequestIds = new long[64];
+    private int backlogHead = 0, backlogSize = 0;
+    /* Bytes queued on and written to the link since it opened. */
+    private long queuedBytes = 0, writtenBytes = 0;
+    /* Set on a dialed Bank link until the connection is made. */
+    boolean connecting = false;
+
+    RouterConnection(Role role, SocketChannel channel, int id, int inLength, int outLength) {
+        this.role = role;
+        this.channel = channel;
+        this.id = id;
+        this.inbound = ByteBuffer.allocateDirect(inLength);
+        this.inboundView = inbound.duplicate();
+        this.outbound = ByteBuffer.allocateDirect(outLength);
+    }
+
+    /**
+     * Reads whatever is available from the channel into the inbound buffer.
+     *
+     * @return the number of bytes read, or -1 if the peer closed the connection
+     * @throws IOException
+     */
+    int read() throws IOException {
+        return channel.read(inbound);
+    }
+
+    /**
+     * Returns bytes [from, to) of the inbound buffer as a buffer that can be
+     * handed to put(). The returned view is reused by the next call.
+     *
+     * @param from
+     * @param to
+     * @return
+     */
+    ByteBuffer inboundSlice(int from, int to) {
+        inboundView.limit(to).position(from);
+        return inboundView;
+    }
+
+    /**
+     * Drops the first consumed bytes of the inbound buffer, moving any partial
+     * line that follows them to the front.
+     *
+     * @param consumed
+     */
+    void consume(int consumed) {
+        if (consumed == 0)
+            return;
+        inbound.limit(inbound.position()).position(consumed);
+        inbound.compact();
+        scanned -= consumed;
+    }
+
+    /**
+     * Writes as much of the outbound buffer as the socket will take, and keeps
+     * OP_WRITE interest set for as long as anything is left over.
+     *
+     * @throws IOException
+     */
+    void flush() throws IOException {
+        if (outbound.position() > 0) {
+            outbound.flip();
+            writtenBytes += channel.write(outbound);
+            outbound.compact();
+            while (backlogSize > 0 && backlogEnds[backlogHead] <= writtenBytes) {
+                backlogHead = (backlogHead + 1) & (backlogEnds.length - 1);
+                --backlogSize;
+            }
+        }
+        setInterest(SelectionKey.OP_WRITE, outbound.position() > 0);
+    }
+
+    /**
+     * Notes that a request of length bytes was just queued in outbound, so
+     * that it can be answered should the link drop before it is written.
+     *
+     * @param length
+     * @param route the route id of the terminal that sent it
+     * @param requestId its request ID, or EncryptionHelper.NO_REQUEST_ID if it has none
+     */
+    void queued(int length, int route, long requestId) {
+        queuedBytes += length;
+        if (requestId == EncryptionHelper.NO_REQUEST_ID)
+            return;
+        if (backlogSize == backlogEnds.length)
+            growBacklog();
+        int tail = (backlogHead + backlogSize) & (backlogEnds.length - 1);
+        backlogEnds[tail] = queuedBytes;
+        backlogRoutes[tail] = route;
+        backlogRequestIds[tail] = requestId;
+        ++backlogSize;
+    }
+
+    /* Number of requests in outbound that have not been written whole. */
+    int backlogSize() {
+        return backlogSize;
+    }
+
+    /* The route id of the i'th unwritten request, oldest first. */
+    int backlogRoute(int i) {
+        return backlogRoutes[(backlogHead + i) & (backlogRoutes.length - 1)];
+    }
+
+    /* The request ID of the i'th unwritten request, oldest first. */
+    long backlogRequestId(int i) {
+        return backlogRequestIds[(backlogHead + i) & (backlogRequestIds.length - 1)];
+    }
+
+    private void growBacklog() {
+        int length = backlogEnds.length;
+        long[] ends = new long[2 * length];
+        int[] routes = new int[2 * length];
+        long[] requestIds = new long[2 * length];
+        for (int i = 0; i < backlogSize; ++i) {
+            int at = (backlogHead + i) & (length - 1);
+            ends[i] = backlogEnds[at];
+            routes[i] = backlogRoutes[at];
+            requestIds[i] = backlogRequestIds[at];
+        }
+        backlogEnds = ends;
+        backlogRoutes = routes;
+        backlogRequestIds = requestIds;
+        backlogHead = 0;
+    }
+
+    void setInterest(int op, boolean on) {
+        if (key == null || !key.isValid())
+            return;
+        int ops = key.interestOps();
+        int wanted = on ? (ops | op) : (ops & ~op);
+        if (wanted != ops)
+            key.interestOps(wanted);
+    }
+
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Could not close " + this);
+        }
+    }
+
+    public String toString() {
+        return role + " #" + id;
+    }
+}
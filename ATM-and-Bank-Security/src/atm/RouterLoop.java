@@ -0,0 +1,567 @@
+package atm;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One event loop of the Router: a thread with its own Selector that owns a
+ * set of connections outright. An ATM is only ever placed on a loop together
+ * with the Bank it is pinned to, so forwarding never crosses threads and none
+ * of the state below needs locking. The one exception is the queue through
+ * which the accepting loop hands new connections over. When the accounts are
+ * sharded, every loop has a connection of its own to every shard, so the same
+ * holds for requests that go to a shard rather than to the pinned Bank, and
+ * each loop dials its own connection again when one drops.
+ */
+
+public class RouterLoop implements Runnable {
+
+    private final Router router;
+    private final Selector selector;
+
+    private final List<RouterConnection> banks = new ArrayList<RouterConnection>();
+    /* This loop's connection to each shard (see Router.ring), by shard number. */
+    private final RouterConnection[] shards;
+    /* When to dial each dropped shard again, and how long the last wait was. */
+    private final boolean[] redialing;
+    private final long[] redialAt;
+    private final long[] redialMillis;
+    private final Map<Integer, RouterConnection> atms = new HashMap<Integer, RouterConnection>();
+    /* Connections that had bytes queued for them since the last flush. */
+    private final List<RouterConnection> dirty = new ArrayList<RouterConnection>();
+    private int nextBank = 0;
+
+    /* Connections accepted elsewhere, waiting to be registered with this selector. */
+    private final Queue<RouterConnection> incoming = new ConcurrentLinkedQueue<RouterConnection>();
+    /* Number of Banks on this loop, read by the accepting loop when placing ATMs. */
+    final AtomicInteger bankCount = new AtomicInteger();
+
+    /* Shared by every loop; see Router.metrics. */
+    private static final LongAdder wakeups = Router.metrics.counter("selector.wakeups");
+    private static final LongAdder messagesToBank = Router.metrics.counter("messages.toBank");
+    private static final LongAdder bytesToBank = Router.metrics.counter("bytes.toBank");
+    private static final LongAdder messagesToAtm = Router.metrics.counter("messages.toAtm");
+    private static final LongAdder bytesToAtm = Router.metrics.counter("bytes.toAtm");
+    private static final LongAdder pauses = Router.metrics.counter("pauses");
+    private static final LongAdder dropped = Router.metrics.counter("messages.dropped");
+    private static final LongAdder sharded = Router.metrics.counter("messages.sharded");
+    /* Requests answered with a router error because their Bank was not connected or dropped them. */
+    private static final LongAdder unroutable = Router.metrics.counter("messages.unroutable");
+    private static final LongAdder oversized = Router.metrics.counter("messages.oversized");
+    private static final LongAdder redials = Router.metrics.counter("banks.redials");
+    /* Bytes queued for a connection each time they are handed to its socket. */
+    private static final Histogram queued = Router.metrics.sizeHistogram("outbound.queued");
+
+    /* The first wait before dialing a dropped shard again, and the longest. */
+    private static final long REDIAL_MIN_MILLIS = 100;
+    private static final long REDIAL_MAX_MILLIS = Long.getLong("router.redialMaxMillis", 5000);
+
+    RouterLoop(Router router, int shardCount) throws IOException {
+        this.router = router;
+        this.selector = Selector.open();
+        this.shards = new RouterConnection[shardCount];
+        this.redialing = new boolean[shardCount];
+        this.redialAt = new long[shardCount];
+        this.redialMillis = new long[shardCount];
+    }
+
+    Selector selector() {
+        return selector;
+    }
+
+    /* Hand a freshly accepted connection over to this loop. Safe to call from any thread. */
+    void add(RouterConnection conn) {
+        if (conn.role == RouterConnection.Role.BANK)
+            bankCount.incrementAndGet();
+        incoming.add(conn);
+        selector.wakeup();
+    }
+
+    /* Accept, read and forward until the process is killed. */
+    public void run() {
+        while (true) {
+            int readyChannels = 0;
+
+            try {
+                readyChannels = selector.select(untilRedial());
+            } catch (IOException e) {
+                System.err.println("Select failed...");
+                System.exit(1);
+            }
+            wakeups.increment();
+            registerIncoming();
+            redial();
+            if (readyChannels == 0)
+                continue;
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+
+                if (!key.isValid())
+                    continue;
+
+                if (key.isAcceptable()) {
+                    router.accept((ServerSocketChannel) key.channel());
+                    continue;
+                }
+
+                RouterConnection conn = (RouterConnection) key.attachment();
+                if (key.isConnectable()) {
+                    finishDial(conn);
+                    continue;
+                }
+                try {
+                    if (key.isWritable())
+                        write(conn);
+                    if (key.isValid() && key.isReadable())
+                        read(conn);
+                } catch (IOException e) {
+                    System.err.println("IO Exception on " + conn + ", dropping it.");
+                    disconnect(conn);
+                }
+            }
+            flushDirty();
+        }
+    }
+
+    private void registerIncoming() {
+        RouterConnection conn;
+        while ((conn = incoming.poll()) != null) {
+            if (conn.role == RouterConnection.Role.BANK) {
+                banks.add(conn);
+                if (conn.shard >= 0)
+                    shards[conn.shard] = conn;
+            } else {
+                atms.put(conn.id, conn);
+            }
+
+            try {
+                conn.key = conn.channel.register(selector, SelectionKey.OP_READ, conn);
+            } catch (ClosedChannelException e) {
+                System.err.println("Closed channel...");
+                disconnect(conn);
+                continue;
+            }
+            System.out.println(conn + " connected to the router.");
+        }
+    }
+
+    private void read(RouterConnection conn) throws IOException {
+        if (conn.read() < 0) {
+            disconnect(conn);
+            return;
+        }
+        forwardMessages(conn);
+    }
+
+    /**
+     * Forwards every complete message sitting in the connection's inbound
+     * buffer: newline-terminated text lines and binary frames (see
+     * WireFormat), told apart by their first byte, each perhaps after a shard
+     * header. If the destination cannot take a message right now, reading
+     * from this connection is paused until the destination has drained its
+     * backlog. A message too long to forward is skipped, and answered with a
+     * router error if it is a request.
+     *
+     * @param conn
+     * @throws IOException
+     */
+    private void forwardMessages(RouterConnection conn) throws IOException {
+        ByteBuffer in = conn.inbound;
+        int start = 0, end = in.position();
+
+        while (start < end) {
+            if (conn.skipping > 0) {
+                int skipped = (int) Math.min(conn.skipping, end - start);
+                conn.skipping -= skipped;
+                start += skipped;
+                continue;
+            }
+
+            /* The message proper starts after the shard header, if there is one. */
+            int body = start;
+            long shardKey = -1;
+            if (!conn.discarding && conn.role == RouterConnection.Role.ATM && in.get(start) == WireFormat.SHARD_HEADER) {
+                if (end - start <= WireFormat.SHARD_HEADER_LENGTH)
+                    break;
+                shardKey = WireFormat.shardKeyOf(in, start);
+                if (shardKey < 0) {
+                    System.err.println("Malformed shard header from " + conn + ", dropping it.");
+                    disconnect(conn);
+                    return;
+                }
+                body = start + WireFormat.SHARD_HEADER_LENGTH;
+            }
+
+            byte first = in.get(body);
+            if (!conn.discarding && WireFormat.isBinary(first)) {
+                if (end - body < WireFormat.PREFIX_LENGTH)
+                    break;
+                int declared = in.getInt(body + WireFormat.LENGTH_OFFSET);
+                if (declared < WireFormat.minFrameLength(first) - WireFormat.PREFIX_LENGTH) {
+                    /* There is no way to find the next frame after a bad length. */
+                    System.err.println("Malformed binary frame from " + conn + ", dropping it.");
+                    disconnect(conn);
+                    return;
+                }
+                /* The whole message, shard header and all, has to fit in the buffer. */
+                if (declared > in.capacity() - (body - start) - WireFormat.PREFIX_LENGTH) {
+                    if (end - body < WireFormat.REQUEST_ID_OFFSET + 8)
+                        break;
+                    oversized.increment();
+                    if (conn.role == RouterConnection.Role.ATM)
+                        refuse(conn, in.getLong(body + WireFormat.REQUEST_ID_OFFSET));
+                    else
+                        dropped.increment();
+                    conn.skipping = (long) body - start + WireFormat.PREFIX_LENGTH + declared;
+                    continue;
+                }
+                int length = WireFormat.PREFIX_LENGTH + declared;
+                if (end - body < length)
+                    break;
+                if (!forwardMessage(conn, body, body + length, true, shardKey)) {
+                    pause(conn, start);
+                    return;
+                }
+                start = body + length;
+                continue;
+            }
+
+            int newline = -1;
+            for (int i = Math.max(conn.scanned, body); i < end; ++i) {
+                if (in.get(i) == '\n') {
+                    newline = i;
+                    break;
+                }
+            }
+            if (newline < 0) {
+                conn.scanned = end;
+                break;
+            }
+            if (conn.discarding) {
+                conn.discarding = false;
+            } else if (!forwardMessage(conn, body, newline + 1, false, shardKey)) {
+                pause(conn, start);
+                return;
+            }
+            start = newline + 1;
+        }
+        conn.consume(start);
+
+        /*
+         * A full buffer holding part of one line means the line is too long to
+         * forward. Binary frames never get here: one that fits is forwarded
+         * whole, and one that does not is skipped above.
+         */
+        if (!in.hasRemaining()) {
+            if (!conn.discarding) {
+                oversized.increment();
+                if (conn.role == RouterConnection.Role.ATM)
+                    refuse(conn, WireFormat.requestIdOfLine(in, 0, in.position()));
+                else
+                    dropped.increment();
+            }
+            in.clear();
+            conn.scanned = 0;
+            conn.discarding = true;
+        }
+    }
+
+    /* Stop reading from a connection whose next message, at start, cannot be forwarded yet. */
+    private void pause(RouterConnection conn, int start) {
+        pauses.increment();
+        conn.scanned = start;
+        conn.consume(start);
+        conn.setInterest(SelectionKey.OP_READ, false);
+    }
+
+    /**
+     * Queues inbound bytes [from, to), a whole message, on the connection it
+     * is bound for. Queued bytes go out at the end of the current round of the
+     * event loop, so a burst of messages costs one write.
+     *
+     * @param shardKey the ring key from the message's shard header, or -1 if it had none
+     * @return false if the destination is backed up and the message must wait
+     * @throws IOException
+     */
+    private boolean forwardMessage(RouterConnection conn, int from, int to, boolean binary, long shardKey) throws IOException {
+        if (conn.role == RouterConnection.Role.ATM)
+            return forwardToBank(conn, from, to, binary, shardKey);
+        return forwardToAtm(conn, from, to, binary);
+    }
+
+    /*
+     * Text lines get a route tag in front; binary frames have a route field,
+     * which is filled in on the copy queued for the Bank. Replies come back on
+     * the same Bank connection, whichever shard it is.
+     */
+    private boolean forwardToBank(RouterConnection atm, int from, int to, boolean binary, long shardKey) {
+        ByteBuffer in = atm.inbound;
+        long requestId = binary ? in.getLong(from + WireFormat.REQUEST_ID_OFFSET) : WireFormat.requestIdOfLine(in, from, to);
+        RouterConnection bank;
+        if (shardKey >= 0 && router.ring != null) {
+            bank = shards[router.ring.shardOf((int) shardKey)];
+            if (bank == null) {
+                refuse(atm, requestId);
+                return true;
+            }
+            sharded.increment();
+        } else {
+            if (atm.bank == null) {
+                if (banks.isEmpty()) {
+                    refuse(atm, requestId);
+                    return true;
+                }
+                atm.bank = banks.get(nextBank++ % banks.size());
+            }
+            bank = atm.bank;
+        }
+
+        /* Stop taking requests from a terminal that is not reading its replies. */
+        if (atm.outbound.position() >= Router.BUF_LENGTH) {
+            atm.waiting.add(atm);
+            return false;
+        }
+
+        ByteBuffer out = bank.outbound;
+        if (out.remaining() < Router.ROUTE_TAG_LENGTH + to - from) {
+            bank.waiting.add(atm);
+            return false;
+        }
+
+        if (out.position() == 0)
+            dirty.add(bank);
+        int frameStart = out.position();
+        if (!binary)
+            putRouteTag(out, atm.id);
+        out.put(atm.inboundSlice(from, to));
+        if (binary)
+            out.putInt(frameStart + WireFormat.ROUTE_OFFSET, atm.id);
+        bank.queued(out.position() - frameStart, atm.id, requestId);
+        messagesToBank.increment();
+        bytesToBank.add(to - from);
+        return true;
+    }
+
+    /* The route tag or route field is taken off again before the reply reaches the terminal. */
+    private boolean forwardToAtm(RouterConnection bank, int from, int to, boolean binary) {
+        ByteBuffer in = bank.inbound;
+        RouterConnection atm = null;
+        int body = from;
+
+        if (binary) {
+            atm = atms.get(in.getInt(from + WireFormat.ROUTE_OFFSET));
+        } else {
+            int id = 0;
+            byte b;
+            while (body < to && (b = in.get(body)) >= '0' && b <= '9') {
+                id = id * 10 + (b - '0');
+                ++body;
+            }
+            if (body > from && body < to && in.get(body) == Router.ROUTE_SEPARATOR)
+                atm = atms.get(id);
+            ++body;
+        }
+        if (atm == null) {
+            dropped.increment();
+            return true;
+        }
+        if (to - body > atm.outbound.capacity()) {
+            oversized.increment();
+            dropped.increment();
+            return true;
+        }
+
+        /*
+         * Hold the rest of the Bank link back until this terminal has read
+         * enough of its earlier replies. Terminals stop being read once their
+         * replies pile up, so this only lasts while replies are in flight.
+         */
+        if (atm.outbound.remaining() < to - body) {
+            atm.waiting.add(bank);
+            return false;
+        }
+
+        if (atm.outbound.position() == 0)
+            dirty.add(atm);
+        int frameStart = atm.outbound.position();
+        atm.outbound.put(bank.inboundSlice(body, to));
+        if (binary)
+            atm.outbound.putInt(frameStart + WireFormat.ROUTE_OFFSET, 0);
+        messagesToAtm.increment();
+        bytesToAtm.add(to - body);
+        return true;
+    }
+
+    /*
+     * Answer a request with a router error (see WireFormat) in place of the
+     * reply its Bank cannot give. Without a request ID, or room for the error,
+     * the terminal is left to time the request out.
+     */
+    private void refuse(RouterConnection atm, long requestId) {
+        unroutable.increment();
+        if (atm == null || !atm.channel.isOpen() || requestId == EncryptionHelper.NO_REQUEST_ID
+                || atm.outbound.remaining() < WireFormat.ROUTER_ERROR_LENGTH) {
+            dropped.increment();
+            return;
+        }
+        if (atm.outbound.position() == 0)
+            dirty.add(atm);
+        WireFormat.putRouterError(atm.outbound, requestId);
+    }
+
+    /* Hand everything queued during this round of the loop to the sockets. */
+    private void flushDirty() {
+        for (int i = 0; i < dirty.size(); ++i) {
+            RouterConnection conn = dirty.get(i);
+            try {
+                if (conn.channel.isOpen())
+                    write(conn);
+            } catch (IOException e) {
+                System.err.println("IO Exception on " + conn + ", dropping it.");
+                disconnect(conn);
+            }
+        }
+        dirty.clear();
+    }
+
+    /* Write out queued bytes and let paused connections continue once there is room. */
+    private void write(RouterConnection conn) throws IOException {
+        queued.record(conn.outbound.position());
+        conn.flush();
+        if (conn.waiting.isEmpty())
+            return;
+
+        List<RouterConnection> resumed = new ArrayList<RouterConnection>(conn.waiting);
+        conn.waiting.clear();
+        for (RouterConnection source : resumed)
+            resume(source);
+    }
+
+    private void resume(RouterConnection conn) {
+        if (!conn.channel.isOpen())
+            return;
+        conn.setInterest(SelectionKey.OP_READ, true);
+        try {
+            forwardMessages(conn);
+        } catch (IOException e) {
+            System.err.println("IO Exception on " + conn + ", dropping it.");
+            disconnect(conn);
+        }
+    }
+
+    /* Writes the route tag "<id>|" in ASCII without going through a String. */
+    private static void putRouteTag(ByteBuffer out, int id) {
+        int digits = 1;
+        for (int n = id; n >= 10; n /= 10)
+            ++digits;
+        int pos = out.position() + digits;
+        for (int n = id, i = pos - 1; i >= out.position(); n /= 10, --i)
+            out.put(i, (byte) ('0' + n % 10));
+        out.position(pos);
+        out.put((byte) Router.ROUTE_SEPARATOR);
+    }
+
+    private void disconnect(RouterConnection conn) {
+        conn.close();
+        List<RouterConnection> paused = new ArrayList<RouterConnection>(conn.waiting);
+        conn.waiting.clear();
+        if (conn.role == RouterConnection.Role.ATM) {
+            atms.remove(conn.id);
+        } else {
+            banks.remove(conn);
+            bankCount.decrementAndGet();
+            /* Terminals pinned to this Bank pick a new one on their next message. */
+            for (RouterConnection atm : atms.values())
+                if (atm.bank == conn)
+                    atm.bank = null;
+            /* Requests the Bank never got all of will not be answered by it. */
+            for (int i = 0; i < conn.backlogSize(); ++i)
+                refuse(atms.get(conn.backlogRoute(i)), conn.backlogRequestId(i));
+            if (conn.shard >= 0 && shards[conn.shard] == conn) {
+                shards[conn.shard] = null;
+                scheduleRedial(conn.shard);
+            }
+        }
+        for (RouterConnection source : paused)
+            resume(source);
+        System.out.println(conn + " disconnected from the router.");
+    }
+
+    /* Milliseconds the selector may sleep before a shard is due to be dialed again, or 0 for no limit. */
+    private long untilRedial() {
+        long now = System.nanoTime(), wait = 0;
+        for (int shard = 0; shard < shards.length; ++shard) {
+            if (!redialing[shard])
+                continue;
+            long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(redialAt[shard] - now) + 1);
+            if (wait == 0 || millis < wait)
+                wait = millis;
+        }
+        return wait;
+    }
+
+    /* Wait a while before dialing a dropped shard again, twice as long as last time. */
+    private void scheduleRedial(int shard) {
+        redialMillis[shard] = redialMillis[shard] == 0 ? REDIAL_MIN_MILLIS : Math.min(2 * redialMillis[shard], REDIAL_MAX_MILLIS);
+        redialAt[shard] = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(redialMillis[shard]);
+        redialing[shard] = true;
+    }
+
+    /* Start dialing every dropped shard whose wait is over. */
+    private void redial() {
+        long now = System.nanoTime();
+        for (int shard = 0; shard < shards.length; ++shard) {
+            if (!redialing[shard] || now - redialAt[shard] < 0)
+                continue;
+            redialing[shard] = false;
+            redials.increment();
+            RouterConnection conn = null;
+            try {
+                conn = router.dial(shard);
+                conn.key = conn.channel.register(selector, conn.connecting ? SelectionKey.OP_CONNECT : SelectionKey.OP_READ, conn);
+            } catch (IOException e) {
+                if (conn != null)
+                    conn.close();
+                scheduleRedial(shard);
+                continue;
+            }
+            if (!conn.connecting)
+                connected(conn);
+        }
+    }
+
+    /* Finish dialing a shard once its channel is ready, or try again later. */
+    private void finishDial(RouterConnection conn) {
+        try {
+            if (!conn.channel.finishConnect())
+                return;
+        } catch (IOException e) {
+            conn.close();
+            scheduleRedial(conn.shard);
+            return;
+        }
+        conn.connecting = false;
+        conn.setInterest(SelectionKey.OP_CONNECT, false);
+        conn.setInterest(SelectionKey.OP_READ, true);
+        connected(conn);
+    }
+
+    private void connected(RouterConnection conn) {
+        banks.add(conn);
+        shards[conn.shard] = conn;
+        bankCount.incrementAndGet();
+        redialMillis[conn.shard] = 0;
+        System.out.println(conn + " reconnected to shard " + router.ring.name(conn.shard) + ".");
+    }
+}
@@ -0,0 +1,111 @@
+package atm;
+
+import java.util.Arrays;
+
+/**
+ * A consistent-hash ring that splits the accounts between shards, Bank
+ * processes that each own part of them. Every shard is placed on the ring at
+ * POINTS points derived from its name, and an account belongs to the shard
+ * with the first point at or after the account's key, wrapping around. A new
+ * shard only takes over the accounts just before its own points, about one in
+ * N of them, and every other account stays where it was.
+ *
+ * The ring depends only on the set of shard names, not their order, so the
+ * Router, the Banks and Rebalance all build the same ring from the same list.
+ * Shards are named after the address the Router dials, such as
+ * "localhost:7301", and listed with commas in between.
+ */
+
+public final class ShardRing {
+
+    /* Points per shard. More even out the shards' shares of the ring. */
+    static final int POINTS = 128;
+
+    private final String[] shards;
+    /* The points in ascending order, and the shard owning each. */
+    private final int[] points;
+    private final int[] owners;
+
+    /**
+     * @param shards the shards' names; the index of a name in this array is its shard number
+     */
+    public ShardRing(String... shards) {
+        if (shards.length == 0)
+            throw new IllegalArgumentException("A ring needs at least one shard.");
+        this.shards = shards.clone();
+
+        // Ties between points are broken by name, so that the order shards are listed in does not matter
+        String[] sorted = this.shards.clone();
+        Arrays.sort(sorted);
+        for (int i = 1; i < sorted.length; ++i) {
+            if (sorted[i].equals(sorted[i - 1]))
+                throw new IllegalArgumentException("Shard " + sorted[i] + " is listed twice.");
+        }
+        long[] placed = new long[shards.length * POINTS];
+        for (int shard = 0; shard < shards.length; ++shard) {
+            long rank = Arrays.binarySearch(sorted, shards[shard]);
+            for (int i = 0; i < POINTS; ++i) {
+                long point = mix((shards[shard] + "#" + i).hashCode());
+                placed[shard * POINTS + i] = (point << 32) | (rank << 16) | shard;
+            }
+        }
+        Arrays.sort(placed);
+
+        points = new int[placed.length];
+        owners = new int[placed.length];
+        for (int i = 0; i < placed.length; ++i) {
+            points[i] = (int) (placed[i] >> 32);
+            owners[i] = (int) (placed[i] & 0xFFFF);
+        }
+    }
+
+    /* A ring of the shards in a comma-separated list such as "localhost:7301,localhost:7311". */
+    public static ShardRing parse(String list) {
+        String[] shards = list.split(",");
+        for (int i = 0; i < shards.length; ++i)
+            shards[i] = shards[i].trim();
+        return new ShardRing(shards);
+    }
+
+    /* The key an account is placed on the ring by. Terminals send it in the shard header (see WireFormat). */
+    public static int keyOf(String account) {
+        return mix(account.hashCode());
+    }
+
+    /* The number of the shard owning a key. */
+    public int shardOf(int key) {
+        int i = Arrays.binarySearch(points, key);
+        if (i < 0)
+            i = -i - 1;
+        // Keys after the last point belong to the first
+        return owners[i == points.length ? 0 : i];
+    }
+
+    /* The number of the shard owning an account. */
+    public int shardOf(String account) {
+        return shardOf(keyOf(account));
+    }
+
+    /* The number of the shard with this name, or -1 if it is not on the ring. */
+    public int indexOf(String shard) {
+        return Arrays.asList(shards).indexOf(shard);
+    }
+
+    public String name(int shard) {
+        return shards[shard];
+    }
+
+    public int size() {
+        return shards.length;
+    }
+
+    /* MurmurHash3's finalizer, which spreads String.hashCode's clustered values over the whole ring. */
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,226 @@
+package atm;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Compact binary snapshots of the account store. A snapshot holds every
+ * account and the journal position it was taken at, so on startup the Bank
+ * loads the newest snapshot and only replays the journal from that position.
+ *
+ * Snapshots are taken while requests keep running. The journal position is
+ * read first and the accounts after it, so every change before that position
+ * is already in the snapshot, and every change after it is replayed from the
+ * journal as an absolute balance that overrides whatever the snapshot holds.
+ * A snapshot only replaces the previous one once the journal is durable up to
+ * everything it read, so it never holds a change that was not acknowledged.
+ * Once it has, the journal drops the records before the snapshot's position,
+ * so it only ever holds what came after the newest snapshot.
+ *
+ * The file is
+ *     int     MAGIC
+ *     int     VERSION
+ *     long    journal position
+ *     then for each account: byte 1, name as a short length and UTF-8
+ *             bytes, int balance, the credentials record (see Credentials)
+ *     byte    0
+ *     int     CRC32 of everything before it
+ */
+
+public class Snapshot {
+
+	private static final int MAGIC = 0x42534E50;
+	private static final int VERSION = 3;
+	/* Version 1 held the PIN and card value themselves, and is still read. */
+	private static final int VERSION_PLAIN_CREDENTIALS = 1;
+	/* Version 2 held unsalted SHA-256 hashes of them, and is still read. */
+	private static final int VERSION_UNSALTED_CREDENTIALS = 2;
+	private static final int UNSALTED_LENGTH = 32;
+	private static final int BUFFER_LENGTH = 64 * 1024;
+
+	private Snapshot() {
+	}
+
+	/**
+	 * Loads the accounts in a snapshot into the store.
+	 *
+	 * @param file
+	 * @param accounts
+	 * @return the journal position to replay from, or -1 if there is no snapshot
+	 * @throws IOException if the snapshot cannot be read or is damaged
+	 */
+	public static long load(Path file, AccountStore accounts) throws IOException {
+		if(!Files.exists(file))
+			return -1;
+
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			if(size > Integer.MAX_VALUE || size < 4 + 4 + 8 + 1 + 4)
+				throw new IOException("Snapshot " + file + " has an impossible size.");
+			MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+			// Check the whole file before trusting any of it
+			CRC32 crc = new CRC32();
+			in.limit((int) size - 4);
+			crc.update(in);
+			in.limit((int) size);
+			if((int) crc.getValue() != in.getInt((int) size - 4))
+				throw new IOException("Snapshot " + file + " is damaged.");
+
+			in.position(0);
+			int version = in.getInt() == MAGIC ? in.getInt() : -1;
+			if(version != VERSION && version != VERSION_PLAIN_CREDENTIALS && version != VERSION_UNSALTED_CREDENTIALS)
+				throw new IOException("Snapshot " + file + " is not a snapshot this Bank can read.");
+			long journalPosition = in.getLong();
+			// Plain-text credentials are hashed a batch at a time on every core, and the accounts opened in order
+			CredentialBatch batch = new CredentialBatch(accounts);
+			try {
+				while(in.get() != 0) {
+					String name = readString(in);
+					int balance = in.getInt();
+					if(version == VERSION_PLAIN_CREDENTIALS) {
+						batch.add(name, balance, readString(in), readString(in));
+					} else if(version == VERSION_UNSALTED_CREDENTIALS) {
+						byte[] unsalted = new byte[UNSALTED_LENGTH];
+						in.get(unsalted);
+						batch.add(name, balance, Credentials.fromUnsalted(unsalted));
+					} else {
+						byte[] credentials = new byte[Credentials.HASH_LENGTH];
+						in.get(credentials);
+						batch.add(name, balance, credentials);
+					}
+				}
+				batch.flush();
+			} finally {
+				batch.close();
+			}
+			return journalPosition;
+		} catch (RuntimeException e) {
+			throw new IOException("Snapshot " + file + " is damaged.", e);
+		} finally {
+			channel.close();
+		}
+	}
+
+	private static String readString(MappedByteBuffer in) {
+		byte[] bytes = new byte[in.getShort() & 0xFFFF];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Writes a snapshot of the store next to the file, waits for the journal
+	 * to catch up with it, and then puts it in place of the file in one step.
+	 *
+	 * @param file
+	 * @param accounts
+	 * @param journal
+	 * @return the journal position the snapshot was taken at
+	 * @throws IOException
+	 */
+	public static long write(Path file, AccountStore accounts, Journal journal) throws IOException {
+		Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+		long journalPosition = journal.position();
+
+		FileOutputStream fileOut = new FileOutputStream(temporary.toFile());
+		try {
+			CRC32 crc = new CRC32();
+			final DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(fileOut, BUFFER_LENGTH), crc));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(journalPosition);
+			accounts.forEach(new AccountStore.Visitor() {
+				public void visit(String name, int balance, byte[] credentials) throws IOException {
+					out.writeByte(1);
+					writeString(out, name);
+					out.writeInt(balance);
+					out.write(credentials, 0, Credentials.HASH_LENGTH);
+				}
+			});
+			out.writeByte(0);
+			out.flush();
+			out.writeInt((int) crc.getValue());
+			out.flush();
+			fileOut.getChannel().force(true);
+		} finally {
+			fileOut.close();
+		}
+
+		// Some balances read above may come from changes that are not durable yet
+		try {
+			journal.sync().join();
+		} catch (RuntimeException e) {
+			Files.deleteIfExists(temporary);
+			throw new IOException("The journal could not be written.", e);
+		}
+		Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		// The snapshot holds everything before its position now, so the journal no longer needs to
+		try {
+			journal.discardBefore(journalPosition).join();
+		} catch (RuntimeException e) {
+			System.err.println("Could not shorten the journal after a snapshot: " + e.getMessage());
+		}
+		return journalPosition;
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		if(bytes.length > 0xFFFF)
+			throw new IOException("Account field too long to snapshot.");
+		out.writeShort(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Takes a snapshot every period seconds on a background thread, skipping
+	 * periods in which nothing was journaled.
+	 *
+	 * @param file
+	 * @param accounts
+	 * @param journal
+	 * @param periodSeconds
+	 * @return the service running the snapshots
+	 */
+	public static ScheduledExecutorService schedule(final Path file, final AccountStore accounts, final Journal journal, long periodSeconds) {
+		ScheduledExecutorService service = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "bank-snapshots");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		service.scheduleWithFixedDelay(new Runnable() {
+			private long lastPosition = journal.position();
+
+			public void run() {
+				if(journal.position() == lastPosition)
+					return;
+				try {
+					lastPosition = write(file, accounts, journal);
+				} catch (IOException e) {
+					System.err.println("Could not write a snapshot: " + e.getMessage());
+				}
+			}
+		}, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+		return service;
+	}
+}
@@ -0,0 +1,172 @@
+package atm;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hammers an AccountStore with concurrent TRANSFER commands and checks that no
+ * money is made or lost. Many threads move random amounts between random
+ * accounts through BankProtocol, the way the Bank carries out a remote
+ * TRANSFER, so pairs of accounts are often locked in opposite directions at
+ * once. If no transfer finishes for a while the threads are taken to be
+ * deadlocked.
+ *
+ * At the end the balances must add up to what the accounts opened with. The
+ * transfers are also journaled to a temporary file, which is replayed over the
+ * opening balances into a fresh store; every account must come back with the
+ * balance it ended with. Settings are system properties:
+ *     stress.accounts  accounts to move money between, 100 by default
+ *     stress.balance   each account's opening balance, 1000 by default
+ *     stress.threads   threads sending transfers, four per processor by default
+ *     stress.seconds   how long to run, 10 by default
+ *     stress.store     "primitive" for a PrimitiveAccountStore, the Bank's default,
+ *                      or "objects" for a ConcurrentAccountStore
+ *
+ * Usage: java atm.TransferStress
+ * Exits with status 1 if money was not conserved or the threads stalled.
+ */
+
+public class TransferStress {
+
+    /* How long no transfer may finish before the threads are taken to be deadlocked. */
+    private static final long STALL_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private static volatile boolean running = true;
+    private static final AtomicLong succeeded = new AtomicLong(), insufficient = new AtomicLong(), failed = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        final int accountCount = Math.max(2, Integer.getInteger("stress.accounts", 100));
+        int openingBalance = Integer.getInteger("stress.balance", 1000);
+        int threadCount = Integer.getInteger("stress.threads", 4 * Runtime.getRuntime().availableProcessors());
+        int seconds = Integer.getInteger("stress.seconds", 10);
+        String storeKind = System.getProperty("stress.store", "primitive");
+
+        Path journalFile = Files.createTempFile("transfer-stress", ".journal");
+        Journal journal = new Journal(journalFile);
+        AccountStore accounts = newStore(storeKind, journal);
+        final String[] names = openAccounts(accounts, accountCount, openingBalance);
+        journal.replay(accounts);
+        long expected = (long) accountCount * openingBalance;
+
+        final BankProtocol protocol = new BankProtocol(accounts);
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; ++i) {
+            threads[i] = new Thread("transfer-stress-" + i) {
+                public void run() {
+                    Random random = new Random();
+                    while (running) {
+                        int from = random.nextInt(names.length), to = random.nextInt(names.length - 1);
+                        // Never the same account twice, which the Bank refuses
+                        if (to >= from)
+                            ++to;
+                        String reply = protocol.processRemoteCommand("TRANSFER:" + names[from] + ":" + names[to] + ":" + (1 + random.nextInt(100)));
+                        if (reply.endsWith(":SUCCEED"))
+                            succeeded.incrementAndGet();
+                        else if (reply.endsWith(":INSUFFICIENT"))
+                            insufficient.incrementAndGet();
+                        else
+                            failed.incrementAndGet();
+                    }
+                }
+            };
+            threads[i].setDaemon(true);
+        }
+        System.out.println("Moving money between " + accountCount + " accounts in a " + storeKind + " store on " + threadCount + " threads for "
+                + seconds + " s.");
+
+        long start = System.nanoTime(), end = start + TimeUnit.SECONDS.toNanos(seconds);
+        for (Thread thread : threads)
+            thread.start();
+
+        // Watch for progress; a deadlock shows up as a count that stops moving
+        long lastCount = 0, lastProgress = start, now;
+        while ((now = System.nanoTime()) < end) {
+            Thread.sleep(100);
+            long count = succeeded.get() + insufficient.get() + failed.get();
+            if (count != lastCount) {
+                lastCount = count;
+                lastProgress = now;
+            } else if (now - lastProgress > STALL_NANOS) {
+                System.out.println("No transfer finished in " + TimeUnit.NANOSECONDS.toSeconds(STALL_NANOS) + " s; the threads are deadlocked.");
+                System.exit(1);
+            }
+        }
+        running = false;
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.NANOSECONDS.toMillis(STALL_NANOS));
+            if (thread.isAlive()) {
+                System.out.println(thread.getName() + " did not finish its last transfer; the threads are deadlocked.");
+                System.exit(1);
+            }
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        System.out.println(String.format("%d transfers (%.0f/s): %d succeeded, %d insufficient, %d failed", lastCount, lastCount / elapsed,
+                succeeded.get(), insufficient.get(), failed.get()));
+        boolean conserved = failed.get() == 0;
+
+        long total = total(accounts);
+        System.out.println("Total after the transfers: " + total + ", expected " + expected);
+        conserved &= total == expected;
+
+        accounts.sync().join();
+        journal.close();
+        conserved &= checkReplay(journalFile, storeKind, accounts, names, openingBalance);
+        Files.delete(journalFile);
+
+        System.out.println(conserved ? "Money was conserved." : "Money was NOT conserved.");
+        System.exit(conserved ? 0 : 1);
+    }
+
+    /* Replay the journal over the opening balances and compare every account with the store it was written from. */
+    private static boolean checkReplay(Path journalFile, String storeKind, AccountStore live, String[] names, int openingBalance) throws IOException {
+        Journal journal = new Journal(journalFile);
+        AccountStore replayed = newStore(storeKind, null);
+        openAccounts(replayed, names.length, openingBalance);
+        int records;
+        try {
+            records = journal.replay(replayed);
+        } finally {
+            journal.close();
+        }
+
+        int mismatched = 0;
+        for (String name : names) {
+            if (replayed.getBalance(name) != live.getBalance(name))
+                ++mismatched;
+        }
+        System.out.println("Replayed " + records + " journal records: total " + total(replayed) + ", " + mismatched + " accounts differ");
+        return mismatched == 0;
+    }
+
+    private static AccountStore newStore(String kind, Journal journal) {
+        if (kind.equals("objects"))
+            return journal == null ? new ConcurrentAccountStore() : new ConcurrentAccountStore(journal);
+        if (kind.equals("primitive"))
+            return journal == null ? new PrimitiveAccountStore() : new PrimitiveAccountStore(journal);
+        throw new IllegalArgumentException("stress.store must be primitive or objects, not " + kind);
+    }
+
+    private static String[] openAccounts(AccountStore accounts, int count, int balance) {
+        String[] names = new String[count];
+        for (int i = 0; i < count; ++i) {
+            names[i] = "account" + i;
+            accounts.add(names[i], balance, "0", "0");
+        }
+        return names;
+    }
+
+    private static long total(AccountStore accounts) throws IOException {
+        final long[] total = new long[1];
+        accounts.forEach(new AccountStore.Visitor() {
+            public void visit(String name, int balance, byte[] credentials) {
+                total[0] += balance;
+            }
+        });
+        return total[0];
+    }
+}
@@ -0,0 +1,199 @@
+package atm;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Layout of the binary frames that ATMs and Banks can exchange instead of
+ * hex-encoded text lines, once a terminal has negotiated binary mode with the
+ * Bank (see BankProtocol). All numbers are big-endian.
+ *
+ *     offset  size  field
+ *          0     1  BINARY_FRAME marker and version
+ *          1     4  length of the rest of the frame
+ *          5     4  route id (0 from terminals; set by the Router)
+ *          9     8  time the frame was secured, in milliseconds
+ *         17     8  request ID
+ *         25    16  IV
+ *         41    20  HmacSHA1 over time, request ID, IV and ciphertext
+ *         61     n  AES/CBC ciphertext
+ *
+ * Frames sealed with AES-GCM start with BINARY_GCM_FRAME instead and share
+ * the first 25 bytes; the time and request ID are the associated data:
+ *
+ *     offset  size  field
+ *         25    12  nonce
+ *         37     n  AES/GCM ciphertext
+ *       37+n    16  GCM tag
+ *
+ * Text lines always start with a digit, so the first byte tells the two
+ * formats apart, and a Router or Bank can handle both on one connection.
+ * The route id is the only field the Router touches, and the MAC does not
+ * cover it.
+ *
+ * Either kind of message from a terminal may be preceded by a shard header,
+ * SHARD_HEADER and the account's ring key (see ShardRing) in eight hex digits,
+ * as in "@1f3a9c07". The Router sends the message on to the Bank owning that
+ * key and drops the header. The header is not secured: a Router that changes it
+ * can only send the request to a Bank that does not have the account, which
+ * answers FAIL. Hex keeps it free of newlines, so it never ends a text line.
+ *
+ * When the Router cannot get a request to a Bank, it answers the terminal
+ * with a router error instead, a text line of ROUTER_ERROR and the request's
+ * ID in decimal, as in "!-4391502118", whichever format the request was in.
+ * Router errors are not secured either: a Router that forges one can only fail
+ * a request, which it could as well by dropping it.
+ */
+
+public final class WireFormat {
+
+    static final byte BINARY_FRAME = 0x01;
+    static final byte BINARY_GCM_FRAME = 0x02;
+
+    static final int LENGTH_OFFSET = 1;
+    static final int ROUTE_OFFSET = 5;
+    static final int TIME_OFFSET = 9;
+    static final int REQUEST_ID_OFFSET = 17;
+    static final int IV_OFFSET = 25;
+    static final int MAC_OFFSET = 41;
+    static final int CIPHERTEXT_OFFSET = 61;
+    static final int NONCE_OFFSET = 25;
+    static final int SEALED_OFFSET = 37;
+
+    static final int IV_LENGTH = 16;
+    static final int MAC_LENGTH = 20;
+    static final int NONCE_LENGTH = 12;
+    static final int TAG_LENGTH = 16;
+
+    static final byte SHARD_HEADER = '@';
+    static final int SHARD_HEADER_LENGTH = 9;
+
+    static final byte ROUTER_ERROR = '!';
+    /* Room a router error can take up: the marker, a signed 64-bit ID and the newline. */
+    static final int ROUTER_ERROR_LENGTH = 22;
+
+    /* Bytes needed to learn a frame's total length. */
+    static final int PREFIX_LENGTH = 5;
+    /* The smallest valid frame carries one block of ciphertext. */
+    static final int MIN_FRAME_LENGTH = CIPHERTEXT_OFFSET + 16;
+    /* The smallest valid GCM frame carries only the tag. */
+    static final int MIN_GCM_FRAME_LENGTH = SEALED_OFFSET + TAG_LENGTH;
+
+    private WireFormat() {
+    }
+
+    /**
+     * Returns the total length of a frame carrying the given number of
+     * plaintext bytes, once padded to whole AES blocks.
+     *
+     * @param plaintextLength
+     * @return
+     */
+    static int frameLength(int plaintextLength) {
+        return CIPHERTEXT_OFFSET + (plaintextLength / 16 + 1) * 16;
+    }
+
+    /**
+     * Returns the total length of a GCM frame carrying the given number of
+     * plaintext bytes.
+     *
+     * @param plaintextLength
+     * @return
+     */
+    static int sealedFrameLength(int plaintextLength) {
+        return SEALED_OFFSET + plaintextLength + TAG_LENGTH;
+    }
+
+    /* Whether a message starting with this byte is a binary frame of either kind. */
+    static boolean isBinary(byte first) {
+        return first == BINARY_FRAME || first == BINARY_GCM_FRAME;
+    }
+
+    /* The smallest valid length of a frame starting with this byte. */
+    static int minFrameLength(byte first) {
+        return first == BINARY_GCM_FRAME ? MIN_GCM_FRAME_LENGTH : MIN_FRAME_LENGTH;
+    }
+
+    /* Writes a shard header for the given ring key. */
+    static void putShardHeader(ByteBuffer out, int key) {
+        out.put(SHARD_HEADER);
+        for (int shift = 28; shift >= 0; shift -= 4)
+            out.put((byte) Character.forDigit((key >>> shift) & 0xF, 16));
+    }
+
+    /* The ring key in the shard header at offset at, or -1 if the header is malformed. */
+    static long shardKeyOf(ByteBuffer in, int at) {
+        long key = 0;
+        for (int i = at + 1; i < at + SHARD_HEADER_LENGTH; ++i) {
+            int digit = Character.digit(in.get(i), 16);
+            if (digit < 0)
+                return -1;
+            key = key << 4 | digit;
+        }
+        return key;
+    }
+
+    /* Writes a router error for the given request ID. */
+    static void putRouterError(ByteBuffer out, long requestId) {
+        out.put(ROUTER_ERROR);
+        String id = Long.toString(requestId);
+        for (int i = 0; i < id.length(); ++i)
+            out.put((byte) id.charAt(i));
+        out.put((byte) '\n');
+    }
+
+    /**
+     * The request ID of the text line in bytes [from, to) of in, without
+     * decoding the line, or EncryptionHelper.NO_REQUEST_ID if it carries
+     * none. Lines without one have a long hex field, or a GCM marker, where
+     * the ID would be (see EncryptionHelper.requestIdOf).
+     *
+     * @param in
+     * @param from
+     * @param to
+     * @return
+     */
+    static long requestIdOfLine(ByteBuffer in, int from, int to) {
+        int at = from;
+        while (at < to && in.get(at) != ',')
+            ++at;
+        if (++at >= to)
+            return EncryptionHelper.NO_REQUEST_ID;
+        boolean negative = in.get(at) == '-';
+        if (negative)
+            ++at;
+        long id = 0;
+        int digits = 0;
+        byte b;
+        while (at < to && (b = in.get(at)) >= '0' && b <= '9') {
+            if (++digits > 19)
+                return EncryptionHelper.NO_REQUEST_ID;
+            id = id * 10 + (b - '0');
+            ++at;
+        }
+        if (digits == 0 || at >= to || in.get(at) != ',')
+            return EncryptionHelper.NO_REQUEST_ID;
+        return negative ? -id : id;
+    }
+
+    /* The following take a buffer whose position is at the start of a frame. */
+
+    static int lengthOf(ByteBuffer frame) {
+        return PREFIX_LENGTH + frame.getInt(frame.position() + LENGTH_OFFSET);
+    }
+
+    static int routeOf(ByteBuffer frame) {
+        return frame.getInt(frame.position() + ROUTE_OFFSET);
+    }
+
+    static void setRoute(ByteBuffer frame, int route) {
+        frame.putInt(frame.position() + ROUTE_OFFSET, route);
+    }
+
+    static long timeOf(ByteBuffer frame) {
+        return frame.getLong(frame.position() + TIME_OFFSET);
+    }
+
+    static long requestIdOf(ByteBuffer frame) {
+        return frame.getLong(frame.position() + REQUEST_ID_OFFSET);
+    }
+}
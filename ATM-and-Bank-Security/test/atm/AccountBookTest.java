@@ -0,0 +1,115 @@
+package atm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class AccountBookTest {
+
+    @TempDir
+    Path directory;
+
+    private Path write(String name, List<String> lines) throws IOException {
+        Path book = directory.resolve(name);
+        Files.write(book, lines, StandardCharsets.UTF_8);
+        return book;
+    }
+
+    private static String hashedLine(String name, int balance, String pin, String cardValue) {
+        return name + "," + balance + "," + Hex.encode(Credentials.hash(name, pin, cardValue));
+    }
+
+    private static List<String> names(AccountStore accounts) throws IOException {
+        final List<String> names = new ArrayList<String>();
+        accounts.forEach(new AccountStore.Visitor() {
+            public void visit(String name, int balance, byte[] credentials) {
+                names.add(name);
+            }
+        });
+        return names;
+    }
+
+    @Test
+    public void opensPlainAndHashedLines() throws IOException {
+        Path book = write("book", List.of("# name,balance,pin,card value", "", "Alice, 100, 1234, card",
+                hashedLine("Zo\u00EB", 10, "9012", "card")));
+        AccountStore accounts = new PrimitiveAccountStore();
+        AccountBook.load(book, accounts, null, 0);
+        assertEquals(100, accounts.getBalance("Alice"));
+        assertEquals(10, accounts.getBalance("Zo\u00EB"));
+        assertTrue(accounts.verify("Alice", "1234", "card"));
+        assertTrue(accounts.verify("Zo\u00EB", "9012", "card"));
+        assertFalse(accounts.verify("Zo\u00EB", "1234", "card"));
+    }
+
+    @Test
+    public void opensAccountsInBookOrderAcrossBatches() throws IOException {
+        // Mostly hashed already, so the test stays quick, with plain lines spread through several batches
+        List<String> lines = new ArrayList<String>();
+        List<String> expected = new ArrayList<String>();
+        byte[] credentials = Credentials.hash("someone", "0000", "card");
+        for (int i = 0; i < 10000; ++i) {
+            String name = "account" + i;
+            expected.add(name);
+            lines.add(i % 250 == 0 ? name + "," + i + ",1234,card" : name + "," + i + "," + Hex.encode(credentials));
+        }
+        AccountStore accounts = new PrimitiveAccountStore();
+        AccountBook.load(write("book", lines), accounts, null, 0);
+        assertEquals(expected, names(accounts));
+        assertEquals(9999, accounts.getBalance("account9999"));
+        assertTrue(accounts.verify("account5000", "1234", "card"));
+    }
+
+    @Test
+    public void opensOnlyThisShardsAccounts() throws IOException {
+        ShardRing ring = new ShardRing("a:1", "b:2");
+        List<String> lines = new ArrayList<String>();
+        for (int i = 0; i < 20; ++i)
+            lines.add("account" + i + ",1,1234,card");
+        AccountStore accounts = new ConcurrentAccountStore();
+        AccountBook.load(write("book", lines), accounts, ring, 1);
+        for (int i = 0; i < 20; ++i)
+            assertEquals(ring.shardOf("account" + i) == 1, accounts.contains("account" + i));
+    }
+
+    @Test
+    public void refusesMalformedLines() throws IOException {
+        String[] bad = {"Alice,100", "Alice,lots,1234,card", "Alice,100,abcd", "Alice,100," + "zz".repeat(Credentials.HASH_LENGTH)};
+        for (String line : bad) {
+            try {
+                AccountBook.load(write("book", List.of("Bob,1,5678,card", line)), new ConcurrentAccountStore(), null, 0);
+                fail("Loaded " + line);
+            } catch (IOException e) {
+                assertTrue(e.getMessage().startsWith("Line 2 "), e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void hashedCopyOpensTheSameAccounts() throws IOException {
+        Path book = write("book", List.of("Alice,100,1234,card", "Bob,50,5678,card", "Zo\u00EB,10,9012,card"));
+        Path hashed = directory.resolve("hashed");
+        assertEquals(3, AccountBook.hash(book, hashed));
+        for (String line : Files.readAllLines(hashed, StandardCharsets.UTF_8)) {
+            assertEquals(3, line.split(",").length, line);
+            assertFalse(line.contains("card"), line);
+        }
+        AccountStore accounts = new PrimitiveAccountStore();
+        AccountBook.load(hashed, accounts, null, 0);
+        assertEquals(List.of("Alice", "Bob", "Zo\u00EB"), names(accounts));
+        assertEquals(50, accounts.getBalance("Bob"));
+        assertTrue(accounts.verify("Bob", "5678", "card"));
+        assertFalse(accounts.verify("Bob", "1234", "card"));
+    }
+}
@@ -0,0 +1,180 @@
+package atm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class AuditLogTest {
+
+    private static final String HEADER = "time,terminal,action,account,to,amount,outcome,latencyMicros,detail";
+    private static final int THREADS = 4, EVENTS = 5000;
+
+    @TempDir
+    Path directory;
+
+    private final Metrics metrics = new Metrics("AuditLogTest");
+
+    private Path file() {
+        return directory.resolve("audit.csv");
+    }
+
+    private AuditLog open(int capacity, AuditLog.Overflow overflow) throws IOException {
+        return new AuditLog(file(), capacity, overflow, Long.MAX_VALUE, 0, metrics);
+    }
+
+    private List<String> rows() throws IOException {
+        return Files.readAllLines(file(), StandardCharsets.UTF_8);
+    }
+
+    /* Everything after the time column, which changes from run to run. */
+    private static String untimed(String row) {
+        return row.substring(row.indexOf(',') + 1);
+    }
+
+    @Test
+    public void writesOneRowPerEvent() throws IOException {
+        AuditLog log = open(16, AuditLog.Overflow.DROP);
+        assertTrue(log.publish(3, "WITHDRAW:Alice:20", "WITHDRAW:Alice:SUCCEED", 5000, null));
+        assertTrue(log.publish(AuditLog.DIRECT, "TRANSFER:Alice:Bob:7", "TRANSFER:Alice:FAIL", 12000, "Insufficient funds"));
+        assertTrue(log.publish(AuditLog.CONSOLE, "BALANCE:Bob", "BALANCE:Bob:57", 1000, null));
+        assertTrue(log.publish(AuditLog.DIRECT, null, "ERROR", 0, "Could not decrypt"));
+        log.close();
+
+        List<String> rows = rows();
+        assertEquals(HEADER, rows.get(0));
+        assertEquals("3,WITHDRAW,Alice,,20,SUCCEED,5,", untimed(rows.get(1)));
+        assertEquals("direct,TRANSFER,Alice,Bob,7,FAIL,12,Insufficient funds", untimed(rows.get(2)));
+        assertEquals("console,BALANCE,Bob,,57,OK,1,", untimed(rows.get(3)));
+        assertEquals("direct,,,,,ERROR,0,Could not decrypt", untimed(rows.get(4)));
+        assertEquals(5, rows.size());
+        assertEquals(4, metrics.counter("audit.written").sum());
+    }
+
+    @Test
+    public void neverWritesSecrets() throws IOException {
+        AuditLog log = open(16, AuditLog.Overflow.DROP);
+        log.publish(1, "AUTH:Alice:1234:cardvalue", "AUTH:Alice:SUCCEED", 0, null);
+        log.close();
+
+        String row = rows().get(1);
+        assertEquals("1,AUTH,Alice,,,SUCCEED,0,", untimed(row));
+        assertFalse(row.contains("1234") || row.contains("cardvalue"), row);
+    }
+
+    @Test
+    public void batchGivesRowPerOperation() throws IOException {
+        AuditLog log = open(16, AuditLog.Overflow.DROP);
+        log.publish(1, "BATCH:BALANCE:Alice;WITHDRAW:Bob:5", "BATCH:BALANCE:Alice:95;WITHDRAW:Bob:FAIL", 0, null);
+        log.close();
+
+        List<String> rows = rows();
+        assertEquals(3, rows.size());
+        assertEquals("1,BALANCE,Alice,,95,OK,0,", untimed(rows.get(1)));
+        assertEquals("1,WITHDRAW,Bob,,5,FAIL,0,", untimed(rows.get(2)));
+    }
+
+    @Test
+    public void quotesFieldsThatWouldBreakTheRow() throws IOException {
+        AuditLog log = open(16, AuditLog.Overflow.DROP);
+        log.publish(1, "WITHDRAW:Alice:20", "WITHDRAW:Alice:FAIL", 0, "said \"no\", twice");
+        log.close();
+
+        assertEquals("1,WITHDRAW,Alice,,20,FAIL,0,\"said \"\"no\"\", twice\"", untimed(rows().get(1)));
+    }
+
+    @Test
+    public void appendsToExistingFile() throws IOException {
+        AuditLog log = open(16, AuditLog.Overflow.DROP);
+        log.publish(1, "BALANCE:Alice", "BALANCE:Alice:1", 0, null);
+        log.close();
+        log = open(16, AuditLog.Overflow.DROP);
+        log.publish(1, "BALANCE:Alice", "BALANCE:Alice:2", 0, null);
+        log.close();
+
+        List<String> rows = rows();
+        assertEquals(3, rows.size());
+        assertEquals(HEADER, rows.get(0));
+    }
+
+    @Test
+    public void blockLosesNothingWhenRingIsFull() throws Exception {
+        AuditLog log = open(4, AuditLog.Overflow.BLOCK);
+        AtomicLong accepted = publishFromThreads(log);
+        log.close();
+
+        assertEquals(THREADS * EVENTS, accepted.get());
+        assertEquals(0, metrics.counter("audit.dropped").sum());
+        assertEquals(THREADS * EVENTS, metrics.counter("audit.written").sum());
+        assertEquals(1 + THREADS * EVENTS, rows().size());
+    }
+
+    @Test
+    public void dropCountsEveryEventTurnedAway() throws Exception {
+        AuditLog log = open(2, AuditLog.Overflow.DROP);
+        AtomicLong accepted = publishFromThreads(log);
+        log.close();
+
+        assertEquals(THREADS * EVENTS, accepted.get() + metrics.counter("audit.dropped").sum());
+        assertEquals(accepted.get(), metrics.counter("audit.written").sum());
+        assertEquals(1 + accepted.get(), rows().size());
+    }
+
+    @Test
+    public void eventsAfterCloseAreDropped() throws IOException {
+        AuditLog log = open(16, AuditLog.Overflow.BLOCK);
+        log.close();
+        assertFalse(log.publish(1, "BALANCE:Alice", "BALANCE:Alice:1", 0, null));
+        assertEquals(1, metrics.counter("audit.dropped").sum());
+    }
+
+    @Test
+    public void rollsOverAndKeepsOnlySomeFiles() throws IOException {
+        AuditLog log = new AuditLog(file(), 16, AuditLog.Overflow.BLOCK, 1000, 2, metrics);
+        for (int i = 0; i < 200; ++i)
+            log.publish(1, "WITHDRAW:Alice:" + i, "WITHDRAW:Alice:SUCCEED", 0, null);
+        log.close();
+
+        Path first = directory.resolve("audit.csv.1"), second = directory.resolve("audit.csv.2");
+        assertTrue(Files.exists(first));
+        assertTrue(Files.exists(second));
+        assertFalse(Files.exists(directory.resolve("audit.csv.3")));
+        for (Path path : new Path[] {file(), first, second}) {
+            assertTrue(Files.size(path) <= 1000, path + " is " + Files.size(path) + " bytes");
+            assertEquals(HEADER, Files.readAllLines(path, StandardCharsets.UTF_8).get(0));
+        }
+        // The newest events are in the current file
+        List<String> rows = rows();
+        assertEquals("1,WITHDRAW,Alice,,199,SUCCEED,0,", untimed(rows.get(rows.size() - 1)));
+    }
+
+    /* THREADS threads publishing EVENTS events each; returns how many were accepted. */
+    private static AtomicLong publishFromThreads(final AuditLog log) throws InterruptedException {
+        final AtomicLong accepted = new AtomicLong();
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < threads.length; ++t) {
+            final int terminal = t;
+            threads[t] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < EVENTS; ++i) {
+                        if (log.publish(terminal, "WITHDRAW:Alice:" + i, "WITHDRAW:Alice:SUCCEED", 0, null))
+                            accepted.incrementAndGet();
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        return accepted;
+    }
+}
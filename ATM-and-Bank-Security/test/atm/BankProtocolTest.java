@@ -0,0 +1,70 @@
+package atm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+public class BankProtocolTest {
+
+    private static final byte[] AES_KEY = new byte[16], MAC_KEY = new byte[64];
+    // Requests without an ID are checked against the newest one seen by any connection, so each test's must be newer
+    private static long lastLegacyTime;
+
+    private final EncryptionHelper terminal;
+    private final AccountStore accounts = new ConcurrentAccountStore();
+
+    public BankProtocolTest() throws Exception {
+        terminal = new EncryptionHelper(AES_KEY, MAC_KEY);
+        accounts.add("Alice", 100, "1234", "card");
+    }
+
+    /* Sends the lines to a new connection, as the Router would, and returns the replies, revealed. */
+    private String[] serve(String lines) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BankProtocol protocol = new BankProtocol(new ByteArrayInputStream(lines.getBytes(StandardCharsets.UTF_8)), out, accounts);
+        protocol.processRemoteCommands();
+        String[] replies = out.toString(StandardCharsets.UTF_8).split("\n");
+        for(int i = 0; i < replies.length; i++)
+            replies[i] = terminal.revealMessage(replies[i]).clear;
+        return replies;
+    }
+
+    /* Secures a request without an ID, sent later than the one before it. */
+    private String legacy(String message) throws Exception {
+        while(System.currentTimeMillis() <= lastLegacyTime)
+            Thread.sleep(1);
+        String request = terminal.secureMessage(EncryptionHelper.NO_REQUEST_ID, message) + "\n";
+        lastLegacyTime = EncryptionHelper.timeOf(request);
+        return request;
+    }
+
+    @Test
+    public void legacyRequestIsNotCarriedOutTwiceOnOneConnection() throws Exception {
+        String request = legacy("WITHDRAW:Alice:20");
+        String[] replies = serve(request + request);
+        assertEquals("WITHDRAW:Alice:SUCCEED", replies[0]);
+        assertEquals("FAIL", replies[1]);
+        assertEquals(80, accounts.getBalance("Alice"));
+    }
+
+    @Test
+    public void legacyRequestCannotBeReplayedOnAnotherConnection() throws Exception {
+        String request = legacy("WITHDRAW:Alice:20");
+        assertEquals("WITHDRAW:Alice:SUCCEED", serve(request)[0]);
+        assertEquals("FAIL", serve(request)[0]);
+        assertEquals(80, accounts.getBalance("Alice"));
+    }
+
+    @Test
+    public void requestWithIdCannotBeReplayedOnAnotherConnection() throws Exception {
+        long id = ReplayWindows.requestId(System.nanoTime() & ReplayWindows.SESSION_MASK, 1);
+        String request = terminal.secureMessage(id, "WITHDRAW:Alice:20") + "\n";
+        assertEquals("WITHDRAW:Alice:SUCCEED", serve(request)[0]);
+        assertEquals("FAIL", serve(request)[0]);
+        assertEquals(80, accounts.getBalance("Alice"));
+    }
+}
@@ -0,0 +1,65 @@
+package atm;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import org.junit.jupiter.api.Test;
+
+public class CredentialsTest {
+
+    @Test
+    public void matchesOnlyTheRightCredentials() {
+        byte[] record = Credentials.hash("Alice", "1234", "card");
+        assertTrue(Credentials.matches(record, 0, "Alice", "1234", "card"));
+        assertFalse(Credentials.matches(record, 0, "Alice", "1235", "card"));
+        assertFalse(Credentials.matches(record, 0, "Alice", "1234", "car"));
+        assertFalse(Credentials.matches(record, 0, "Bob", "1234", "card"));
+        // The fields are kept apart, so moving a character from one to the next changes the hash
+        assertFalse(Credentials.matches(record, 0, "Alice", "123", "4card"));
+    }
+
+    @Test
+    public void everyRecordHasItsOwnSalt() {
+        byte[] first = Credentials.hash("Alice", "1234", "card"), second = Credentials.hash("Alice", "1234", "card");
+        assertFalse(Arrays.equals(first, second));
+        assertTrue(Credentials.matches(second, 0, "Alice", "1234", "card"));
+    }
+
+    @Test
+    public void matchesRecordAtAnOffset() {
+        byte[] stored = new byte[3 * Credentials.HASH_LENGTH];
+        System.arraycopy(Credentials.hash("Bob", "5678", "card"), 0, stored, Credentials.HASH_LENGTH, Credentials.HASH_LENGTH);
+        assertTrue(Credentials.matches(stored, Credentials.HASH_LENGTH, "Bob", "5678", "card"));
+        assertFalse(Credentials.matches(stored, Credentials.HASH_LENGTH, "Bob", "5679", "card"));
+    }
+
+    @Test
+    public void keyIsPbkdf2WithHmacSha256() throws Exception {
+        byte[] record = Credentials.hash("Zo\u00EB", "1234", "card");
+        ByteBuffer fields = ByteBuffer.wrap(record);
+        int iterations = fields.getInt();
+        byte[] salt = new byte[Credentials.SALT_LENGTH], key = new byte[Credentials.KEY_LENGTH];
+        fields.get(salt).get(key);
+
+        // The password is each field followed by a zero byte, in UTF-8
+        PBEKeySpec spec = new PBEKeySpec("Zo\u00EB\u00001234\u0000card\u0000".toCharArray(), salt, iterations, 8 * Credentials.KEY_LENGTH);
+        assertArrayEquals(key, SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded());
+    }
+
+    @Test
+    public void unsaltedRecordsStillMatch() throws Exception {
+        byte[] password = "Alice\u00001234\u0000card\u0000".getBytes(StandardCharsets.UTF_8);
+        byte[] record = Credentials.fromUnsalted(MessageDigest.getInstance("SHA-256").digest(password));
+        assertTrue(Credentials.matches(record, 0, "Alice", "1234", "card"));
+        assertFalse(Credentials.matches(record, 0, "Alice", "4321", "card"));
+    }
+}
@@ -0,0 +1,81 @@
+package atm;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+public class HexTest {
+
+    @Test
+    public void encodesEveryByteValue() {
+        byte[] bytes = new byte[256];
+        for (int i = 0; i < bytes.length; ++i)
+            bytes[i] = (byte) i;
+        String hex = Hex.encode(bytes);
+        assertEquals(Hex.encodedLength(bytes.length), hex.length());
+        for (int i = 0; i < bytes.length; ++i)
+            assertEquals(String.format("%02X", i), hex.substring(2 * i, 2 * i + 2));
+        assertArrayEquals(bytes, Hex.decode(hex));
+    }
+
+    @Test
+    public void decodesLowerCase() {
+        assertArrayEquals(new byte[] {(byte) 0xAB, (byte) 0xCD, (byte) 0xEF, 0x09}, Hex.decode("abCDeF09"));
+    }
+
+    @Test
+    public void encodesRangeIntoArray() {
+        byte[] bytes = {1, 2, 3, 4};
+        char[] chars = "xxxxxxxx".toCharArray();
+        assertEquals(6, Hex.encode(bytes, 1, 2, chars, 2));
+        assertEquals("xx0203xx", new String(chars));
+        assertEquals("0203", Hex.encode(bytes, 1, 2));
+    }
+
+    @Test
+    public void encodesBufferFromItsPosition() {
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[] {1, 2, (byte) 0xFF});
+        buffer.position(1);
+        char[] chars = new char[4];
+        assertEquals(4, Hex.encode(buffer, chars, 0));
+        assertEquals("02FF", new String(chars));
+        assertEquals(0, buffer.remaining());
+    }
+
+    @Test
+    public void decodesRangeIntoArrayAndBuffer() {
+        byte[] bytes = new byte[4];
+        assertEquals(3, Hex.decode("--0A0B--", 2, 4, bytes, 1));
+        assertArrayEquals(new byte[] {0, 0x0A, 0x0B, 0}, bytes);
+
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        buffer.put((byte) 1);
+        Hex.decode("--0A0B--", 2, 4, buffer);
+        assertEquals(3, buffer.position());
+        assertEquals(0x0B, buffer.get(2));
+    }
+
+    @Test
+    public void rejectsOddLength() {
+        try {
+            Hex.decode("ABC");
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void rejectsNonHexDigits() {
+        for (String bad : new String[] {"0G", "g0", " 0", "0\u0661", "\u00E90"}) {
+            try {
+                Hex.decode(bad);
+                fail(bad);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package atm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class JournalTest {
+
+    @TempDir
+    Path directory;
+
+    /* A store with the opening balances, as the Bank builds it before replaying. */
+    private static AccountStore open(Journal journal) {
+        AccountStore accounts = new ConcurrentAccountStore(journal);
+        accounts.add("Alice", 100, "1234", "card");
+        accounts.add("Bob", 50, "5678", "card");
+        accounts.add("Zo\u00EB", 10, "9012", "card");
+        return accounts;
+    }
+
+    private Path file() {
+        return directory.resolve("bank.journal");
+    }
+
+    /* Replays the journal into a fresh store with the opening balances, and closes it again. */
+    private AccountStore recover(int expectedRecords) throws IOException {
+        Journal journal = new Journal(file());
+        try {
+            AccountStore accounts = open(null);
+            assertEquals(expectedRecords, journal.replay(accounts));
+            return accounts;
+        } finally {
+            journal.close();
+        }
+    }
+
+    /* Four records: a withdrawal, a deposit, another withdrawal and a change to an account with a non-ASCII name. */
+    private void writeSome() throws IOException {
+        Journal journal = new Journal(file());
+        try {
+            AccountStore accounts = open(journal);
+            assertEquals(0, journal.replay(accounts));
+            assertTrue(accounts.withdraw("Alice", 30));
+            assertTrue(accounts.deposit("Bob", 5));
+            assertTrue(accounts.withdraw("Alice", 20));
+            assertTrue(accounts.withdraw("Zo\u00EB", 1));
+            // Turned away, so not journaled
+            assertTrue(!accounts.withdraw("Bob", 1000));
+            accounts.sync().join();
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void replayRestoresLastBalances() throws IOException {
+        writeSome();
+        AccountStore accounts = recover(4);
+        assertEquals(50, accounts.getBalance("Alice"));
+        assertEquals(55, accounts.getBalance("Bob"));
+        assertEquals(9, accounts.getBalance("Zo\u00EB"));
+    }
+
+    @Test
+    public void tornTailIsCutOff() throws IOException {
+        writeSome();
+        long size = Files.size(file());
+        // The start of a record whose body never made it to disk
+        append(new byte[] {0, 0, 0, 20, 1, 0, 0});
+
+        AccountStore accounts = recover(4);
+        assertEquals(size, Files.size(file()));
+        assertEquals(50, accounts.getBalance("Alice"));
+
+        // Appending carries on from the end of the last whole record
+        Journal journal = new Journal(file());
+        try {
+            AccountStore more = open(journal);
+            assertEquals(4, journal.replay(more));
+            assertTrue(more.withdraw("Alice", 1));
+            more.sync().join();
+        } finally {
+            journal.close();
+        }
+        assertEquals(49, recover(5).getBalance("Alice"));
+    }
+
+    @Test
+    public void recordFailingItsCrcEndsJournal() throws IOException {
+        writeSome();
+        FileChannel channel = FileChannel.open(file(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            // The last byte is the last record's CRC
+            ByteBuffer last = ByteBuffer.allocate(1);
+            channel.read(last, channel.size() - 1);
+            last.put(0, (byte) (last.get(0) ^ 1));
+            last.rewind();
+            channel.write(last, channel.size() - 1);
+        } finally {
+            channel.close();
+        }
+
+        AccountStore accounts = recover(3);
+        assertEquals(10, accounts.getBalance("Zo\u00EB"));
+        assertEquals(55, accounts.getBalance("Bob"));
+    }
+
+    @Test
+    public void replayFromPositionSkipsEarlierRecords() throws IOException {
+        long middle;
+        Journal journal = new Journal(file());
+        try {
+            AccountStore accounts = open(journal);
+            journal.replay(accounts);
+            assertTrue(accounts.withdraw("Alice", 10));
+            middle = journal.position();
+            assertTrue(accounts.withdraw("Bob", 10));
+            accounts.sync().join();
+        } finally {
+            journal.close();
+        }
+
+        journal = new Journal(file());
+        try {
+            AccountStore accounts = open(null);
+            assertEquals(1, journal.replay(accounts, middle));
+            assertEquals(100, accounts.getBalance("Alice"));
+            assertEquals(40, accounts.getBalance("Bob"));
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void replayPastEndFails() throws IOException {
+        writeSome();
+        Journal journal = new Journal(file());
+        try {
+            journal.replay(open(null), Files.size(file()) + 1);
+            fail();
+        } catch (IOException expected) {
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void accountsThatNoLongerExistAreSkipped() throws IOException {
+        writeSome();
+        Journal journal = new Journal(file());
+        try {
+            AccountStore accounts = new ConcurrentAccountStore();
+            accounts.add("Bob", 0, "5678", "card");
+            assertEquals(4, journal.replay(accounts));
+            assertEquals(55, accounts.getBalance("Bob"));
+            assertTrue(!accounts.contains("Alice"));
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void syncWaitsForEverythingAppended() throws IOException {
+        Journal journal = new Journal(file());
+        try {
+            journal.replay(open(null));
+            long position = 0;
+            for (int i = 0; i < 1000; ++i)
+                position = journal.append("Alice", i);
+            assertEquals(position, journal.position());
+            journal.sync().join();
+            assertTrue(Files.size(file()) >= position);
+        } finally {
+            journal.close();
+        }
+        assertEquals(999, recover(1000).getBalance("Alice"));
+    }
+
+    @Test
+    public void discardBeforeDropsEarlierRecordsButKeepsPositions() throws IOException {
+        long middle, end;
+        Journal journal = new Journal(file());
+        try {
+            AccountStore accounts = open(journal);
+            journal.replay(accounts);
+            assertTrue(accounts.withdraw("Alice", 10));
+            assertTrue(accounts.withdraw("Zo\u00EB", 1));
+            middle = journal.position();
+            assertTrue(accounts.withdraw("Bob", 10));
+            accounts.sync().join();
+            long size = Files.size(file());
+            journal.discardBefore(middle).join();
+            assertTrue(Files.size(file()) < size);
+            // Records appended after the discard carry on from the same positions
+            assertTrue(accounts.withdraw("Alice", 5));
+            end = journal.position();
+            accounts.sync().join();
+        } finally {
+            journal.close();
+        }
+
+        journal = new Journal(file());
+        try {
+            AccountStore accounts = open(null);
+            assertEquals(2, journal.replay(accounts, middle));
+            assertEquals(85, accounts.getBalance("Alice"));
+            assertEquals(40, accounts.getBalance("Bob"));
+            assertEquals(10, accounts.getBalance("Zo\u00EB"));
+            assertEquals(end, journal.position());
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void replayFromBeforeDiscardedRecordsFails() throws IOException {
+        Journal journal = new Journal(file());
+        try {
+            AccountStore accounts = open(journal);
+            journal.replay(accounts);
+            assertTrue(accounts.withdraw("Alice", 10));
+            assertTrue(accounts.withdraw("Bob", 10));
+            journal.discardBefore(journal.position()).join();
+        } finally {
+            journal.close();
+        }
+
+        journal = new Journal(file());
+        try {
+            journal.replay(open(null), 0);
+            fail();
+        } catch (IOException expected) {
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void discardBeforeWhileAppending() throws IOException {
+        long middle;
+        Journal journal = new Journal(file());
+        try {
+            journal.replay(open(null));
+            for (int i = 0; i < 500; ++i)
+                journal.append("Alice", i);
+            middle = journal.position();
+            CompletableFuture<Void> discarded = journal.discardBefore(middle);
+            for (int i = 500; i < 1000; ++i)
+                journal.append("Alice", i);
+            discarded.join();
+            // Nothing to drop, and a position already dropped
+            assertTrue(journal.discardBefore(0).isDone());
+            journal.discardBefore(middle).join();
+            journal.sync().join();
+        } finally {
+            journal.close();
+        }
+
+        journal = new Journal(file());
+        try {
+            AccountStore accounts = open(null);
+            assertEquals(500, journal.replay(accounts, middle));
+            assertEquals(999, accounts.getBalance("Alice"));
+        } finally {
+            journal.close();
+        }
+    }
+
+    private void append(byte[] bytes) throws IOException {
+        Files.write(file(), bytes, StandardOpenOption.APPEND);
+    }
+}
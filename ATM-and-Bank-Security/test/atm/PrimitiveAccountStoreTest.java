@@ -0,0 +1,163 @@
+package atm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+public class PrimitiveAccountStoreTest {
+
+    /* More than fit in the first chunk, so the table grows at least once. */
+    private static final int MANY = 70000;
+
+    /* Credentials are not what most tests are about, so their accounts share one hash. */
+    static final byte[] CREDENTIALS = Credentials.hash("Alice", "1234", "card");
+
+    private final PrimitiveAccountStore accounts = new PrimitiveAccountStore();
+
+    /* Long enough that the first chunk's names outgrow its arena. */
+    private static String name(int i) {
+        return String.format("account-%06d-with-a-longer-name", i);
+    }
+
+    @Test
+    public void findsWhatWasAdded() {
+        accounts.add("Alice", 100, "1234", "card");
+        assertTrue(accounts.contains("Alice"));
+        assertEquals(100, accounts.getBalance("Alice"));
+        assertFalse(accounts.contains("Bob"));
+        assertEquals(-1, accounts.getBalance("Bob"));
+        // A name that is a prefix of another is a different account
+        assertFalse(accounts.contains("Alic"));
+    }
+
+    @Test
+    public void verifiesCredentials() {
+        accounts.add("Alice", 100, "1234", "card");
+        assertTrue(accounts.verify("Alice", "1234", "card"));
+        assertFalse(accounts.verify("Alice", "4321", "card"));
+        assertFalse(accounts.verify("Alice", "1234", "drac"));
+        assertFalse(accounts.verify("Bob", "1234", "card"));
+    }
+
+    @Test
+    public void addReplacesExistingAccount() throws IOException {
+        accounts.add("Alice", 100, "1234", "card");
+        accounts.add("Alice", 7, "9999", "card");
+        assertEquals(7, accounts.getBalance("Alice"));
+        assertTrue(accounts.verify("Alice", "9999", "card"));
+        assertFalse(accounts.verify("Alice", "1234", "card"));
+        assertEquals(1, visit().size());
+    }
+
+    @Test
+    public void depositAndWithdrawRules() {
+        accounts.add("Alice", 100, CREDENTIALS);
+        assertFalse(accounts.withdraw("Alice", 0));
+        assertFalse(accounts.withdraw("Alice", -5));
+        assertFalse(accounts.withdraw("Alice", 101));
+        assertTrue(accounts.withdraw("Alice", 100));
+        assertEquals(0, accounts.getBalance("Alice"));
+        assertFalse(accounts.deposit("Alice", 0));
+        assertFalse(accounts.deposit("Bob", 5));
+        assertFalse(accounts.withdraw("Bob", 5));
+        assertTrue(accounts.deposit("Alice", Integer.MAX_VALUE));
+        // A deposit that would overflow stops at the largest balance there is
+        assertTrue(accounts.deposit("Alice", 1));
+        assertEquals(Integer.MAX_VALUE, accounts.getBalance("Alice"));
+    }
+
+    @Test
+    public void restoreOnlySetsExistingAccounts() {
+        accounts.add("Alice", 100, CREDENTIALS);
+        accounts.restore("Alice", 42);
+        accounts.restore("Bob", 42);
+        assertEquals(42, accounts.getBalance("Alice"));
+        assertFalse(accounts.contains("Bob"));
+    }
+
+    @Test
+    public void growsPastFirstChunk() throws IOException {
+        for (int i = 0; i < MANY; ++i)
+            accounts.add(name(i), i, CREDENTIALS);
+        for (int i = 0; i < MANY; ++i)
+            assertEquals(i, accounts.getBalance(name(i)), name(i));
+        assertFalse(accounts.contains(name(MANY)));
+
+        Map<String, Integer> visited = visit();
+        assertEquals(MANY, visited.size());
+        assertEquals(Integer.valueOf(MANY - 1), visited.get(name(MANY - 1)));
+    }
+
+    @Test
+    public void sizedUpFrontHoldsAsMany() {
+        PrimitiveAccountStore sized = new PrimitiveAccountStore(MANY, null);
+        for (int i = 0; i < MANY; ++i)
+            sized.add(name(i), i, CREDENTIALS);
+        assertEquals(MANY - 1, sized.getBalance(name(MANY - 1)));
+    }
+
+    @Test
+    public void readersNeverMissAnAccountWhileTableGrows() throws InterruptedException {
+        accounts.add("Alice", 100, CREDENTIALS);
+        final AtomicInteger misses = new AtomicInteger();
+        final AtomicInteger added = new AtomicInteger();
+        Thread reader = new Thread() {
+            public void run() {
+                while (added.get() < MANY) {
+                    if (accounts.getBalance("Alice") != 100)
+                        misses.incrementAndGet();
+                    // The newest account is always there once add() has returned
+                    int last = added.get() - 1;
+                    if (last >= 0 && accounts.getBalance(name(last)) != last)
+                        misses.incrementAndGet();
+                }
+            }
+        };
+        reader.start();
+        for (int i = 0; i < MANY; ++i) {
+            accounts.add(name(i), i, CREDENTIALS);
+            added.set(i + 1);
+        }
+        reader.join();
+        assertEquals(0, misses.get());
+    }
+
+    @Test
+    public void keepsNamesOutsideAscii() {
+        accounts.add("Zo\u00EB", 5, CREDENTIALS);
+        accounts.add("\u5C71\u7530", 6, CREDENTIALS);
+        assertEquals(5, accounts.getBalance("Zo\u00EB"));
+        assertEquals(6, accounts.getBalance("\u5C71\u7530"));
+        assertFalse(accounts.contains("Zoe"));
+    }
+
+    @Test
+    public void rejectsNameTooLongForArena() {
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i <= Character.MAX_VALUE; ++i)
+            name.append('x');
+        try {
+            accounts.add(name.toString(), 0, CREDENTIALS);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private Map<String, Integer> visit() throws IOException {
+        final Map<String, Integer> visited = new HashMap<String, Integer>();
+        accounts.forEach(new AccountStore.Visitor() {
+            public void visit(String name, int balance, byte[] credentials) {
+                visited.put(name, balance);
+            }
+        });
+        return visited;
+    }
+}
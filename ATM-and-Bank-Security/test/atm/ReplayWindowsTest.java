@@ -0,0 +1,97 @@
+package atm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class ReplayWindowsTest {
+
+    private static final long LIFETIME = 60000;
+
+    private final ReplayWindows windows = new ReplayWindows(LIFETIME);
+    private final long now = System.currentTimeMillis();
+
+    @Test
+    public void requestIdSplitsIntoSessionAndSequence() {
+        long session = ReplayWindows.SESSION_MASK;
+        long id = ReplayWindows.requestId(session, ReplayWindows.MAX_SEQUENCE);
+        assertEquals(session, ReplayWindows.sessionOf(id));
+        assertEquals(ReplayWindows.MAX_SEQUENCE, ReplayWindows.sequenceOf(id));
+        assertEquals(12345L, ReplayWindows.sessionOf(ReplayWindows.requestId(12345L, 1)));
+        assertEquals(1, ReplayWindows.sequenceOf(ReplayWindows.requestId(12345L, 1)));
+    }
+
+    @Test
+    public void acceptsEachRequestOnce() {
+        long id = ReplayWindows.requestId(7, 1);
+        assertTrue(windows.accept(id, now));
+        assertFalse(windows.accept(id, now));
+    }
+
+    @Test
+    public void sequenceZeroIsNeverAccepted() {
+        assertFalse(windows.accept(ReplayWindows.requestId(7, 0), now));
+    }
+
+    @Test
+    public void acceptsOutOfOrderWithinWindow() {
+        long session = 7;
+        assertTrue(windows.accept(ReplayWindows.requestId(session, 10), now));
+        assertTrue(windows.accept(ReplayWindows.requestId(session, 5), now));
+        assertTrue(windows.accept(ReplayWindows.requestId(session, 9), now));
+        assertFalse(windows.accept(ReplayWindows.requestId(session, 5), now));
+        assertFalse(windows.accept(ReplayWindows.requestId(session, 10), now));
+    }
+
+    @Test
+    public void rejectsRequestsTooFarBehind() {
+        long session = 7;
+        int highest = 1000;
+        assertTrue(windows.accept(ReplayWindows.requestId(session, highest), now));
+        assertFalse(windows.accept(ReplayWindows.requestId(session, highest - ReplayWindows.WINDOW), now));
+        assertTrue(windows.accept(ReplayWindows.requestId(session, highest - ReplayWindows.WINDOW + 1), now));
+    }
+
+    @Test
+    public void bigJumpForgetsOlderSequences() {
+        long session = 7;
+        assertTrue(windows.accept(ReplayWindows.requestId(session, 1), now));
+        assertTrue(windows.accept(ReplayWindows.requestId(session, 1 + ReplayWindows.WINDOW * 3), now));
+        assertFalse(windows.accept(ReplayWindows.requestId(session, 2), now));
+        assertFalse(windows.accept(ReplayWindows.requestId(session, 1 + ReplayWindows.WINDOW * 3), now));
+    }
+
+    @Test
+    public void sessionsAreIndependent() {
+        assertTrue(windows.accept(ReplayWindows.requestId(1, 1), now));
+        assertTrue(windows.accept(ReplayWindows.requestId(2, 1), now));
+        // Sessions that differ only in their top bit are still different sessions
+        long high = 1L << (ReplayWindows.SESSION_BITS - 1);
+        assertTrue(windows.accept(ReplayWindows.requestId(high | 1, 1), now));
+        assertFalse(windows.accept(ReplayWindows.requestId(high | 1, 1), now));
+    }
+
+    @Test
+    public void lastSequenceOfSessionIsAccepted() {
+        long session = 7;
+        assertTrue(windows.accept(ReplayWindows.requestId(session, ReplayWindows.MAX_SEQUENCE), now));
+        assertFalse(windows.accept(ReplayWindows.requestId(session, ReplayWindows.MAX_SEQUENCE), now));
+        assertTrue(windows.accept(ReplayWindows.requestId(session + 1, 1), now));
+    }
+
+    @Test
+    public void sweepForgetsOnlyStaleSessions() {
+        long stale = now - 2 * LIFETIME;
+        long live = ReplayWindows.requestId(1, 1);
+        assertTrue(windows.accept(live, now));
+        // Enough sessions to set off a sweep
+        for (long session = 2; session <= 2000; ++session)
+            assertTrue(windows.accept(ReplayWindows.requestId(session, 1), stale));
+
+        assertFalse(windows.accept(live, now));
+        // A stale session's window is gone; its requests are too old for EncryptionHelper anyway
+        assertTrue(windows.accept(ReplayWindows.requestId(2, 1), stale));
+    }
+}
@@ -0,0 +1,94 @@
+package atm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import org.junit.jupiter.api.Test;
+
+public class ShardRingTest {
+
+    private static final int ACCOUNTS = 100000;
+
+    @Test
+    public void ownerDoesNotDependOnListOrder() {
+        ShardRing ring = new ShardRing("a:1", "b:2", "c:3"), shuffled = new ShardRing("c:3", "a:1", "b:2");
+        for (int i = 0; i < ACCOUNTS; ++i) {
+            String account = "account" + i;
+            assertEquals(ring.name(ring.shardOf(account)), shuffled.name(shuffled.shardOf(account)), account);
+        }
+    }
+
+    @Test
+    public void newShardOnlyTakesAccountsOverFromOthers() {
+        ShardRing before = new ShardRing("a:1", "b:2", "c:3"), after = new ShardRing("a:1", "b:2", "c:3", "d:4");
+        int moved = 0;
+        for (int i = 0; i < ACCOUNTS; ++i) {
+            String account = "account" + i;
+            String was = before.name(before.shardOf(account)), is = after.name(after.shardOf(account));
+            if (!was.equals(is)) {
+                assertEquals("d:4", is, account);
+                ++moved;
+            }
+        }
+        // About one in four, give or take how evenly the points fall
+        assertTrue(moved > ACCOUNTS / 8 && moved < ACCOUNTS / 2, moved + " accounts moved");
+    }
+
+    @Test
+    public void shardsGetSimilarShares() {
+        ShardRing ring = new ShardRing("a:1", "b:2", "c:3", "d:4");
+        int[] counts = new int[ring.size()];
+        for (int i = 0; i < ACCOUNTS; ++i)
+            ++counts[ring.shardOf("account" + i)];
+        for (int shard = 0; shard < counts.length; ++shard)
+            assertTrue(counts[shard] > ACCOUNTS / 8 && counts[shard] < ACCOUNTS / 2, ring.name(shard) + " has " + counts[shard]);
+    }
+
+    @Test
+    public void keysPastTheLastPointWrapToTheFirst() {
+        ShardRing ring = new ShardRing("a:1", "b:2");
+        assertEquals(ring.shardOf(Integer.MIN_VALUE), ring.shardOf(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void shardOfAccountUsesItsKey() {
+        ShardRing ring = new ShardRing("a:1", "b:2", "c:3");
+        for (int i = 0; i < 1000; ++i)
+            assertEquals(ring.shardOf(ShardRing.keyOf("account" + i)), ring.shardOf("account" + i));
+    }
+
+    @Test
+    public void parseTrimsNames() {
+        ShardRing ring = ShardRing.parse(" localhost:7301 ,localhost:7311");
+        assertEquals(2, ring.size());
+        assertEquals(0, ring.indexOf("localhost:7301"));
+        assertEquals(1, ring.indexOf("localhost:7311"));
+        assertEquals(-1, ring.indexOf("localhost:7321"));
+    }
+
+    @Test
+    public void singleShardOwnsEverything() {
+        ShardRing ring = new ShardRing("a:1");
+        for (int i = 0; i < 1000; ++i)
+            assertEquals(0, ring.shardOf("account" + i));
+    }
+
+    @Test
+    public void rejectsDuplicateShards() {
+        try {
+            new ShardRing("a:1", "b:2", "a:1");
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void rejectsEmptyRing() {
+        try {
+            new ShardRing();
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
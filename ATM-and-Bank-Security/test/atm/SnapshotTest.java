@@ -0,0 +1,159 @@
+package atm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class SnapshotTest {
+
+    @TempDir
+    Path directory;
+
+    private Path snapshot() {
+        return directory.resolve("bank.snapshot");
+    }
+
+    private Path journalFile() {
+        return directory.resolve("bank.journal");
+    }
+
+    /* Some changes, a snapshot, then more changes that only the journal has. Returns the snapshot's position. */
+    private long writeSnapshotAndJournal(AccountStore accounts, Journal journal) throws IOException {
+        journal.replay(accounts);
+        assertTrue(accounts.withdraw("Alice", 30));
+        assertTrue(accounts.withdraw("Bob", 10));
+        assertTrue(accounts.deposit("Alice", 10));
+        long position = Snapshot.write(snapshot(), accounts, journal);
+        assertTrue(accounts.withdraw("Alice", 5));
+        assertTrue(accounts.deposit("Carol", 7));
+        accounts.sync().join();
+        return position;
+    }
+
+    private static void addAccounts(AccountStore accounts) {
+        accounts.add("Alice", 100, "1234", "card");
+        accounts.add("Bob", 50, "5678", "card");
+        accounts.add("Carol", 0, "9012", "card");
+    }
+
+    @Test
+    public void snapshotThenJournalRecoversEveryChange() throws IOException {
+        Journal journal = new Journal(journalFile());
+        long position;
+        try {
+            AccountStore accounts = new ConcurrentAccountStore(journal);
+            addAccounts(accounts);
+            position = writeSnapshotAndJournal(accounts, journal);
+        } finally {
+            journal.close();
+        }
+        recoverAndCheck(position, new ConcurrentAccountStore());
+    }
+
+    @Test
+    public void primitiveStoreRecoversToo() throws IOException {
+        Journal journal = new Journal(journalFile());
+        long position;
+        try {
+            AccountStore accounts = new PrimitiveAccountStore(journal);
+            addAccounts(accounts);
+            position = writeSnapshotAndJournal(accounts, journal);
+        } finally {
+            journal.close();
+        }
+        recoverAndCheck(position, new PrimitiveAccountStore());
+    }
+
+    @Test
+    public void journalKeepsOnlyWhatCameAfterTheSnapshot() throws IOException {
+        Journal journal = new Journal(journalFile());
+        try {
+            AccountStore accounts = new ConcurrentAccountStore(journal);
+            addAccounts(accounts);
+            writeSnapshotAndJournal(accounts, journal);
+        } finally {
+            journal.close();
+        }
+
+        journal = new Journal(journalFile());
+        try {
+            journal.replay(new ConcurrentAccountStore(), 0);
+            fail();
+        } catch (IOException expected) {
+        } finally {
+            journal.close();
+        }
+    }
+
+    /* Recovers the way the Bank starts up: the snapshot first, then the journal from its position. */
+    private void recoverAndCheck(long position, AccountStore accounts) throws IOException {
+        assertEquals(position, Snapshot.load(snapshot(), accounts));
+        assertEquals(80, accounts.getBalance("Alice"));
+        assertEquals(40, accounts.getBalance("Bob"));
+        assertEquals(0, accounts.getBalance("Carol"));
+
+        Journal journal = new Journal(journalFile());
+        try {
+            assertEquals(2, journal.replay(accounts, position));
+        } finally {
+            journal.close();
+        }
+        assertEquals(75, accounts.getBalance("Alice"));
+        assertEquals(40, accounts.getBalance("Bob"));
+        assertEquals(7, accounts.getBalance("Carol"));
+        assertTrue(accounts.verify("Alice", "1234", "card"));
+        assertFalse(accounts.verify("Alice", "1235", "card"));
+        assertTrue(accounts.verify("Bob", "5678", "card"));
+    }
+
+    @Test
+    public void missingSnapshotMeansReplayEverything() throws IOException {
+        assertEquals(-1, Snapshot.load(snapshot(), new ConcurrentAccountStore()));
+    }
+
+    @Test
+    public void damagedSnapshotIsRefused() throws IOException {
+        writeEmptyJournalSnapshot();
+        byte[] bytes = Files.readAllBytes(snapshot());
+        bytes[bytes.length / 2] ^= 1;
+        Files.write(snapshot(), bytes);
+        assertRefused();
+    }
+
+    @Test
+    public void truncatedSnapshotIsRefused() throws IOException {
+        writeEmptyJournalSnapshot();
+        byte[] bytes = Files.readAllBytes(snapshot());
+        Files.write(snapshot(), Arrays.copyOf(bytes, bytes.length - 3));
+        assertRefused();
+    }
+
+    private void writeEmptyJournalSnapshot() throws IOException {
+        Journal journal = new Journal(journalFile());
+        try {
+            AccountStore accounts = new ConcurrentAccountStore(journal);
+            accounts.add("Alice", 100, "1234", "card");
+            journal.replay(accounts);
+            assertEquals(0, Snapshot.write(snapshot(), accounts, journal));
+        } finally {
+            journal.close();
+        }
+    }
+
+    private void assertRefused() {
+        try {
+            Snapshot.load(snapshot(), new ConcurrentAccountStore());
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+}
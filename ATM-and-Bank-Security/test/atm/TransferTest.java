@@ -0,0 +1,139 @@
+package atm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * TRANSFER against both stores: the rules, lock ordering that keeps transfers in opposite directions from
+ * deadlocking, conservation of money, and journal records that replay to the same balances.
+ */
+public class TransferTest {
+
+    private static final int OPENING = 1000000, ROUNDS = 20000;
+    private static final long DEADLINE_MILLIS = 60000;
+
+    @TempDir
+    Path directory;
+
+    private static AccountStore newStore(String kind, Journal journal) {
+        return kind.equals("primitive") ? new PrimitiveAccountStore(journal) : new ConcurrentAccountStore(journal);
+    }
+
+    private static void addAccounts(AccountStore accounts, String... names) {
+        for (String name : names)
+            accounts.add(name, OPENING, PrimitiveAccountStoreTest.CREDENTIALS);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"primitive", "concurrent"})
+    public void rules(String kind) {
+        AccountStore accounts = newStore(kind, null);
+        accounts.add("Alice", 100, PrimitiveAccountStoreTest.CREDENTIALS);
+        accounts.add("Bob", Integer.MAX_VALUE - 10, PrimitiveAccountStoreTest.CREDENTIALS);
+        accounts.add("Carol", 0, PrimitiveAccountStoreTest.CREDENTIALS);
+
+        assertFalse(accounts.transfer("Alice", "Alice", 10));
+        assertFalse(accounts.transfer("Alice", "Dave", 10));
+        assertFalse(accounts.transfer("Dave", "Alice", 10));
+        assertFalse(accounts.transfer("Alice", "Carol", 0));
+        assertFalse(accounts.transfer("Alice", "Carol", -1));
+        assertFalse(accounts.transfer("Alice", "Carol", 101));
+        // Would take Bob past the largest balance there is
+        assertFalse(accounts.transfer("Alice", "Bob", 11));
+        assertEquals(100, accounts.getBalance("Alice"));
+        assertEquals(Integer.MAX_VALUE - 10, accounts.getBalance("Bob"));
+
+        assertTrue(accounts.transfer("Alice", "Bob", 10));
+        assertTrue(accounts.transfer("Alice", "Carol", 90));
+        assertEquals(0, accounts.getBalance("Alice"));
+        assertEquals(Integer.MAX_VALUE, accounts.getBalance("Bob"));
+        assertEquals(90, accounts.getBalance("Carol"));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"primitive", "concurrent"})
+    public void oppositeTransfersNeverDeadlock(String kind) throws InterruptedException {
+        AccountStore accounts = newStore(kind, null);
+        addAccounts(accounts, "Alice", "Bob", "Carol");
+        run(accounts, new String[][] {{"Alice", "Bob"}, {"Bob", "Alice"}, {"Bob", "Carol"}, {"Carol", "Alice"}});
+        assertEquals(3L * OPENING, total(accounts, "Alice", "Bob", "Carol"));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"primitive"})
+    public void accountsSharingLockStripe(String kind) throws InterruptedException {
+        // The store stripes its locks by slot, so the first account and the 4097th share one
+        AccountStore accounts = newStore(kind, null);
+        for (int i = 0; i <= 4096; ++i)
+            addAccounts(accounts, "account" + i);
+        run(accounts, new String[][] {{"account0", "account4096"}, {"account4096", "account0"}, {"account4096", "account1"}, {"account1", "account0"}});
+        assertEquals(3L * OPENING, total(accounts, "account0", "account1", "account4096"));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"primitive", "concurrent"})
+    public void journaledTransfersReplayToSameBalances(String kind) throws Exception {
+        Path file = directory.resolve("bank.journal");
+        String[] names = {"Alice", "Bob", "Carol"};
+        int[] balances = new int[names.length];
+        Journal journal = new Journal(file);
+        try {
+            AccountStore accounts = newStore(kind, journal);
+            addAccounts(accounts, names);
+            journal.replay(accounts);
+            run(accounts, new String[][] {{"Alice", "Bob"}, {"Bob", "Alice"}, {"Bob", "Carol"}, {"Carol", "Alice"}});
+            accounts.sync().join();
+            for (int i = 0; i < names.length; ++i)
+                balances[i] = accounts.getBalance(names[i]);
+        } finally {
+            journal.close();
+        }
+
+        journal = new Journal(file);
+        try {
+            AccountStore recovered = newStore(kind, null);
+            addAccounts(recovered, names);
+            journal.replay(recovered);
+            for (int i = 0; i < names.length; ++i)
+                assertEquals(balances[i], recovered.getBalance(names[i]), names[i]);
+        } finally {
+            journal.close();
+        }
+    }
+
+    /* A thread per pair, each moving money from the first account to the second ROUNDS times. */
+    private static void run(final AccountStore accounts, String[][] pairs) throws InterruptedException {
+        Thread[] threads = new Thread[pairs.length];
+        for (int t = 0; t < threads.length; ++t) {
+            final String from = pairs[t][0], to = pairs[t][1];
+            threads[t] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < ROUNDS; ++i)
+                        accounts.transfer(from, to, 1 + i % 7);
+                }
+            };
+            threads[t].setDaemon(true);
+            threads[t].start();
+        }
+        long deadline = System.currentTimeMillis() + DEADLINE_MILLIS;
+        for (Thread thread : threads) {
+            thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+            assertFalse(thread.isAlive(), "Transfers are stuck; the locks may be taken in a cycle.");
+        }
+    }
+
+    private static long total(AccountStore accounts, String... names) {
+        long total = 0;
+        for (String name : names)
+            total += accounts.getBalance(name);
+        return total;
+    }
+}